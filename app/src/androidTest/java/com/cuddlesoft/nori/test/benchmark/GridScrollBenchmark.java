@@ -0,0 +1,326 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.benchmark;
+
+import android.annotation.TargetApi;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.GridView;
+
+import com.cuddlesoft.nori.R;
+import com.cuddlesoft.nori.SearchActivity;
+import com.cuddlesoft.nori.fragment.SearchResultGridFragment;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+import com.cuddlesoft.norilib.clients.SearchClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Flings the {@link com.cuddlesoft.nori.fragment.SearchResultGridFragment} through a synthetic search result, with
+ * thumbnails served by a local stand-in image board, and records frame times, dropped frames, garbage collections and
+ * peak heap usage. Results are sent to the instrumentation runner as JSON, under the {@code results} key:
+ * {@code adb shell am instrument -r -w -e class com.cuddlesoft.nori.test.benchmark.GridScrollBenchmark <runner>}
+ */
+public class GridScrollBenchmark extends InstrumentationTestCase {
+  /** Tag used for logging. */
+  private static final String TAG = "GridScrollBenchmark";
+  /** Number of images in the synthetic search result. */
+  private static final int IMAGE_COUNT = 5000;
+  /** Size of the generated thumbnails, in pixels. */
+  private static final int THUMBNAIL_SIZE = 150;
+  /** Number of distinct thumbnails generated. Each image still has its own URL. */
+  private static final int THUMBNAIL_VARIANT_COUNT = 16;
+  /** Expected interval between frames, in nanoseconds. */
+  private static final long FRAME_INTERVAL = 16666667;
+  /** Number of move events in each fling gesture. */
+  private static final int FLING_STEP_COUNT = 5;
+  /** Time between the move events of a fling gesture, in milliseconds. */
+  private static final int FLING_STEP_DURATION = 10;
+  /** Time between two fling gestures, in milliseconds. */
+  private static final int FLING_INTERVAL = 250;
+  /** Maximum time to spend scrolling to the end of the grid, in milliseconds. */
+  private static final long TIMEOUT = 5 * 60 * 1000;
+  /** Key of the results in the instrumentation status bundle. */
+  private static final String STATUS_RESULTS = "results";
+  /** Stand-in image board serving thumbnails. */
+  private MockWebServer server;
+  /** Path prefix of the thumbnail URLs. Unique for each run, so thumbnails are never in the disk cache. */
+  private String thumbnailPath;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    final byte[][] thumbnails = createThumbnails();
+    thumbnailPath = "/thumbnails/" + System.currentTimeMillis() + "/";
+
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        final String path = request.getPath();
+        if (path.startsWith(thumbnailPath)) {
+          final int index = Integer.parseInt(path.substring(thumbnailPath.length(), path.lastIndexOf('.')));
+          return new MockResponse()
+              .addHeader("Content-Type", "image/jpeg")
+              .setBody(thumbnails[index % THUMBNAIL_VARIANT_COUNT]);
+        }
+        // Hold the search API request sent by the activity, so the synthetic search result is never replaced.
+        return new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE);
+      }
+    });
+    server.play();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.shutdown();
+    super.tearDown();
+  }
+
+  /** Fling the grid from the first to the last image and report the rendering performance. */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  public void testFlingGrid() throws Throwable {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      // Frame times are recorded using the Choreographer, added in Jelly Bean.
+      Log.w(TAG, "Skipped, requires Android 4.1 or newer.");
+      return;
+    }
+    final Instrumentation instrumentation = getInstrumentation();
+
+    // Launch the search activity with a search pointed at the stand-in server.
+    final Intent intent = new Intent(Intent.ACTION_SEARCH);
+    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_CLIENT_SETTINGS, new SearchClient.Settings(
+        SearchClient.Settings.APIType.DANBOORU, "Benchmark", server.getUrl("/").toString(), null, null));
+    intent.putExtra(SearchActivity.INTENT_EXTRA_SEARCH_QUERY, "benchmark");
+    final SearchActivity activity = launchActivityWithIntent(instrumentation.getTargetContext().getPackageName(),
+        SearchActivity.class, intent);
+
+    try {
+      // Show the synthetic search result.
+      final SearchResultGridFragment fragment = (SearchResultGridFragment) activity.getSupportFragmentManager()
+          .findFragmentById(R.id.fragment_searchResultGrid);
+      final SearchResult searchResult = createSearchResult();
+      runTestOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          fragment.setSearchResult(searchResult);
+        }
+      });
+      instrumentation.waitForIdleSync();
+      final GridView gridView = (GridView) activity.findViewById(R.id.image_grid);
+
+      // Fling to the end of the grid while recording frames.
+      final FrameRecorder frameRecorder = new FrameRecorder();
+      Debug.resetGlobalGcInvocationCount();
+      Debug.resetGlobalAllocSize();
+      Debug.startAllocCounting();
+      runTestOnUiThread(frameRecorder);
+      final long startTime = SystemClock.elapsedRealtime();
+      while (gridView.getLastVisiblePosition() < IMAGE_COUNT - 1
+          && SystemClock.elapsedRealtime() - startTime < TIMEOUT) {
+        fling(gridView);
+        Thread.sleep(FLING_INTERVAL);
+      }
+      final long duration = SystemClock.elapsedRealtime() - startTime;
+      runTestOnUiThread(new Runnable() {
+        @Override
+        public void run() {
+          frameRecorder.stop();
+        }
+      });
+      Debug.stopAllocCounting();
+      final int gcCount = Debug.getGlobalGcInvocationCount();
+      final int allocatedSize = Debug.getGlobalAllocSize();
+
+      // Report results to the instrumentation runner.
+      final String results = frameRecorder.toJson()
+          .put("image_count", IMAGE_COUNT)
+          .put("duration_ms", duration)
+          .put("gc_count", gcCount)
+          .put("allocated_bytes", allocatedSize)
+          .toString();
+      Log.i(TAG, results);
+      final Bundle status = new Bundle();
+      status.putString(STATUS_RESULTS, results);
+      instrumentation.sendStatus(0, status);
+
+      assertThat(gridView.getLastVisiblePosition()).isEqualTo(IMAGE_COUNT - 1);
+    } finally {
+      activity.finish();
+    }
+  }
+
+  /**
+   * Generate the thumbnails served by the stand-in server.
+   *
+   * @return JPEG-encoded thumbnails.
+   */
+  private static byte[][] createThumbnails() {
+    final byte[][] thumbnails = new byte[THUMBNAIL_VARIANT_COUNT][];
+    final Bitmap bitmap = Bitmap.createBitmap(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Bitmap.Config.ARGB_8888);
+    for (int i = 0; i < THUMBNAIL_VARIANT_COUNT; i++) {
+      bitmap.eraseColor(Color.HSVToColor(new float[]{360f * i / THUMBNAIL_VARIANT_COUNT, 0.5f, 0.9f}));
+      final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      bitmap.compress(Bitmap.CompressFormat.JPEG, 90, stream);
+      thumbnails[i] = stream.toByteArray();
+    }
+    bitmap.recycle();
+    return thumbnails;
+  }
+
+  /**
+   * Create a synthetic search result with thumbnails served by the stand-in server.
+   *
+   * @return Search result with {@link #IMAGE_COUNT} images, without further pages.
+   */
+  private SearchResult createSearchResult() {
+    final Image[] images = new Image[IMAGE_COUNT];
+    for (int i = 0; i < IMAGE_COUNT; i++) {
+      images[i] = new Image();
+      images[i].id = Integer.toString(i);
+      images[i].previewUrl = server.getUrl(thumbnailPath + i + ".jpg").toString();
+    }
+    final SearchResult searchResult = new SearchResult(images, Tag.arrayFromString("benchmark"), 0);
+    searchResult.onLastPage();
+    return searchResult;
+  }
+
+  /**
+   * Send a fast upward swipe gesture to a view.
+   *
+   * @param view View to fling.
+   */
+  private void fling(View view) {
+    final Instrumentation instrumentation = getInstrumentation();
+    final int[] location = new int[2];
+    view.getLocationOnScreen(location);
+    final float x = location[0] + view.getWidth() / 2f;
+    final float fromY = location[1] + view.getHeight() * 0.8f;
+    final float toY = location[1] + view.getHeight() * 0.2f;
+
+    final long downTime = SystemClock.uptimeMillis();
+    instrumentation.sendPointerSync(MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, fromY, 0));
+    for (int i = 1; i <= FLING_STEP_COUNT; i++) {
+      final float y = fromY + (toY - fromY) * i / FLING_STEP_COUNT;
+      instrumentation.sendPointerSync(MotionEvent.obtain(downTime, downTime + i * FLING_STEP_DURATION,
+          MotionEvent.ACTION_MOVE, x, y, 0));
+    }
+    instrumentation.sendPointerSync(MotionEvent.obtain(downTime, downTime + FLING_STEP_COUNT * FLING_STEP_DURATION,
+        MotionEvent.ACTION_UP, x, toY, 0));
+  }
+
+  /** Records the interval between frames and the peak heap usage. Must be started and stopped on the UI thread. */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static class FrameRecorder implements Choreographer.FrameCallback, Runnable {
+    /** Interval between consecutive frames, in nanoseconds. */
+    private long[] frameIntervals = new long[4096];
+    /** Number of recorded frame intervals. */
+    private int frameCount;
+    /** Time of the previous frame, in nanoseconds. 0 before the first frame. */
+    private long lastFrameTime;
+    /** Peak heap usage, in bytes. */
+    private long peakHeapSize;
+    /** True once recording was stopped. */
+    private boolean isStopped;
+
+    @Override
+    public void run() {
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /** Stop recording frames. */
+    public void stop() {
+      isStopped = true;
+      Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTime) {
+      if (isStopped) {
+        return;
+      }
+      if (lastFrameTime != 0) {
+        if (frameCount == frameIntervals.length) {
+          frameIntervals = Arrays.copyOf(frameIntervals, frameIntervals.length * 2);
+        }
+        frameIntervals[frameCount++] = frameTime - lastFrameTime;
+      }
+      lastFrameTime = frameTime;
+      final Runtime runtime = Runtime.getRuntime();
+      peakHeapSize = Math.max(peakHeapSize, runtime.totalMemory() - runtime.freeMemory());
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Summarize the recorded frames.
+     *
+     * @return Frame count, dropped frames, frame time percentiles in milliseconds and peak heap usage in bytes.
+     * @throws JSONException Never thrown, all values are finite.
+     */
+    public JSONObject toJson() throws JSONException {
+      final long[] intervals = Arrays.copyOf(frameIntervals, frameCount);
+      Arrays.sort(intervals);
+      int droppedFrames = 0;
+      int jankyFrames = 0;
+      for (long interval : intervals) {
+        // Each vsync missed between two frames is a dropped frame.
+        final int missedFrames = (int) ((interval + FRAME_INTERVAL / 2) / FRAME_INTERVAL) - 1;
+        if (missedFrames > 0) {
+          droppedFrames += missedFrames;
+          jankyFrames++;
+        }
+      }
+      return new JSONObject()
+          .put("frame_count", frameCount)
+          .put("janky_frames", jankyFrames)
+          .put("dropped_frames", droppedFrames)
+          .put("frame_time_p50_ms", getPercentile(intervals, 50) / 1e6)
+          .put("frame_time_p90_ms", getPercentile(intervals, 90) / 1e6)
+          .put("frame_time_p99_ms", getPercentile(intervals, 99) / 1e6)
+          .put("frame_time_max_ms", getPercentile(intervals, 100) / 1e6)
+          .put("peak_heap_bytes", peakHeapSize);
+    }
+
+    /**
+     * Get a percentile of sorted values.
+     *
+     * @param values     Sorted values.
+     * @param percentile Percentile, between 0 and 100.
+     * @return Value at the given percentile. 0 if there are no values.
+     */
+    private static long getPercentile(long[] values, int percentile) {
+      if (values.length == 0) {
+        return 0;
+      }
+      return values[Math.min(values.length - 1, values.length * percentile / 100)];
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.benchmark;
+
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.cuddlesoft.nori.search.ImageList;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Compares appending pages to, and reading every image from, a {@link com.cuddlesoft.norilib.SearchResult} grown with
+ * {@link com.cuddlesoft.norilib.SearchResult#addImages(com.cuddlesoft.norilib.Image[], int)} and a
+ * {@link com.cuddlesoft.nori.search.ImageList}, at search result sizes reached after long endless scrolling sessions.
+ * Results are sent to the instrumentation runner as JSON, under the {@code results} key:
+ * {@code adb shell am instrument -r -w -e class com.cuddlesoft.nori.test.benchmark.ImageListBenchmark <runner>}
+ */
+public class ImageListBenchmark extends InstrumentationTestCase {
+  /** Tag used for logging. */
+  private static final String TAG = "ImageListBenchmark";
+  /** Search result sizes measured. */
+  private static final int[] IMAGE_COUNTS = {10000, 20000, 50000};
+  /** Number of images in each page. */
+  private static final int PAGE_SIZE = 100;
+  /** Number of times each measurement is repeated. The fastest run is reported. */
+  private static final int RUN_COUNT = 5;
+  /** Key of the results in the instrumentation status bundle. */
+  private static final String STATUS_RESULTS = "results";
+
+  /** Measure appending pages and reading all images at each search result size. */
+  public void testAppendAndGet() throws Throwable {
+    final JSONArray results = new JSONArray();
+    for (int imageCount : IMAGE_COUNTS) {
+      final Image[][] pages = createPages(imageCount);
+      results.put(new JSONObject()
+          .put("image_count", imageCount)
+          .put("array", measureArray(pages))
+          .put("image_list", measureImageList(pages)));
+    }
+
+    // Report results to the instrumentation runner.
+    final String json = results.toString();
+    Log.i(TAG, json);
+    final Bundle status = new Bundle();
+    status.putString(STATUS_RESULTS, json);
+    getInstrumentation().sendStatus(0, status);
+  }
+
+  /**
+   * Measure a search result grown by copying its image array on every page, and read the way the adapters used to,
+   * fetching the array for every image.
+   *
+   * @param pages Pages to append.
+   * @return Fastest append and read times.
+   */
+  private static JSONObject measureArray(Image[][] pages) throws JSONException {
+    long bestAppendTime = Long.MAX_VALUE;
+    long bestGetTime = Long.MAX_VALUE;
+    for (int run = 0; run < RUN_COUNT; run++) {
+      long startTime = System.nanoTime();
+      final SearchResult searchResult = new SearchResult(pages[0], Tag.arrayFromString("benchmark"), 0);
+      for (int i = 1; i < pages.length; i++) {
+        searchResult.addImages(pages[i], i);
+      }
+      bestAppendTime = Math.min(bestAppendTime, System.nanoTime() - startTime);
+
+      startTime = System.nanoTime();
+      int checksum = 0;
+      final int imageCount = searchResult.getImages().length;
+      for (int i = 0; i < imageCount; i++) {
+        checksum += searchResult.getImages()[i].id.length();
+      }
+      bestGetTime = Math.min(bestGetTime, System.nanoTime() - startTime);
+      assertThat(checksum).isGreaterThan(0);
+    }
+    return toJson(bestAppendTime, bestGetTime);
+  }
+
+  /**
+   * Measure a search result whose pages are appended to its {@link com.cuddlesoft.nori.search.ImageList}.
+   *
+   * @param pages Pages to append.
+   * @return Fastest append and read times.
+   */
+  private JSONObject measureImageList(Image[][] pages) throws JSONException {
+    long bestAppendTime = Long.MAX_VALUE;
+    long bestGetTime = Long.MAX_VALUE;
+    for (int run = 0; run < RUN_COUNT; run++) {
+      final SearchResult searchResult = new SearchResult(pages[0], Tag.arrayFromString("benchmark"), 0);
+      final ImageList imageList = ImageList.of(getInstrumentation().getTargetContext(), searchResult);
+      long startTime = System.nanoTime();
+      for (int i = 1; i < pages.length; i++) {
+        imageList.append(pages[i]);
+      }
+      bestAppendTime = Math.min(bestAppendTime, System.nanoTime() - startTime);
+
+      startTime = System.nanoTime();
+      int checksum = 0;
+      final int imageCount = imageList.size();
+      for (int i = 0; i < imageCount; i++) {
+        checksum += imageList.get(i).id.length();
+      }
+      bestGetTime = Math.min(bestGetTime, System.nanoTime() - startTime);
+      assertThat(checksum).isGreaterThan(0);
+    }
+    return toJson(bestAppendTime, bestGetTime);
+  }
+
+  /**
+   * Format a measurement as JSON.
+   *
+   * @param appendTime Time spent appending all pages, in nanoseconds.
+   * @param getTime    Time spent reading all images, in nanoseconds.
+   * @return JSON object with the times in microseconds.
+   */
+  private static JSONObject toJson(long appendTime, long getTime) throws JSONException {
+    return new JSONObject()
+        .put("append_us", appendTime / 1000)
+        .put("get_all_us", getTime / 1000);
+  }
+
+  /**
+   * Create pages of synthetic images.
+   *
+   * @param imageCount Total number of images.
+   * @return Pages of {@link #PAGE_SIZE} images.
+   */
+  private static Image[][] createPages(int imageCount) {
+    final Image[][] pages = new Image[imageCount / PAGE_SIZE][PAGE_SIZE];
+    for (int i = 0; i < imageCount; i++) {
+      final Image image = new Image();
+      image.id = Integer.toString(i);
+      image.previewUrl = "http://example.com/preview/" + i + ".jpg";
+      pages[i / PAGE_SIZE][i % PAGE_SIZE] = image;
+    }
+    return pages;
+  }
+}
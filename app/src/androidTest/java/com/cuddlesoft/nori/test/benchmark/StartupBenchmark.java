@@ -0,0 +1,56 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.benchmark;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.cuddlesoft.nori.NoriApplication;
+import com.cuddlesoft.nori.SearchActivity;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/**
+ * Measures the time from process start to the first thumbnail being shown by {@link com.cuddlesoft.nori.SearchActivity}.
+ * Needs a configured service and network access. Run on its own, so the process is started fresh:
+ * {@code adb shell am instrument -w -e class com.cuddlesoft.nori.test.benchmark.StartupBenchmark <runner>}
+ */
+public class StartupBenchmark extends InstrumentationTestCase {
+  /** Tag used for logging. */
+  private static final String TAG = "StartupBenchmark";
+  /** Maximum time to wait for the first thumbnail, in milliseconds. */
+  private static final long TIMEOUT = 30000;
+  /** Key of the result in the instrumentation status bundle. */
+  private static final String STATUS_TIME_TO_FIRST_THUMBNAIL = "time_to_first_thumbnail_ms";
+
+  /** Launch the search activity and wait for the first thumbnail to be shown. */
+  public void testTimeToFirstThumbnail() throws Throwable {
+    final Instrumentation instrumentation = getInstrumentation();
+    final Activity activity = launchActivity(instrumentation.getTargetContext().getPackageName(),
+        SearchActivity.class, null);
+    try {
+      final long deadline = SystemClock.elapsedRealtime() + TIMEOUT;
+      while (!NoriApplication.hasLoadedFirstThumbnail() && SystemClock.elapsedRealtime() < deadline) {
+        Thread.sleep(50);
+      }
+      final long timeToFirstThumbnail = NoriApplication.getTimeToFirstThumbnail();
+      assertThat(timeToFirstThumbnail).isGreaterThanOrEqualTo(0);
+
+      // Report the result to the instrumentation runner.
+      Log.i(TAG, "Time to first thumbnail: " + timeToFirstThumbnail + " ms");
+      final Bundle results = new Bundle();
+      results.putLong(STATUS_TIME_TO_FIRST_THUMBNAIL, timeToFirstThumbnail);
+      instrumentation.sendStatus(0, results);
+    } finally {
+      activity.finish();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.database;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.cuddlesoft.nori.database.SearchResultCacheDatabase;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link com.cuddlesoft.nori.database.SearchResultCacheDatabase} class. */
+public class SearchResultCacheDatabaseTest extends InstrumentationTestCase {
+  /** App context used for testing. */
+  private Context context;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Set up a new app context before each test.
+    context = new RenamingDelegatingContext(getInstrumentation().getTargetContext(), "_test");
+    // Start each test with an empty cache.
+    SearchResultCacheDatabase database = new SearchResultCacheDatabase(context);
+    database.clear();
+    database.close();
+  }
+
+  /**
+   * Create a search result page for testing.
+   *
+   * @param imageCount Number of images in the page.
+   * @return Search result page.
+   */
+  private static SearchResult createSearchResult(int imageCount) {
+    final Image[] images = new Image[imageCount];
+    for (int i = 0; i < imageCount; i++) {
+      images[i] = new Image();
+      images[i].id = Integer.toString(i);
+      images[i].fileUrl = "http://example.com/" + i + ".png";
+    }
+    return new SearchResult(images, Tag.arrayFromString("blue_sky"), 0);
+  }
+
+  /** Test if a stored page can be read back from the database. */
+  public void testPutAndGet() throws Throwable {
+    SearchResultCacheDatabase database = new SearchResultCacheDatabase(context);
+    database.put("key", createSearchResult(10));
+    SearchResultCacheDatabase.Entry entry = database.get("key");
+    database.close();
+
+    assertThat(entry).isNotNull();
+    assertThat(entry.searchResult.getImages()).hasSize(10);
+    assertThat(entry.searchResult.getImages()[3].id).isEqualTo("3");
+    assertThat(entry.createdTime).isLessThanOrEqualTo(System.currentTimeMillis());
+  }
+
+  /** Test if pages that are not in the cache are reported as missing. */
+  public void testGetMissing() throws Throwable {
+    SearchResultCacheDatabase database = new SearchResultCacheDatabase(context);
+    assertThat(database.get("missing")).isNull();
+    database.close();
+  }
+
+  /** Test the {@link com.cuddlesoft.nori.database.SearchResultCacheDatabase#trim(long, long)} method. */
+  public void testTrim() throws Throwable {
+    SearchResultCacheDatabase database = new SearchResultCacheDatabase(context);
+    database.put("first", createSearchResult(10));
+    database.put("second", createSearchResult(10));
+
+    // Remove entries created before the current time.
+    assertThat(database.trim(Long.MAX_VALUE, System.currentTimeMillis() + 1)).isEqualTo(2);
+    assertThat(database.get("first")).isNull();
+
+    // Evict entries until the cache fits into a single byte.
+    database.put("first", createSearchResult(10));
+    assertThat(database.trim(1, 0)).isEqualTo(1);
+    assertThat(database.get("first")).isNull();
+    database.close();
+  }
+}
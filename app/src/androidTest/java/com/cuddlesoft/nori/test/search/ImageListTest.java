@@ -0,0 +1,207 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.search;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+
+import com.cuddlesoft.nori.search.ImageList;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link com.cuddlesoft.nori.search.ImageList} class. */
+public class ImageListTest extends InstrumentationTestCase {
+  /** Number of images in each page. */
+  private static final int PAGE_SIZE = 100;
+  /** App context used for testing. */
+  private Context context;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = getInstrumentation().getTargetContext();
+  }
+
+  /**
+   * Create a page of images for testing.
+   *
+   * @param start Index of the first image in the page.
+   * @return Images, with their index as the ID.
+   */
+  private static Image[] createPage(int start) {
+    final Image[] images = new Image[PAGE_SIZE];
+    for (int i = 0; i < PAGE_SIZE; i++) {
+      images[i] = new Image();
+      images[i].id = Integer.toString(start + i);
+      images[i].previewUrl = "http://example.com/" + (start + i) + ".jpg";
+    }
+    return images;
+  }
+
+  /**
+   * Create the image list of a search result and append more pages after its first page.
+   *
+   * @param searchResult Search result holding the first page.
+   * @param pageCount    Total number of pages.
+   * @return Images of the search result.
+   */
+  private ImageList createImageList(SearchResult searchResult, int pageCount) {
+    final ImageList imageList = ImageList.of(context, searchResult);
+    for (int i = 1; i < pageCount; i++) {
+      imageList.append(createPage(i * PAGE_SIZE));
+    }
+    return imageList;
+  }
+
+  /** Test that images are read back from the right chunk. */
+  public void testGet() throws Throwable {
+    final SearchResult searchResult = new SearchResult(createPage(0), Tag.arrayFromString("blue_sky"), 0);
+    final ImageList imageList = createImageList(searchResult, 5);
+
+    assertThat(imageList.size()).isEqualTo(5 * PAGE_SIZE);
+    for (int i = 0; i < imageList.size(); i++) {
+      assertThat(imageList.get(i).id).isEqualTo(Integer.toString(i));
+    }
+    // Pages are split across chunks.
+    assertThat(imageList.getChunk(1)[0].id).isEqualTo(Integer.toString(ImageList.CHUNK_SIZE));
+    // The same list is returned for the same search result.
+    assertThat(ImageList.of(context, searchResult)).isSameAs(imageList);
+  }
+
+  /** Test appending empty pages. */
+  public void testAppendEmptyPage() throws Throwable {
+    final SearchResult searchResult = new SearchResult(createPage(0), Tag.arrayFromString("blue_sky"), 0);
+    final ImageList imageList = ImageList.of(context, searchResult);
+    imageList.append(new Image[0]);
+
+    assertThat(imageList.size()).isEqualTo(PAGE_SIZE);
+  }
+
+  /** Test that out of bounds indexes are rejected. */
+  public void testGetOutOfBounds() throws Throwable {
+    final SearchResult searchResult = new SearchResult(createPage(0), Tag.arrayFromString("blue_sky"), 0);
+    final ImageList imageList = ImageList.of(context, searchResult);
+
+    try {
+      imageList.get(PAGE_SIZE);
+      fail("Expected IndexOutOfBoundsException");
+    } catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+
+  /**
+   * Create the image list of a search result and scroll to its end, giving the disk thread time to spill the chunks
+   * at the start of the search result.
+   *
+   * @return Images of the search result, with the first chunks spilled to disk.
+   */
+  private ImageList createSpilledImageList() throws InterruptedException {
+    final SearchResult searchResult = new SearchResult(createPage(0), Tag.arrayFromString("blue_sky"), 0);
+    final ImageList imageList = createImageList(searchResult, 30);
+    imageList.setVisiblePosition(imageList.size() - 1);
+    Thread.sleep(1000);
+    return imageList;
+  }
+
+  /**
+   * Listener counting down a latch each time it's notified.
+   *
+   * @param latch Latch.
+   * @return Listener.
+   */
+  private static ImageList.Listener createListener(final CountDownLatch latch) {
+    return new ImageList.Listener() {
+      @Override
+      public void onImagesRead() {
+        latch.countDown();
+      }
+    };
+  }
+
+  /** Test that spilled chunks are read back in the background when they scroll back into the window. */
+  public void testSpilledChunks() throws Throwable {
+    final ImageList imageList = createSpilledImageList();
+
+    // Spilled chunks aren't read on the calling thread.
+    assertThat(imageList.get(0)).isNull();
+    assertThat(imageList.getChunk(0)[0].id).isEqualTo("0");
+
+    // Scroll back to the start of the search result and wait for the listener.
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ImageList.Listener listener = createListener(latch);
+    imageList.addListener(listener);
+    imageList.setVisiblePosition(0);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    imageList.removeListener(listener);
+
+    for (int i = 0; i < ImageList.CHUNK_SIZE; i++) {
+      assertThat(imageList.get(i).id).isEqualTo(Integer.toString(i));
+      assertThat(imageList.get(i).previewUrl).isEqualTo("http://example.com/" + i + ".jpg");
+    }
+    // The last chunk is never spilled.
+    assertThat(imageList.get(imageList.size() - 1).id).isEqualTo(Integer.toString(imageList.size() - 1));
+  }
+
+  /** Test that spilled chunks are read back on the calling thread by getNow(). */
+  public void testGetNow() throws Throwable {
+    final ImageList imageList = createSpilledImageList();
+
+    for (int i = 0; i < imageList.size(); i++) {
+      assertThat(imageList.getNow(i).id).isEqualTo(Integer.toString(i));
+      assertThat(imageList.getNow(i).previewUrl).isEqualTo("http://example.com/" + i + ".jpg");
+    }
+    // Chunks outside the window aren't kept in memory.
+    assertThat(imageList.get(0)).isNull();
+  }
+
+  /** Test that the listener isn't notified about chunks outside the window, which aren't read back. */
+  public void testListenerSkippedOutsideWindow() throws Throwable {
+    final ImageList imageList = createSpilledImageList();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final ImageList.Listener listener = createListener(latch);
+    imageList.addListener(listener);
+
+    assertThat(imageList.get(0)).isNull();
+    assertThat(latch.await(1, TimeUnit.SECONDS)).isFalse();
+    assertThat(imageList.get(0)).isNull();
+    imageList.removeListener(listener);
+  }
+
+  /** Test that images in a spill file that can't be read are reported as lost, without throwing. */
+  public void testUnreadableSpillFile() throws Throwable {
+    final ImageList imageList = createSpilledImageList();
+    // Delete the spill files of the first chunk.
+    final File[] spillDirectories = context.getDir("image_pages", Context.MODE_PRIVATE).listFiles();
+    assertThat(spillDirectories).isNotNull();
+    for (File spillDirectory : spillDirectories) {
+      //noinspection ResultOfMethodCallIgnored
+      new File(spillDirectory, "0").delete();
+    }
+
+    // Scroll back to the start. The listener is notified for each chunk in the window, even if it can't be read.
+    final CountDownLatch latch = new CountDownLatch(3);
+    final ImageList.Listener listener = createListener(latch);
+    imageList.addListener(listener);
+    imageList.setVisiblePosition(0);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    imageList.removeListener(listener);
+
+    assertThat(imageList.isLost(0)).isTrue();
+    assertThat(imageList.get(0)).isNull();
+    assertThat(imageList.getNow(0)).isNull();
+    assertThat(imageList.getChunk(0)).isNull();
+    // Other chunks are still read back.
+    assertThat(imageList.isLost(ImageList.CHUNK_SIZE)).isFalse();
+    assertThat(imageList.get(ImageList.CHUNK_SIZE).id).isEqualTo(Integer.toString(ImageList.CHUNK_SIZE));
+  }
+}
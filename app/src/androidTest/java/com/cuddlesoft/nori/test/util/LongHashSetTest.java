@@ -0,0 +1,56 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.test.util;
+
+import android.test.InstrumentationTestCase;
+
+import com.cuddlesoft.nori.util.LongHashSet;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+/** Tests the {@link com.cuddlesoft.nori.util.LongHashSet} class. */
+public class LongHashSetTest extends InstrumentationTestCase {
+
+  /** Test adding values to the set and looking them up. */
+  public void testAddAndContains() throws Throwable {
+    LongHashSet set = new LongHashSet();
+    assertThat(set.add(42)).isTrue();
+    assertThat(set.add(42)).isFalse();
+    assertThat(set.contains(42)).isTrue();
+    assertThat(set.contains(43)).isFalse();
+    assertThat(set.size()).isEqualTo(1);
+  }
+
+  /** Test that values are kept when the hash table grows. */
+  public void testGrow() throws Throwable {
+    LongHashSet set = new LongHashSet(1);
+    for (long i = 0; i < 10000; i++) {
+      assertThat(set.add(i)).isTrue();
+    }
+    assertThat(set.size()).isEqualTo(10000);
+    for (long i = 0; i < 10000; i++) {
+      assertThat(set.contains(i)).isTrue();
+    }
+    assertThat(set.contains(10000)).isFalse();
+  }
+
+  /** Test values used internally to mark empty slots in the hash table. */
+  public void testSpecialValues() throws Throwable {
+    LongHashSet set = new LongHashSet();
+    assertThat(set.contains(Long.MIN_VALUE)).isFalse();
+    assertThat(set.add(Long.MIN_VALUE)).isTrue();
+    assertThat(set.add(Long.MIN_VALUE)).isFalse();
+    assertThat(set.contains(Long.MIN_VALUE)).isTrue();
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.size()).isEqualTo(2);
+
+    set.clear();
+    assertThat(set.contains(Long.MIN_VALUE)).isFalse();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.size()).isEqualTo(0);
+  }
+}
@@ -22,13 +22,19 @@ import android.view.GestureDetector;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Toast;
 
+import com.cuddlesoft.nori.fragment.AnimatedImageFragment;
 import com.cuddlesoft.nori.fragment.ImageFragment;
+import com.cuddlesoft.nori.fragment.LoadingImageFragment;
 import com.cuddlesoft.nori.fragment.PicassoImageFragment;
-import com.cuddlesoft.nori.fragment.WebViewImageFragment;
+import com.cuddlesoft.nori.image.ImagePrefetcher;
+import com.cuddlesoft.nori.search.ImageList;
+import com.cuddlesoft.nori.search.SearchResultPager;
+import com.cuddlesoft.nori.search.SearchResultStore;
 import com.cuddlesoft.nori.view.ImageViewerPager;
 import com.cuddlesoft.norilib.Image;
 import com.cuddlesoft.norilib.SearchResult;
@@ -36,18 +42,22 @@ import com.cuddlesoft.norilib.Tag;
 import com.cuddlesoft.norilib.clients.SearchClient;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /** Activity used to display full-screen images. */
 public class ImageViewerActivity extends ActionBarActivity implements ViewPager.OnPageChangeListener,
     ImageFragment.ImageFragmentListener, ImageViewerPager.OnMotionEventListener {
-  /** Identifier used to keep the displayed {@link com.cuddlesoft.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
-  private static final String BUNDLE_ID_SEARCH_RESULT = "com.cuddlesoft.nori.SearchResult";
+  /** Identifier used to keep the {@link com.cuddlesoft.nori.search.SearchResultStore} handle of the displayed {@link com.cuddlesoft.norilib.SearchResult} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_HANDLE = "com.cuddlesoft.nori.SearchResult.handle";
   /** Identifier used to keep the position of the selected {@link com.cuddlesoft.norilib.Image} in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_IMAGE_INDEX = "com.cuddlesoft.nori.ImageIndex";
   /** Identifier used to keep {@link #searchClient} settings in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_SEARCH_CLIENT_SETTINGS = "com.cuddlesoft.nori.SearchClient.Settings";
-  /** Fetch more images when the displayed image is this far from the last {@link com.cuddlesoft.norilib.Image} in the current {@link com.cuddlesoft.norilib.SearchResult}. */
-  private static final int INFINITE_SCROLLING_THRESHOLD = 3;
+  /** Identifier used to keep {@link #isFederatedSearch} in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_IS_FEDERATED_SEARCH = "com.cuddlesoft.nori.FederatedSearch";
+  /** Minimum number of {@link com.cuddlesoft.norilib.Image}s to keep loaded after the displayed image for infinite scrolling. */
+  private static final int INFINITE_SCROLLING_MIN_LOOKAHEAD = 3;
   /** Default shared preferences. */
   private SharedPreferences sharedPreferences;
   /** Used to detect single taps on the ViewPager widget which toggle the visibility of this activity's ActionBar. */
@@ -64,12 +74,30 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
   private ImageViewerPager viewPager;
   /** Search result shown by the {@link android.support.v4.app.FragmentStatePagerAdapter}. */
   private SearchResult searchResult;
+  /** Images of {@link #searchResult}. */
+  private ImageList imageList;
+  /** {@link com.cuddlesoft.nori.search.SearchResultStore} handle of {@link #searchResult}. */
+  private long searchResultHandle;
   /** Adapter used to populate the {@link android.support.v4.view.ViewPager} used to display and flip through the images. */
   private ImagePagerAdapter imagePagerAdapter;
   /** Search API client used to retrieve more search results for infinite scrolling. */
   private SearchClient searchClient;
-  /** Callback waiting to receive another page of {@link com.cuddlesoft.norilib.Image}s for the current {@link com.cuddlesoft.norilib.SearchResult}. */
-  private SearchClient.SearchCallback searchCallback;
+  /** True if the search result was merged from several services, so that more pages can't be fetched from {@link #searchClient}. */
+  private boolean isFederatedSearch;
+  /** Fetches more pages of {@link com.cuddlesoft.norilib.Image}s for the current {@link com.cuddlesoft.norilib.SearchResult}. */
+  private SearchResultPager searchResultPager;
+  /** Downloads and decodes the images around the displayed image ahead of time. */
+  private ImagePrefetcher imagePrefetcher;
+  /** Position of the image displayed before the current one. Used to tell which direction the user is swiping in. */
+  private int previousPosition;
+  /** Replaces the pages and the title waiting for images that were spilled to disk once they have been read back. */
+  private final ImageList.Listener imageListListener = new ImageList.Listener() {
+    @Override
+    public void onImagesRead() {
+      imagePagerAdapter.notifyDataSetChanged();
+      setTitle(imageList.get(viewPager.getCurrentItem()));
+    }
+  };
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -82,17 +110,27 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     // state.
     int imageIndex;
     if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_IMAGE_INDEX) &&
-        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT)) {
+        savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT_HANDLE)) {
       imageIndex = savedInstanceState.getInt(BUNDLE_ID_IMAGE_INDEX);
-      searchResult = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_RESULT);
+      searchResultHandle = savedInstanceState.getLong(BUNDLE_ID_SEARCH_RESULT_HANDLE);
       searchClient = ((SearchClient.Settings) savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS))
           .createSearchClient();
+      isFederatedSearch = savedInstanceState.getBoolean(BUNDLE_ID_IS_FEDERATED_SEARCH, false);
     } else {
       final Intent intent = getIntent();
       imageIndex = intent.getIntExtra(SearchActivity.BUNDLE_ID_IMAGE_INDEX, 0);
-      searchResult = intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT);
+      searchResultHandle = intent.getLongExtra(SearchActivity.BUNDLE_ID_SEARCH_RESULT_HANDLE, SearchResultStore.INVALID_HANDLE);
       searchClient = ((SearchClient.Settings) intent.getParcelableExtra(SearchActivity.BUNDLE_ID_SEARCH_CLIENT_SETTINGS))
           .createSearchClient();
+      isFederatedSearch = intent.getBooleanExtra(SearchActivity.BUNDLE_ID_IS_FEDERATED_SEARCH, false);
+    }
+    // Get the search result shared with SearchActivity.
+    searchResult = SearchResultStore.getInstance(this).get(searchResultHandle);
+    imageList = searchResult != null ? ImageList.of(this, searchResult) : null;
+    if (imageList == null || imageIndex >= imageList.size()) {
+      // The search result is no longer available (e.g. its snapshot was removed by the system while the app was killed).
+      finish();
+      return;
     }
 
     // Request window features.
@@ -111,6 +149,10 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     actionBar.setDisplayShowHomeEnabled(false);
     actionBar.setDisplayHomeAsUpEnabled(true);
 
+    // Start reading the images around the displayed image back from disk, if they were spilled.
+    imageList.setVisiblePosition(imageIndex);
+    imageList.addListener(imageListListener);
+
     // Create and set the image viewer Fragment pager adapter.
     imagePagerAdapter = new ImagePagerAdapter(getSupportFragmentManager());
     viewPager = (ImageViewerPager) findViewById(R.id.image_pager);
@@ -123,7 +165,11 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     viewPager.setOnMotionEventListener(this);
 
     // Set activity title.
-    setTitle(searchResult.getImages()[imageIndex]);
+    setTitle(imageList.get(imageIndex));
+
+    // Set up the image prefetcher. Prefetching is started in onStart().
+    imagePrefetcher = new ImagePrefetcher(this);
+    previousPosition = imageIndex;
 
     // Dim system UI.
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
@@ -146,9 +192,14 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
   /**
    * Set the activity title to contain the currently displayed image's metadata.
    *
-   * @param image Image to get the metadata from.
+   * @param image Image to get the metadata from. Null if it is still being read back from disk, or was lost.
    */
   private void setTitle(Image image) {
+    if (image == null) {
+      // The title is set once the image has been read back.
+      getSupportActionBar().setTitle(null);
+      return;
+    }
     String title = String.format(getString(R.string.activity_image_viewer_titleFormat),
         image.id, Tag.stringFromArray(image.tags));
 
@@ -161,18 +212,118 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
   }
 
   /**
-   * Fetch images from the next page of the {@link com.cuddlesoft.norilib.SearchResult}, if available.
+   * Fetch images from the next pages of the {@link com.cuddlesoft.norilib.SearchResult}, if needed.
+   *
+   * @param position Position of the displayed image.
    */
-  private void fetchMoreImages() {
-    // Ignore request if there is another API request pending.
-    if (searchCallback != null) {
+  private void fetchMoreImages(int position) {
+    // Merged search results are only extended by the federated search in SearchActivity.
+    if (isFederatedSearch || !searchResult.hasNextPage()) {
       return;
     }
-    // Show the indeterminate progress bar in the action bar.
-    setSupportProgressBarIndeterminateVisibility(true);
-    // Request search result from API client.
-    searchCallback = new InfiniteScrollingSearchCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    if (searchResultPager == null) {
+      searchResultPager = new SearchResultPager(this, searchClient, searchResult, INFINITE_SCROLLING_MIN_LOOKAHEAD,
+          new InfiniteScrollingListener());
+    }
+    searchResultPager.onScroll(position, 1, imageList.size());
+  }
+
+  /**
+   * Prefetch the images around the displayed image, most of them in the direction the user is swiping in.
+   * Pending requests for images further away are cancelled.
+   *
+   * @param position Position of the displayed image.
+   */
+  private void prefetchImages(int position) {
+    final int direction = position < previousPosition ? -1 : 1;
+    // The prefetcher decides how many of these images are prefetched.
+    final List<String> urlsAhead = new ArrayList<>(ImagePrefetcher.MAX_LOOKAHEAD);
+    for (int i = 1; i <= ImagePrefetcher.MAX_LOOKAHEAD; i++) {
+      addPrefetchUrl(urlsAhead, position + i * direction);
+    }
+    final List<String> urlsBehind = new ArrayList<>(ImagePrefetcher.MAX_LOOKBEHIND);
+    for (int i = 1; i <= ImagePrefetcher.MAX_LOOKBEHIND; i++) {
+      addPrefetchUrl(urlsBehind, position - i * direction);
+    }
+    imagePrefetcher.prefetch(urlsAhead, urlsBehind);
+    previousPosition = position;
+  }
+
+  /**
+   * Add the URL of an image to the list of images to prefetch. Null is added in its place if the image isn't shown by a
+   * {@link com.cuddlesoft.nori.fragment.PicassoImageFragment}, so that it still counts towards the prefetch window.
+   *
+   * @param urls     URLs of the images to prefetch.
+   * @param position Position of the image.
+   */
+  private void addPrefetchUrl(List<String> urls, int position) {
+    if (position >= 0 && position < imageList.size()) {
+      // Images that haven't been read back from disk yet are skipped rather than read on the UI thread.
+      final Image image = imageList.get(position);
+      if (image != null && !shouldUseAnimatedImageFragment(image)) {
+        urls.add(PicassoImageFragment.getImageUrl(image));
+      } else {
+        urls.add(null);
+      }
+    }
+  }
+
+  /**
+   * Check if {@link com.cuddlesoft.nori.fragment.AnimatedImageFragment} should be used to display given image object.
+   *
+   * @param image Image object.
+   * @return True if the image may be animated. Static GIF images are detected by the fragment itself.
+   */
+  @SuppressWarnings("RedundantIfStatement")
+  private static boolean shouldUseAnimatedImageFragment(Image image) {
+    // GIF images should use the animated image fragment.
+    String path = Uri.parse(image.fileUrl).getPath();
+    if (path.contains(".") && path.substring(path.lastIndexOf(".") + 1).equals("gif")) {
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  protected void onStart() {
+    super.onStart();
+
+    // Prefetch the images around the displayed image, or resume prefetching the images cancelled in onStop().
+    if (imagePrefetcher != null) {
+      prefetchImages(viewPager.getCurrentItem());
+    }
+
+    // Resume fetching the pages aborted in onStop().
+    if (searchResultPager != null) {
+      fetchMoreImages(viewPager.getCurrentItem());
+    }
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+
+    // Abort pending API requests while the activity isn't visible.
+    if (searchResultPager != null) {
+      searchResultPager.cancelRequests();
+    }
+    if (imagePrefetcher != null) {
+      imagePrefetcher.cancel();
+    }
+  }
+
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+
+    if (imageList != null) {
+      imageList.removeListener(imageListListener);
+    }
+
+    // Stop fetching more images.
+    if (searchResultPager != null) {
+      searchResultPager.cancel();
+    }
   }
 
   @Override
@@ -180,9 +331,12 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     super.onSaveInstanceState(outState);
 
     // Keep search result and the index of currently displayed image.
-    outState.putParcelable(BUNDLE_ID_SEARCH_RESULT, searchResult);
+    // Only the search result's handle is kept in the Bundle, the search result itself is written to disk in the background.
+    SearchResultStore.getInstance(this).saveSnapshot(searchResultHandle);
+    outState.putLong(BUNDLE_ID_SEARCH_RESULT_HANDLE, searchResultHandle);
     outState.putInt(BUNDLE_ID_IMAGE_INDEX, viewPager.getCurrentItem());
     outState.putParcelable(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
+    outState.putBoolean(BUNDLE_ID_IS_FEDERATED_SEARCH, isFederatedSearch);
   }
 
   @Override
@@ -191,14 +345,15 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
 
   @Override
   public void onPageSelected(int position) {
+    // Keep only the images around the displayed image in memory.
+    imageList.setVisiblePosition(position);
     // Set activity title to image metadata.
-    setTitle(searchResult.getImages()[position]);
+    setTitle(imageList.get(position));
 
-    // Fetch more images for infinite scrolling, if available and there isn't another search request being waited on.
-    if (searchCallback == null && searchResult.hasNextPage()
-        && (searchResult.getImages().length - position) <= INFINITE_SCROLLING_THRESHOLD) {
-      fetchMoreImages();
-    }
+    // Prefetch the images the user is swiping towards.
+    prefetchImages(position);
+    // Fetch more images for infinite scrolling, if available.
+    fetchMoreImages(position);
   }
 
   @Override
@@ -240,60 +395,54 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     @Override
     public Fragment getItem(int position) {
       // Create a new instance of ImageFragment for the given image.
-      Image image = searchResult.getImages()[position];
+      Image image = imageList.get(position);
 
-      if (shouldUseWebViewImageFragment(image)) {
-        return WebViewImageFragment.newInstance(image);
+      if (image == null) {
+        // The image is being read back from disk. The page is replaced once it's available.
+        return LoadingImageFragment.newInstance(imageList.isLost(position));
+      } else if (shouldUseAnimatedImageFragment(image)) {
+        return AnimatedImageFragment.newInstance(image);
       } else {
         return PicassoImageFragment.newInstance(image);
       }
     }
 
-    /**
-     * Check if {@link com.cuddlesoft.nori.fragment.WebViewImageFragment} should be used to display given image object.
-     *
-     * @param image Image object.
-     * @return True if the WebKit-based fragment should be used, instead of the ImageView based one.
-     */
-    @SuppressWarnings("RedundantIfStatement")
-    private boolean shouldUseWebViewImageFragment(Image image) {
-      // GIF images should use the WebKit fragment.
-      String path = Uri.parse(image.fileUrl).getPath();
-      if (path.contains(".") && path.substring(path.lastIndexOf(".") + 1).equals("gif")) {
-        return true;
-      }
-      return false;
+    @Override
+    public int getItemPosition(Object object) {
+      // Pages waiting for their image are recreated when the adapter is notified that images were read back.
+      return object instanceof LoadingImageFragment ? POSITION_NONE : POSITION_UNCHANGED;
+    }
+
+    @Override
+    public void setPrimaryItem(ViewGroup container, int position, Object object) {
+      super.setPrimaryItem(container, position, object);
+      // Let the pager check if the current page is panning a zoomed in image without looking it up on every touch event.
+      viewPager.setPrimaryFragment(object instanceof ImageFragment ? (ImageFragment) object : null);
     }
 
     @Override
     public int getCount() {
       // Return the search result count.
-      if (searchResult == null) {
+      if (imageList == null) {
         return 0;
       }
-      return searchResult.getImages().length;
+      return imageList.size();
     }
   }
 
-  /** Callback waiting to receive more images for infinite scrolling. */
-  private class InfiniteScrollingSearchCallback implements SearchClient.SearchCallback {
-    private final SearchResult searchResult;
-
-    /**
-     * Create a new InfiniteScrollingSearchCallback.
-     *
-     * @param searchResult Search result to append new results to.
-     */
-    public InfiniteScrollingSearchCallback(SearchResult searchResult) {
-      this.searchResult = searchResult;
+  /** Listener waiting to receive more images for infinite scrolling. */
+  private class InfiniteScrollingListener implements SearchResultPager.Listener {
+    @Override
+    public void onSearchResultChanged(SearchResult searchResult) {
+      // Notify the ViewPager adapter that the data set has changed.
+      imagePagerAdapter.notifyDataSetChanged();
+
+      // If all images in the fetched pages were filtered out, try fetching the next page.
+      fetchMoreImages(viewPager.getCurrentItem());
     }
 
     @Override
-    public void onFailure(IOException e) {
-      // Clear the active search callback and hide the progress bar in the action bar.
-      searchCallback = null;
-      setSupportProgressBarIndeterminateVisibility(false);
-
+    public void onPageFailed(IOException e) {
       // Display error toast notification to the user.
       Toast.makeText(ImageViewerActivity.this,
           String.format(getString(R.string.toast_infiniteScrollingFetchError),
@@ -302,38 +451,9 @@ public class ImageViewerActivity extends ActionBarActivity implements ViewPager.
     }
 
     @Override
-    public void onSuccess(SearchResult searchResult) {
-      // Clear the active search callback and hide the progress bar in the action bar.
-      searchCallback = null;
-      setSupportProgressBarIndeterminateVisibility(false);
-
-      if (searchResult.getImages().length == 0) {
-        // Just mark the current SearchResult as having reached the last page.
-        this.searchResult.onLastPage();
-      } else {
-        // Filter the received SearchResult.
-        if (sharedPreferences.contains(getString(R.string.preference_nsfwFilter_key))) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
-
-        // Update the search result and notify the ViewPager adapter that the data set has changed.
-        this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
-        imagePagerAdapter.notifyDataSetChanged();
-
-        // If all images in the current search result were filtered out, try fetching the next page.
-        if (searchResult.getImages().length == 0) {
-          fetchMoreImages();
-        }
-      }
+    public void onLoadingStateChanged(boolean isLoading) {
+      // Show the indeterminate progress bar in the action bar while more images are being fetched.
+      setSupportProgressBarIndeterminateVisibility(isLoading);
     }
   }
 
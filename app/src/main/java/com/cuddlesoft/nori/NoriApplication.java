@@ -0,0 +1,69 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori;
+
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cuddlesoft.nori.image.MemoryGovernor;
+
+/**
+ * Application class. Keeps track of the time it took to show the first thumbnail after the process was started,
+ * and forwards memory pressure events to the {@link com.cuddlesoft.nori.image.MemoryGovernor}.
+ */
+public class NoriApplication extends Application {
+  /** Tag used for logging. */
+  private static final String TAG = "NoriApplication";
+  /**
+   * Time the process was started, in milliseconds since boot. Recorded when this class is loaded, which happens
+   * before any activity or content provider is created.
+   */
+  private static final long processStartTime = SystemClock.elapsedRealtime();
+  /** Time it took to show the first thumbnail after the process was started, in milliseconds. -1 if not shown yet. */
+  private static volatile long timeToFirstThumbnail = -1;
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    MemoryGovernor.getInstance(this).onTrimMemory(level);
+  }
+
+  @Override
+  public void onLowMemory() {
+    super.onLowMemory();
+    // The most severe trim level. This is the only memory pressure callback before Ice Cream Sandwich.
+    MemoryGovernor.getInstance(this).onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+  }
+
+  /**
+   * Check if a thumbnail has been shown since the process was started.
+   *
+   * @return True if {@link #onFirstThumbnailLoaded()} has been called.
+   */
+  public static boolean hasLoadedFirstThumbnail() {
+    return timeToFirstThumbnail != -1;
+  }
+
+  /** Called on the UI thread when a thumbnail is shown. Only the first call is recorded. */
+  public static void onFirstThumbnailLoaded() {
+    if (timeToFirstThumbnail == -1) {
+      timeToFirstThumbnail = SystemClock.elapsedRealtime() - processStartTime;
+      Log.i(TAG, "Time to first thumbnail: " + timeToFirstThumbnail + " ms");
+    }
+  }
+
+  /**
+   * Get the time it took to show the first thumbnail after the process was started.
+   *
+   * @return Duration in milliseconds. -1 if no thumbnail has been shown yet.
+   */
+  public static long getTimeToFirstThumbnail() {
+    return timeToFirstThumbnail;
+  }
+}
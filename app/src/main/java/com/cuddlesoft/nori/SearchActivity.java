@@ -12,13 +12,13 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v4.widget.CursorAdapter;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.ActionBarActivity;
-import android.text.TextUtils;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -32,47 +32,80 @@ import android.widget.Toast;
 
 import com.cuddlesoft.nori.database.APISettingsDatabase;
 import com.cuddlesoft.nori.database.SearchSuggestionDatabase;
+import com.cuddlesoft.nori.fragment.FederatedSearchDialogFragment;
 import com.cuddlesoft.nori.fragment.SearchResultGridFragment;
+import com.cuddlesoft.nori.search.FederatedSearch;
+import com.cuddlesoft.nori.search.SearchRequest;
+import com.cuddlesoft.nori.search.SearchResultPager;
+import com.cuddlesoft.nori.search.SearchResultStore;
 import com.cuddlesoft.norilib.Image;
 import com.cuddlesoft.norilib.SearchResult;
 import com.cuddlesoft.norilib.Tag;
 import com.cuddlesoft.norilib.clients.SearchClient;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import io.github.vomitcuddle.SearchViewAllowEmpty.SearchView;
 
 /** Searches for images and displays the results in a scrollable grid of thumbnails. */
-public class SearchActivity extends ActionBarActivity implements SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener {
-  /** Identifier used to send the active {@link com.cuddlesoft.norilib.SearchResult} to {@link com.cuddlesoft.nori.ImageViewerActivity}. */
-  public static final String BUNDLE_ID_SEARCH_RESULT = "com.cuddlesoft.nori.SearchResult";
+public class SearchActivity extends ActionBarActivity implements SearchResultGridFragment.OnSearchResultGridFragmentInteractionListener,
+    FederatedSearchDialogFragment.OnServicesSelectedListener {
+  /** Identifier used to send the {@link com.cuddlesoft.nori.search.SearchResultStore} handle of the active {@link com.cuddlesoft.norilib.SearchResult} to {@link com.cuddlesoft.nori.ImageViewerActivity}. */
+  public static final String BUNDLE_ID_SEARCH_RESULT_HANDLE = "com.cuddlesoft.nori.SearchResult.handle";
   /** Identifier used to send the position of the selected {@link com.cuddlesoft.norilib.Image} to {@link com.cuddlesoft.nori.ImageViewerActivity}. */
   public static final String BUNDLE_ID_IMAGE_INDEX = "com.cuddlesoft.nori.ImageIndex";
   /** Identifier used to send {@link com.cuddlesoft.norilib.clients.SearchClient} settings to {@link com.cuddlesoft.nori.ImageViewerActivity}. */
   public static final String BUNDLE_ID_SEARCH_CLIENT_SETTINGS = "com.cuddlesoft.nori.SearchClient.Settings";
+  /** Identifier used to tell {@link com.cuddlesoft.nori.ImageViewerActivity} that the search result was merged from several services by a {@link com.cuddlesoft.nori.search.FederatedSearch}. */
+  public static final String BUNDLE_ID_IS_FEDERATED_SEARCH = "com.cuddlesoft.nori.FederatedSearch";
   /** Identifier used for the query string to search when starting this activity with an {@link android.content.Intent} */
   public static final String INTENT_EXTRA_SEARCH_QUERY = "com.cuddlesoft.nori.SearchQuery";
   /** Identifier used to include {@link SearchClient.Settings} objects in search intents. */
   public static final String INTENT_EXTRA_SEARCH_CLIENT_SETTINGS = "com.cuddlesoft.nori.SearchClient.Settings";
+  /** Identifier used to include the list of {@link SearchClient.Settings} searched in parallel by a federated search in search intents. */
+  private static final String INTENT_EXTRA_FEDERATED_SEARCH_CLIENT_SETTINGS = "com.cuddlesoft.nori.SearchClient.Settings.federated";
+  /** Shared preference key used to store the comma-separated database row IDs of the services selected for federated search. */
+  private static final String SHARED_PREFERENCE_FEDERATED_SEARCH_SERVICES = "com.cuddlesoft.nori.SearchActivity.federatedSearchServices";
+  /** Prefix of the shared preference keys used to store a snapshot of the last selected {@link SearchClient.Settings}. */
+  private static final String SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX = "com.cuddlesoft.nori.SearchActivity.settingsSnapshot.";
+  /** Tag of the {@link com.cuddlesoft.nori.fragment.FederatedSearchDialogFragment} in the fragment manager. */
+  private static final String FRAGMENT_TAG_FEDERATED_SEARCH_DIALOG = "FederatedSearchDialog";
   /** Identifier used to preserve current search query in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_SEARCH_QUERY = "com.cuddlesoft.nori.SearchQuery";
   /** Identifier used to preserve iconified/expanded state of the SearchView in {@link #onSaveInstanceState(android.os.Bundle)}. */
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_EXPANDED = "com.cuddlesoft.nori.SearchView.isExpanded";
   /** Identifier used to preserve search view focused state. */
   private static final String BUNDLE_ID_SEARCH_VIEW_IS_FOCUSED = "com.cuddlesoft.nori.SearchView.isFocused";
+  /** Minimum number of thumbnails to keep loaded below the last visible row of the grid. */
+  private static final int ENDLESS_SCROLLING_MIN_LOOKAHEAD = 10;
   /** Default {@link android.content.SharedPreferences} object. */
   private SharedPreferences sharedPreferences;
   /* {@link SearchClient.Settings} object selected from the service dropdown menu. */
   private SearchClient.Settings searchClientSettings;
   /** Search API client. */
   private SearchClient searchClient;
+  /** Settings snapshot used to search for the default query before the settings database has loaded. Null once reconciled with the database. */
+  private SearchClient.Settings snapshotSettings;
+  /** Database row ID of the service {@link #snapshotSettings} were taken from. */
+  private long snapshotServiceId;
   /** Search view menu item. */
   private MenuItem searchMenuItem;
   /** Action bar search view. */
   private SearchView searchView;
-  /** Search callback currently awaiting a response from the Search API. */
+  /** Request for the first page of the current search. Kept until the first page has been revalidated. */
+  private SearchRequest searchRequest;
+  /** Search callback currently awaiting the first page of a new search. Null once the page has been shown. */
   private SearchResultCallback searchCallback;
+  /** Query string of a search interrupted when the activity was stopped, searched for again when it is restarted. */
+  private String interruptedQuery;
+  /** Fetches more pages of the displayed search result to implement endless scrolling. */
+  private SearchResultPager searchResultPager;
+  /** Federated search running the query on several services in parallel. Null when searching a single service. */
+  private FederatedSearch federatedSearch;
+  /** Adapter populating the Search API picker in the action bar. */
+  private ServiceDropdownAdapter serviceDropdownAdapter;
   /** Search result grid fragment shown in this activity. */
   private SearchResultGridFragment searchResultGridFragment;
   /** Bundle used when restoring saved instance state (after screen rotation, app restored from background, etc.) */
@@ -103,10 +136,7 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
       public boolean onQueryTextSubmit(String query) {
         if (searchClientSettings != null) {
           // Prepare a intent to send to a new instance of this activity.
-          Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
-          intent.setAction(Intent.ACTION_SEARCH);
-          intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
-          intent.putExtra(BUNDLE_ID_SEARCH_QUERY, query);
+          Intent intent = createSearchIntent(query);
 
           // Collapse the ActionView. This makes navigating through previous results using the back key less painful.
           MenuItemCompat.collapseActionView(searchMenuItem);
@@ -141,11 +171,7 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
           c.moveToPosition(position);
 
           // Create and send a search intent.
-          Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
-          intent.setAction(Intent.ACTION_SEARCH);
-          intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
-          intent.putExtra(BUNDLE_ID_SEARCH_QUERY, c.getString(c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME)));
-          startActivity(intent);
+          startActivity(createSearchIntent(c.getString(c.getColumnIndex(SearchSuggestionDatabase.COLUMN_NAME))));
 
           // Release native resources.
           c.close();
@@ -176,10 +202,47 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
     }
   }
 
+  /**
+   * Create an intent used to search for a query in a new instance of this activity.
+   *
+   * @param query Query string (a space-separated list of tags).
+   * @return Search intent.
+   */
+  private Intent createSearchIntent(String query) {
+    final Intent intent = new Intent(SearchActivity.this, SearchActivity.class);
+    intent.setAction(Intent.ACTION_SEARCH);
+    intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClientSettings);
+    intent.putExtra(BUNDLE_ID_SEARCH_QUERY, query);
+    return intent;
+  }
+
+  /**
+   * Create an intent used to search for a query on several services in parallel in a new instance of this activity.
+   *
+   * @param query    Query string (a space-separated list of tags).
+   * @param settings Settings of the services to search.
+   * @return Search intent.
+   */
+  private Intent createFederatedSearchIntent(String query, ArrayList<SearchClient.Settings> settings) {
+    final Intent intent = createSearchIntent(query);
+    intent.putParcelableArrayListExtra(INTENT_EXTRA_FEDERATED_SEARCH_CLIENT_SETTINGS, settings);
+    return intent;
+  }
+
+  /**
+   * Check if this activity shows a search result merged from several services by a federated search.
+   * Unlike {@link #federatedSearch}, this is known right away after the activity has been recreated.
+   *
+   * @return True if the activity was started by a federated search intent.
+   */
+  private boolean isFederatedSearch() {
+    return getIntent() != null && getIntent().hasExtra(INTENT_EXTRA_FEDERATED_SEARCH_CLIENT_SETTINGS);
+  }
+
   /** Set up the {@link android.support.v7.app.ActionBar}, including the API service picker dropdown. */
   private void setUpActionBar() {
     ActionBar actionBar = getSupportActionBar();
-    ServiceDropdownAdapter serviceDropdownAdapter = new ServiceDropdownAdapter();
+    serviceDropdownAdapter = new ServiceDropdownAdapter();
     actionBar.setDisplayShowHomeEnabled(false);
     actionBar.setDisplayShowTitleEnabled(false);
     actionBar.setNavigationMode(ActionBar.NAVIGATION_MODE_LIST);
@@ -194,17 +257,54 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
   private void doSearch(String query) {
     // Show progress bar in ActionBar.
     setSupportProgressBarIndeterminateVisibility(true);
+    startSearch(query);
+  }
+
+  /**
+   * Request a {@link SearchResult} object to be fetched from the background, without showing the progress bar.
+   * Can be called before the content view is set.
+   *
+   * @param query Query string (a space-separated list of tags).
+   */
+  private void startSearch(String query) {
+    // Abort the previous search, if it's still running.
+    if (searchRequest != null) {
+      searchRequest.cancel();
+    }
     // Request a search result from the API client.
-    searchCallback = new SearchResultCallback();
-    searchClient.search(query, searchCallback);
+    searchCallback = new SearchResultCallback(query);
+    searchRequest = SearchRequest.execute(this, searchClient, query, 0, searchCallback);
+  }
+
+  /**
+   * Run the query on several services in parallel and show the merged results.
+   *
+   * @param query              Query string (a space-separated list of tags).
+   * @param settings           Settings of the services to search.
+   * @param savedInstanceState Saved instance state the search is restored from. Null to start a new search.
+   */
+  private void doFederatedSearch(String query, List<SearchClient.Settings> settings, Bundle savedInstanceState) {
+    // Abort the previous search, if it's still running.
+    if (federatedSearch != null) {
+      federatedSearch.cancel();
+    }
+    federatedSearch = new FederatedSearch(this, settings, query, ENDLESS_SCROLLING_MIN_LOOKAHEAD,
+        new FederatedSearchListener());
+    if (savedInstanceState != null) {
+      // Keep paginating each service from where it was before the activity was recreated.
+      federatedSearch.onRestoreInstanceState(savedInstanceState);
+    } else {
+      federatedSearch.start();
+    }
   }
 
   /**
    * Called when a new Search API is selected by the user from the action bar dropdown.
    *
-   * @param settings Selected {@link com.cuddlesoft.norilib.clients.SearchClient.Settings} object.
+   * @param serviceId Database row ID of the selected service.
+   * @param settings  Selected {@link com.cuddlesoft.norilib.clients.SearchClient.Settings} object.
    */
-  protected void onSearchAPISelected(SearchClient.Settings settings) {
+  protected void onSearchAPISelected(long serviceId, SearchClient.Settings settings) {
     if (settings == null) {
       // The SearchClient setting database is empty.
       return;
@@ -221,6 +321,27 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
     }
 
     searchClientSettings = settings;
+    saveSettingsSnapshot(serviceId, settings);
+
+    // Reconcile the search started from the settings snapshot on launch with the settings loaded from the database.
+    if (snapshotSettings != null) {
+      if (!isSameService(snapshotServiceId, snapshotSettings, serviceId, settings)) {
+        // The service was edited or removed since the snapshot was taken. Search again using the loaded settings.
+        if (searchRequest != null) {
+          searchRequest.cancel();
+          searchRequest = null;
+        }
+        if (searchResultPager != null) {
+          searchResultPager.cancel();
+          searchResultPager = null;
+        }
+        searchCallback = null;
+        setSupportProgressBarIndeterminateVisibility(false);
+        searchResultGridFragment.setSearchResult(null);
+        searchClient = null;
+      }
+      snapshotSettings = null;
+    }
 
     // If a SearchClient wasn't included in the Intent that started this activity, create one now and search for the default query.
     // Only do this if NSFW images would not be included in the search result.
@@ -234,6 +355,76 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
     }
   }
 
+  /**
+   * Store a snapshot of the selected service, so that the default query can be searched for on the next launch
+   * without waiting for the settings database to load. Credentials are never copied out of the database: the snapshot
+   * only records whether the service has any.
+   *
+   * @param serviceId Database row ID of the selected service.
+   * @param settings  Selected settings.
+   */
+  private void saveSettingsSnapshot(long serviceId, SearchClient.Settings settings) {
+    sharedPreferences.edit()
+        .putString(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "apiType", settings.getApiType().name())
+        .putString(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "endpoint", settings.getEndpoint())
+        .putLong(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "serviceId", serviceId)
+        .putBoolean(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "hasCredentials", hasCredentials(settings))
+        // Remove the fields stored by earlier versions.
+        .remove(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "name")
+        .remove(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "username")
+        .remove(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "password")
+        .apply();
+  }
+
+  /**
+   * Restore the snapshot of the last selected service. Its database row ID is stored in {@link #snapshotServiceId}.
+   *
+   * @return Settings of the last selected service, without a name or credentials. Null if no snapshot was stored yet,
+   * or if the service needs credentials, which are only read from the settings database.
+   */
+  private SearchClient.Settings loadSettingsSnapshot() {
+    final String apiType = sharedPreferences.getString(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "apiType", null);
+    final String endpoint = sharedPreferences.getString(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "endpoint", null);
+    if (apiType == null || endpoint == null
+        || !sharedPreferences.contains(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "serviceId")
+        || sharedPreferences.getBoolean(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "hasCredentials", true)) {
+      return null;
+    }
+    try {
+      snapshotServiceId = sharedPreferences.getLong(SHARED_PREFERENCE_SETTINGS_SNAPSHOT_PREFIX + "serviceId", -1);
+      return new SearchClient.Settings(SearchClient.Settings.APIType.valueOf(apiType), null, endpoint, null, null);
+    } catch (IllegalArgumentException e) {
+      // API type no longer supported.
+      return null;
+    }
+  }
+
+  /**
+   * Check if the service loaded from the settings database returns the same search results as the settings snapshot.
+   *
+   * @param snapshotServiceId Database row ID of the service the snapshot was taken from.
+   * @param snapshotSettings  Settings restored from the snapshot.
+   * @param serviceId         Database row ID of the loaded service.
+   * @param settings          Settings loaded from the database.
+   * @return True if both are the same database row, with the same API and endpoint, and the loaded service still has
+   * no credentials.
+   */
+  private static boolean isSameService(long snapshotServiceId, SearchClient.Settings snapshotSettings,
+                                       long serviceId, SearchClient.Settings settings) {
+    return snapshotServiceId == serviceId && snapshotSettings.getApiType() == settings.getApiType()
+        && TextUtils.equals(snapshotSettings.getEndpoint(), settings.getEndpoint()) && !hasCredentials(settings);
+  }
+
+  /**
+   * Check if a service is used with credentials.
+   *
+   * @param settings Service settings.
+   * @return True if a username or password is set.
+   */
+  private static boolean hasCredentials(SearchClient.Settings settings) {
+    return !TextUtils.isEmpty(settings.getUsername()) || !TextUtils.isEmpty(settings.getPassword());
+  }
+
   /**
    * Only load the default query on app launch if NSFW images would not be shown.
    *
@@ -255,31 +446,101 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
     // Get shared preferences.
     sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
+    // When launched without a search intent, search for the default query of the last selected service right away,
+    // in parallel with inflating the views, instead of waiting for the settings database to load.
+    // The snapshot is reconciled with the database in onSearchAPISelected().
+    Intent intent = getIntent();
+    if (savedInstanceState == null && (intent == null || !Intent.ACTION_SEARCH.equals(intent.getAction()))
+        && shouldLoadDefaultQuery()) {
+      snapshotSettings = loadSettingsSnapshot();
+      if (snapshotSettings != null) {
+        searchClient = snapshotSettings.createSearchClient();
+        startSearch(searchClient.getDefaultQuery());
+      }
+    }
+
     // Inflate views.
     setContentView(R.layout.activity_search);
+    if (searchCallback != null) {
+      // Show progress bar for the search started from the settings snapshot.
+      setSupportProgressBarIndeterminateVisibility(true);
+    }
 
     // Get search result grid fragment from fragment manager.
     searchResultGridFragment = (SearchResultGridFragment) getSupportFragmentManager().findFragmentById(R.id.fragment_searchResultGrid);
 
     // If the activity was started from a Search intent, create the SearchClient object and submit search.
-    Intent intent = getIntent();
-    if (intent != null && intent.getAction().equals(Intent.ACTION_SEARCH) && searchResultGridFragment.getSearchResult() == null) {
+    if (intent != null && intent.getAction().equals(Intent.ACTION_SEARCH)) {
       SearchClient.Settings searchClientSettings = intent.getParcelableExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS);
       searchClient = searchClientSettings.createSearchClient();
-      doSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY));
+      final List<SearchClient.Settings> federatedSearchSettings =
+          intent.getParcelableArrayListExtra(INTENT_EXTRA_FEDERATED_SEARCH_CLIENT_SETTINGS);
+      if (federatedSearchSettings != null) {
+        // The federated search is rebuilt when the activity is recreated, the merged search result can't be
+        // paginated otherwise.
+        doFederatedSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY), federatedSearchSettings, savedInstanceState);
+      } else if (searchResultGridFragment.getSearchResult() == null) {
+        doSearch(intent.getStringExtra(BUNDLE_ID_SEARCH_QUERY));
+      }
     }
 
     // Set up the dropdown API server picker.
     setUpActionBar();
   }
 
+  @Override
+  protected void onStart() {
+    super.onStart();
+
+    // Restart the search interrupted in onStop().
+    if (interruptedQuery != null) {
+      doSearch(interruptedQuery);
+      interruptedQuery = null;
+    }
+    if (federatedSearch != null) {
+      federatedSearch.resumeRequests();
+    }
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+
+    // Abort pending API requests, so that they don't compete for bandwidth with the activity now on screen.
+    // (e.g. after the user has submitted a new query)
+    if (searchRequest != null) {
+      searchRequest.cancel();
+      searchRequest = null;
+    }
+    if (searchCallback != null) {
+      interruptedQuery = searchCallback.query;
+      searchCallback = null;
+      setSupportProgressBarIndeterminateVisibility(false);
+    }
+    if (searchResultPager != null) {
+      searchResultPager.cancelRequests();
+    }
+    if (federatedSearch != null) {
+      federatedSearch.cancelRequests();
+    }
+  }
+
   @Override
   protected void onDestroy() {
     super.onDestroy();
 
-    // Cancel pending API callbacks.
-    if (searchCallback != null) {
-      searchCallback.cancel();
+    // Cancel pending API requests.
+    if (searchRequest != null) {
+      searchRequest.cancel();
+    }
+    if (searchResultPager != null) {
+      searchResultPager.cancel();
+    }
+    if (federatedSearch != null) {
+      federatedSearch.cancel();
+      if (isFinishing()) {
+        federatedSearch.removeSnapshots();
+      }
     }
   }
 
@@ -299,6 +560,10 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
       outState.putBoolean(BUNDLE_ID_SEARCH_VIEW_IS_EXPANDED, MenuItemCompat.isActionViewExpanded(searchMenuItem));
       outState.putBoolean(BUNDLE_ID_SEARCH_VIEW_IS_FOCUSED, searchView.isFocused());
     }
+    // Preserve the state of each service searched by the federated search.
+    if (federatedSearch != null) {
+      federatedSearch.onSaveInstanceState(outState);
+    }
   }
 
   @Override
@@ -319,6 +584,9 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
       case R.id.action_settings:
         startActivity(new Intent(SearchActivity.this, SettingsActivity.class));
         return true;
+      case R.id.action_federatedSearch:
+        serviceDropdownAdapter.showFederatedSearchDialog();
+        return true;
       default:
         return super.onOptionsItemSelected(item);
     }
@@ -329,117 +597,193 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
     // Open ImageViewerActivity.
     final Intent intent = new Intent(SearchActivity.this, ImageViewerActivity.class);
     intent.putExtra(BUNDLE_ID_IMAGE_INDEX, position);
-    intent.putExtra(BUNDLE_ID_SEARCH_RESULT, searchResultGridFragment.getSearchResult());
+    intent.putExtra(BUNDLE_ID_SEARCH_RESULT_HANDLE, SearchResultStore.getInstance(this).put(searchResultGridFragment.getSearchResult()));
     intent.putExtra(BUNDLE_ID_SEARCH_CLIENT_SETTINGS, searchClient.getSettings());
+    intent.putExtra(BUNDLE_ID_IS_FEDERATED_SEARCH, isFederatedSearch());
     startActivity(intent);
   }
 
   @Override
-  public void fetchMoreImages(SearchResult searchResult) {
-    // Ignore request if there is another API request pending.
+  public void onFederatedSearchServicesSelected(long[] serviceIds) {
+    // Save the selected services as a comma-separated list of database row IDs.
+    final StringBuilder stringBuilder = new StringBuilder();
+    for (long id : serviceIds) {
+      if (stringBuilder.length() > 0) {
+        stringBuilder.append(',');
+      }
+      stringBuilder.append(id);
+    }
+    sharedPreferences.edit().putString(SHARED_PREFERENCE_FEDERATED_SEARCH_SERVICES, stringBuilder.toString()).apply();
+
+    // Search the selected services for the current query. Searches submitted from the SearchView only search the
+    // service selected in the action bar, so that the selection doesn't silently apply to every later search.
+    final ArrayList<SearchClient.Settings> federatedSearchSettings = serviceDropdownAdapter.getFederatedSearchSettings();
+    if (searchClientSettings != null && federatedSearchSettings.size() > 1) {
+      final String query = searchView != null ? searchView.getQuery().toString() : "";
+      if (searchMenuItem != null) {
+        MenuItemCompat.collapseActionView(searchMenuItem);
+      }
+      startActivity(createFederatedSearchIntent(query, federatedSearchSettings));
+    }
+  }
+
+  @Override
+  public void onSearchResultScrolled(SearchResult searchResult, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    // Each service searched by a federated search is paginated by the federated search itself.
+    if (federatedSearch != null) {
+      federatedSearch.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+      return;
+    }
+    // Ignore scroll events while the first page of a new search is being fetched.
     if (searchCallback != null) {
       return;
     }
-    // Show progress bar in ActionBar.
-    setSupportProgressBarIndeterminateVisibility(true);
-    // Request search result from API client.
-    searchCallback = new SearchResultCallback(searchResult);
-    searchClient.search(Tag.stringFromArray(searchResult.getQuery()), searchResult.getCurrentOffset() + 1, searchCallback);
+    // Create a new pager when the displayed search result has changed.
+    if (searchResultPager == null || searchResultPager.getSearchResult() != searchResult) {
+      if (searchResultPager != null) {
+        searchResultPager.cancel();
+      }
+      searchResultPager = new SearchResultPager(this, searchClient, searchResult,
+          ENDLESS_SCROLLING_MIN_LOOKAHEAD, new SearchResultPagerListener());
+    }
+    // Fetch more pages ahead of the scroll position, if needed.
+    searchResultPager.onScroll(firstVisibleItem, visibleItemCount, totalItemCount);
+  }
+
+  /**
+   * Adds a new entry to the {@link SearchSuggestionDatabase} on a background thread
+   * (to prevent blocking the UI thread with database I/O).
+   *
+   * @param query Query string searched for by the user.
+   */
+  private void addSearchHistoryEntry(final String query) {
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Add query string to the database.
+        SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(SearchActivity.this);
+        searchSuggestionDatabase.insert(query);
+        searchSuggestionDatabase.close();
+      }
+    }).run();
   }
 
   /** Callback waiting for a SearchResult received on a background thread from the Search API. */
-  private class SearchResultCallback implements SearchClient.SearchCallback {
-    /** Search result to extend when fetching more images for endless scrolling. */
-    private final SearchResult searchResult;
-    /** Callback cancelled and should no longer respond to received SearchResult. */
-    private boolean isCancelled = false;
+  private class SearchResultCallback implements SearchRequest.Callback, SearchRequest.OnRevalidatedListener {
+    /** Query string searched for. */
+    private final String query;
+    /** Filtered search result shown in the grid. */
+    private SearchResult displayedResult;
 
-    /** Default constructor. */
-    public SearchResultCallback() {
-      this.searchResult = null;
+    /**
+     * Create a new SearchResultCallback.
+     *
+     * @param query Query string searched for.
+     */
+    public SearchResultCallback(String query) {
+      this.query = query;
     }
 
-    /** Constructor used to add more images to an existing SearchResult to implement endless scrolling. */
-    public SearchResultCallback(SearchResult searchResult) {
-      this.searchResult = searchResult;
+    @Override
+    public void onFailure(IOException e) {
+      // Show error message to user.
+      Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
+      // Clear callback and hide progress indicator in Action Bar.
+      setSupportProgressBarIndeterminateVisibility(false);
+      searchCallback = null;
+      searchRequest = null;
     }
 
     @Override
-    public void onFailure(IOException e) {
-      if (!isCancelled) {
-        // Show error message to user.
-        Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
-        // Clear callback and hide progress indicator in Action Bar.
-        setSupportProgressBarIndeterminateVisibility(false);
-        searchCallback = null;
+    public void onSuccess(SearchResult searchResult, int resultCount) {
+      // Clear callback and hide progress indicator in Action Bar.
+      setSupportProgressBarIndeterminateVisibility(false);
+      searchCallback = null;
+
+      // Show search result.
+      if (resultCount == 0) {
+        searchResult.onLastPage();
+      } else {
+        addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
       }
+      displayedResult = searchResult;
+      searchResultGridFragment.setSearchResult(searchResult);
     }
 
     @Override
-    public void onSuccess(SearchResult searchResult) {
-      if (!isCancelled) {
-        // Clear callback and hide progress indicator in Action Bar.
-        setSupportProgressBarIndeterminateVisibility(false);
-        searchCallback = null;
-
-        // Filter the received SearchResult.
-        final int resultCount = searchResult.getImages().length;
-        if (sharedPreferences.contains(getString(R.string.preference_nsfwFilter_key)) &&
-            !TextUtils.isEmpty(sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").trim())) {
-          // Get filter from shared preferences.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(
-              sharedPreferences.getString(getString(R.string.preference_nsfwFilter_key), "").split(" ")));
-        } else {
-          // Get default filter from resources.
-          searchResult.filter(Image.ObscenityRating.arrayFromStrings(getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues)));
-        }
-        if (sharedPreferences.contains(getString(R.string.preference_tagFilter_key))) {
-          // Get tag filters from shared preferences and filter the result.
-          searchResult.filter(Tag.arrayFromString(sharedPreferences.getString(getString(R.string.preference_tagFilter_key), "")));
-        }
+    public void onRevalidated(SearchResult searchResult, int resultCount) {
+      // Only replace the first page, if it's still shown and no more pages have been appended to it.
+      if (!isShowingFirstPage(searchResult)) {
+        return;
+      }
 
-        if (this.searchResult != null) {
-          // Set onLastPage if no more images were fetched.
-          if (resultCount == 0) {
-            this.searchResult.onLastPage();
-          } else {
-            // Extend existing search result for endless scrolling.
-            this.searchResult.addImages(searchResult.getImages(), searchResult.getCurrentOffset());
-            searchResultGridFragment.setSearchResult(this.searchResult);
-          }
-        } else {
-          // Show search result.
-          if (resultCount == 0) {
-            searchResult.onLastPage();
-          } else {
-            addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
-          }
-          searchResultGridFragment.setSearchResult(searchResult);
-        }
+      // Show the up-to-date page instead of the cached page.
+      if (resultCount == 0) {
+        searchResult.onLastPage();
+      }
+      // Stop extending the replaced page.
+      if (searchResultPager != null) {
+        searchResultPager.cancel();
+        searchResultPager = null;
       }
+      displayedResult = searchResult;
+      searchResultGridFragment.setSearchResult(searchResult);
     }
 
     /**
-     * Adds a new entry to the {@link SearchSuggestionDatabase} on a background thread
-     * (to prevent blocking the UI thread with database I/O).
+     * Check if the grid is still showing only the first page of the search result fetched by this callback.
      *
-     * @param query Query string searched for by the user.
+     * @param searchResult Up-to-date first page returned by the API.
+     * @return True if the first page can be replaced without losing images appended by endless scrolling.
      */
-    private void addSearchHistoryEntry(final String query) {
-      new Thread(new Runnable() {
-        @Override
-        public void run() {
-          // Add query string to the database.
-          SearchSuggestionDatabase searchSuggestionDatabase = new SearchSuggestionDatabase(SearchActivity.this);
-          searchSuggestionDatabase.insert(query);
-          searchSuggestionDatabase.close();
-        }
-      }).run();
+    private boolean isShowingFirstPage(SearchResult searchResult) {
+      return displayedResult != null && searchResultGridFragment.getSearchResult() == displayedResult
+          && displayedResult.getCurrentOffset() == searchResult.getCurrentOffset();
+    }
+  }
+
+  /** Listener updating the grid when more pages are fetched for endless scrolling. */
+  private class SearchResultPagerListener implements SearchResultPager.Listener {
+    @Override
+    public void onSearchResultChanged(SearchResult searchResult) {
+      searchResultGridFragment.setSearchResult(searchResult);
+    }
+
+    @Override
+    public void onPageFailed(IOException e) {
+      // Show error message to user.
+      Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_networkError), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public void onLoadingStateChanged(boolean isLoading) {
+      // Show progress indicator in Action Bar while more pages are being fetched.
+      setSupportProgressBarIndeterminateVisibility(isLoading);
+    }
+  }
+
+  /** Listener updating the grid as each service searched by the federated search responds. */
+  private class FederatedSearchListener implements FederatedSearch.Listener {
+    @Override
+    public void onSearchResultChanged(SearchResult searchResult) {
+      if (searchResultGridFragment.getSearchResult() != searchResult) {
+        // First images received from any of the services.
+        addSearchHistoryEntry(Tag.stringFromArray(searchResult.getQuery()));
+      }
+      searchResultGridFragment.setSearchResult(searchResult);
+    }
+
+    @Override
+    public void onSourceFailed(SearchClient.Settings settings, IOException e) {
+      // Show error message to user. The other services keep running.
+      Toast.makeText(SearchActivity.this, String.format(getString(R.string.toast_federatedSearchError),
+          settings.getName(), e.getLocalizedMessage()), Toast.LENGTH_LONG).show();
     }
 
-    /** Cancels this callback. */
-    public void cancel() {
-      this.isCancelled = true;
+    @Override
+    public void onLoadingStateChanged(boolean isLoading) {
+      // Show progress indicator in Action Bar while any of the services is loading.
+      setSupportProgressBarIndeterminateVisibility(isLoading);
     }
   }
 
@@ -542,13 +886,50 @@ public class SearchActivity extends ActionBarActivity implements SearchResultGri
       notifyDataSetInvalidated();
     }
 
+    /**
+     * Get the settings of the services selected for federated search.
+     *
+     * @return Settings of the selected services that still exist in the database.
+     */
+    public ArrayList<SearchClient.Settings> getFederatedSearchSettings() {
+      final ArrayList<SearchClient.Settings> settings = new ArrayList<>();
+      final String serviceIds = sharedPreferences.getString(SHARED_PREFERENCE_FEDERATED_SEARCH_SERVICES, "");
+      if (settingsList == null || serviceIds.isEmpty()) {
+        return settings;
+      }
+      for (String id : serviceIds.split(",")) {
+        for (Pair<Integer, SearchClient.Settings> pair : settingsList) {
+          if (Long.parseLong(id) == pair.first) {
+            settings.add(pair.second);
+          }
+        }
+      }
+      return settings;
+    }
+
+    /** Show a dialog used to pick the services searched by a federated search. */
+    public void showFederatedSearchDialog() {
+      final int count = getCount();
+      final String[] names = new String[count];
+      final long[] ids = new long[count];
+      final boolean[] checked = new boolean[count];
+      final List<SearchClient.Settings> selectedSettings = getFederatedSearchSettings();
+      for (int i = 0; i < count; i++) {
+        names[i] = getItem(i).getName();
+        ids[i] = getItemId(i);
+        checked[i] = selectedSettings.contains(getItem(i));
+      }
+      FederatedSearchDialogFragment.newInstance(names, ids, checked)
+          .show(getSupportFragmentManager(), FRAGMENT_TAG_FEDERATED_SEARCH_DIALOG);
+    }
+
     @Override
     public boolean onNavigationItemSelected(int position, long id) {
       // Save last active item to SharedPreferences.
       lastSelectedItem = id;
       sharedPreferences.edit().putLong(SHARED_PREFERENCE_LAST_SELECTED_INDEX, id).apply();
       // Notify parent activity.
-      onSearchAPISelected(getItem(position));
+      onSearchAPISelected(id, getItem(position));
 
       return true;
     }
@@ -0,0 +1,186 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.ActionBarActivity;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import com.cuddlesoft.nori.image.BitmapPool;
+import com.cuddlesoft.nori.image.HttpImageCache;
+import com.cuddlesoft.nori.image.ThumbnailCache;
+import com.cuddlesoft.nori.image.ThumbnailLoader;
+import com.cuddlesoft.nori.search.SearchMetrics;
+
+import java.util.List;
+import java.util.Locale;
+
+/** Debug screen showing the latency breakdown of recent searches, recorded by {@link com.cuddlesoft.nori.search.SearchMetrics}. */
+public class SearchMetricsActivity extends ActionBarActivity {
+  /** Samples shown in the list, newest first. */
+  private List<SearchMetrics.Sample> samples;
+  /** Median duration of each stage. */
+  private TextView summaryTextView;
+  /** Adapter used by the sample {@link android.widget.ListView}. */
+  private BaseAdapter sampleListAdapter = new BaseAdapter() {
+    @Override
+    public int getCount() {
+      return samples != null ? samples.size() : 0;
+    }
+
+    @Override
+    public SearchMetrics.Sample getItem(int position) {
+      return samples.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+      return position;
+    }
+
+    @Override
+    public View getView(int position, View recycledView, ViewGroup container) {
+      // Recycle old view, if possible.
+      View view = recycledView;
+      if (view == null) {
+        view = LayoutInflater.from(SearchMetricsActivity.this)
+            .inflate(android.R.layout.simple_list_item_2, container, false);
+      }
+
+      // Populate views with content.
+      final SearchMetrics.Sample sample = getItem(position);
+      final TextView title = (TextView) view.findViewById(android.R.id.text1);
+      title.setText(String.format(getString(R.string.searchMetrics_sampleTitleFormat),
+          sample.outcome, sample.apiType, sample.offset, sample.imageCount));
+      final TextView summary = (TextView) view.findViewById(android.R.id.text2);
+      summary.setText(String.format(getString(R.string.searchMetrics_sampleSummaryFormat),
+          formatDuration(sample.cacheLookupTime), formatDuration(sample.requestTime),
+          formatDuration(sample.cacheStoreTime), formatDuration(sample.filterTime),
+          formatDuration(sample.deliveryTime), formatDuration(sample.totalTime)));
+
+      return view;
+    }
+  };
+
+  @Override
+  protected void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    // Inflate layout XML.
+    setContentView(R.layout.activity_search_metrics);
+
+    // Hide the app icon and use the activity title as the home button.
+    final ActionBar actionBar = getSupportActionBar();
+    actionBar.setDisplayShowHomeEnabled(false);
+    actionBar.setDisplayShowTitleEnabled(true);
+    actionBar.setDisplayHomeAsUpEnabled(true);
+
+    // Set up the ListView adapter.
+    summaryTextView = (TextView) findViewById(R.id.summary);
+    final ListView listView = (ListView) findViewById(android.R.id.list);
+    listView.setAdapter(sampleListAdapter);
+  }
+
+  @Override
+  protected void onResume() {
+    super.onResume();
+    // Show the samples recorded while the activity was in the background.
+    updateSamples();
+  }
+
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    // Inflate menu XML.
+    getMenuInflater().inflate(R.menu.search_metrics, menu);
+    return true;
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    // Handle action bar and menu item clicks.
+    switch (item.getItemId()) {
+      case android.R.id.home:
+        onBackPressed();
+        return true;
+      case R.id.action_exportCsv:
+        export(SearchMetrics.getInstance().toCsv(), "text/csv");
+        return true;
+      case R.id.action_exportJson:
+        export(SearchMetrics.getInstance().toJson(), "application/json");
+        return true;
+      case R.id.action_clear:
+        SearchMetrics.getInstance().clear();
+        updateSamples();
+        return true;
+      default:
+        return super.onOptionsItemSelected(item);
+    }
+  }
+
+  /** Reload the samples and the median duration of each stage. */
+  private void updateSamples() {
+    final SearchMetrics searchMetrics = SearchMetrics.getInstance();
+    samples = searchMetrics.getSamples();
+    sampleListAdapter.notifyDataSetChanged();
+
+    final StringBuilder summary = new StringBuilder(getString(R.string.searchMetrics_median));
+    for (SearchMetrics.Stage stage : SearchMetrics.Stage.values()) {
+      final double median = searchMetrics.getMedian(stage);
+      if (median >= 0) {
+        summary.append('\n').append(String.format(Locale.US, getString(R.string.searchMetrics_medianFormat),
+            stage.name().toLowerCase(Locale.US), median));
+      }
+    }
+
+    // Append thumbnail cache statistics.
+    final ThumbnailLoader thumbnailLoader = ThumbnailLoader.getInstance(this);
+    final ThumbnailCache thumbnailCache = thumbnailLoader.getThumbnailCache();
+    final BitmapPool bitmapPool = thumbnailLoader.getBitmapPool();
+    final int lookupCount = thumbnailCache.getHitCount() + thumbnailCache.getMissCount();
+    summary.append("\n\n").append(String.format(Locale.US, getString(R.string.searchMetrics_thumbnailCacheFormat),
+        lookupCount > 0 ? 100d * thumbnailCache.getHitCount() / lookupCount : 0d, thumbnailCache.getHitCount(),
+        lookupCount, thumbnailCache.getEvictionCount(), bitmapPool.getHitCount(), bitmapPool.getMissCount()));
+    final HttpImageCache httpImageCache = HttpImageCache.getInstance(this);
+    final int requestCount = httpImageCache.getRequestCount();
+    summary.append('\n').append(String.format(Locale.US, getString(R.string.searchMetrics_imageDiskCacheFormat),
+        requestCount > 0 ? 100d * httpImageCache.getHitCount() / requestCount : 0d, httpImageCache.getHitCount(),
+        requestCount, httpImageCache.getSize() / (1024d * 1024d), httpImageCache.getMaxSize() / (1024d * 1024d)));
+    summaryTextView.setText(summary);
+  }
+
+  /**
+   * Send the exported samples to another app using a share intent.
+   *
+   * @param text     Exported samples.
+   * @param mimeType MIME type of the export format.
+   */
+  private void export(String text, String mimeType) {
+    final Intent intent = new Intent(Intent.ACTION_SEND);
+    intent.setType(mimeType);
+    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.activity_search_metrics));
+    intent.putExtra(Intent.EXTRA_TEXT, text);
+    startActivity(Intent.createChooser(intent, getString(R.string.searchMetrics_exportTitle)));
+  }
+
+  /**
+   * Format a stage duration for display.
+   *
+   * @param duration Duration in microseconds.
+   * @return Duration in milliseconds. A dash if the stage didn't run.
+   */
+  private static String formatDuration(long duration) {
+    return duration >= 0 ? String.format(Locale.US, "%.1f", duration / 1000d) : "–";
+  }
+}
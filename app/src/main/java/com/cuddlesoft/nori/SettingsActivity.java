@@ -45,6 +45,11 @@ public class SettingsActivity extends PreferenceActivity implements SharedPrefer
     }
 
     addPreferencesFromResource(R.xml.preferences);
+
+    // Debugging tools are only available in debug builds.
+    if (!BuildConfig.DEBUG) {
+      getPreferenceScreen().removePreference(findPreference(getString(R.string.preference_category_debug_key)));
+    }
   }
 
   @Override
@@ -0,0 +1,217 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Parcel;
+
+import com.cuddlesoft.nori.BuildConfig;
+import com.cuddlesoft.norilib.SearchResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Disk-backed cache of {@link com.cuddlesoft.norilib.SearchResult} pages, used by
+ * {@link com.cuddlesoft.nori.search.SearchResultCache}. Pages are stored as marshalled {@link android.os.Parcel}s,
+ * so entries written by a different version of the app are ignored.
+ */
+public class SearchResultCacheDatabase extends SQLiteOpenHelper {
+  /** Filename of the underlying SQLite database. */
+  private static final String DATABASE_NAME = "search_result_cache.db";
+  /** Cached page table name. */
+  private static final String TABLE_NAME = "search_result_cache";
+  /** Cache key (primary key) column. */
+  private static final String COLUMN_KEY = "cache_key";
+  /** Marshalled search result column. */
+  private static final String COLUMN_DATA = "data";
+  /** Size of the marshalled search result, in bytes. */
+  private static final String COLUMN_SIZE = "size";
+  /** Time the page was fetched from the network, in milliseconds since the epoch. */
+  private static final String COLUMN_CREATED = "created";
+  /** Time the page was last read from the cache, in milliseconds since the epoch. */
+  private static final String COLUMN_ACCESSED = "accessed";
+  /** Version code of the app that wrote the entry. */
+  private static final String COLUMN_APP_VERSION = "app_version";
+  /** Database schema version. */
+  private static final int SCHEMA_VERSION = 1;
+
+  /**
+   * Create a new search result cache database access helper.
+   *
+   * @param context Android context.
+   */
+  public SearchResultCacheDatabase(Context context) {
+    super(context, DATABASE_NAME, null, SCHEMA_VERSION);
+  }
+
+  /**
+   * Get a cached page from the database and update its last access time.
+   *
+   * @param key Cache key.
+   * @return Cached page. Null if the page is not in the cache or was written by a different version of the app.
+   */
+  public Entry get(String key) {
+    SQLiteDatabase db = getWritableDatabase();
+    Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_DATA, COLUMN_CREATED}, COLUMN_KEY + " = ? AND " + COLUMN_APP_VERSION + " = ?",
+        new String[]{key, Integer.toString(BuildConfig.VERSION_CODE)}, null, null, null, "1");
+
+    Entry entry = null;
+    if (c.moveToNext()) {
+      entry = new Entry(unmarshallSearchResult(c.getBlob(c.getColumnIndex(COLUMN_DATA))),
+          c.getLong(c.getColumnIndex(COLUMN_CREATED)));
+
+      // Update last access time used to evict least recently used entries.
+      ContentValues values = new ContentValues();
+      values.put(COLUMN_ACCESSED, System.currentTimeMillis());
+      db.update(TABLE_NAME, values, COLUMN_KEY + " = ?", new String[]{key});
+    }
+
+    // Clean up native resources.
+    c.close();
+    db.close();
+
+    return entry;
+  }
+
+  /**
+   * Insert or replace a page in the cache.
+   *
+   * @param key          Cache key.
+   * @param searchResult Search result page to store.
+   */
+  public void put(String key, SearchResult searchResult) {
+    final byte[] data = marshallSearchResult(searchResult);
+    final long now = System.currentTimeMillis();
+
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_KEY, key);
+    values.put(COLUMN_DATA, data);
+    values.put(COLUMN_SIZE, data.length);
+    values.put(COLUMN_CREATED, now);
+    values.put(COLUMN_ACCESSED, now);
+    values.put(COLUMN_APP_VERSION, BuildConfig.VERSION_CODE);
+
+    SQLiteDatabase db = getWritableDatabase();
+    db.replace(TABLE_NAME, null, values);
+    db.close();
+  }
+
+  /**
+   * Remove expired entries and evict least recently used entries until the cache fits the size limit.
+   *
+   * @param maxSize     Maximum total size of the cached pages, in bytes.
+   * @param createdTime Remove entries created before this time, in milliseconds since the epoch.
+   * @return Number of entries removed.
+   */
+  public int trim(long maxSize, long createdTime) {
+    SQLiteDatabase db = getWritableDatabase();
+
+    // Remove expired entries and entries left behind by other versions of the app.
+    int rows = db.delete(TABLE_NAME, COLUMN_CREATED + " < ? OR " + COLUMN_APP_VERSION + " != ?",
+        new String[]{Long.toString(createdTime), Integer.toString(BuildConfig.VERSION_CODE)});
+
+    // Evict least recently used entries, until the total size is within the limit.
+    Cursor c = db.query(TABLE_NAME, new String[]{COLUMN_KEY, COLUMN_SIZE}, null, null, null, null, COLUMN_ACCESSED + " DESC");
+    final List<String> evictedKeys = new ArrayList<>();
+    long totalSize = 0;
+    while (c.moveToNext()) {
+      totalSize += c.getLong(c.getColumnIndex(COLUMN_SIZE));
+      if (totalSize > maxSize) {
+        evictedKeys.add(c.getString(c.getColumnIndex(COLUMN_KEY)));
+      }
+    }
+    c.close();
+    for (String key : evictedKeys) {
+      rows += db.delete(TABLE_NAME, COLUMN_KEY + " = ?", new String[]{key});
+    }
+
+    // Clean up native resources.
+    db.close();
+
+    return rows;
+  }
+
+  /**
+   * Remove all pages from the cache.
+   *
+   * @return Number of database rows removed.
+   */
+  public int clear() {
+    SQLiteDatabase db = getWritableDatabase();
+    int rows = db.delete(TABLE_NAME, "1", null);
+    db.close();
+    return rows;
+  }
+
+  /**
+   * Serialize a {@link com.cuddlesoft.norilib.SearchResult} into a byte array.
+   *
+   * @param searchResult Search result.
+   * @return Marshalled {@link android.os.Parcel} data.
+   */
+  private static byte[] marshallSearchResult(SearchResult searchResult) {
+    Parcel parcel = Parcel.obtain();
+    searchResult.writeToParcel(parcel, 0);
+    final byte[] data = parcel.marshall();
+    parcel.recycle();
+    return data;
+  }
+
+  /**
+   * Deserialize a {@link com.cuddlesoft.norilib.SearchResult} from a byte array.
+   *
+   * @param data Marshalled {@link android.os.Parcel} data.
+   * @return Search result.
+   */
+  private static SearchResult unmarshallSearchResult(byte[] data) {
+    Parcel parcel = Parcel.obtain();
+    parcel.unmarshall(data, 0, data.length);
+    parcel.setDataPosition(0);
+    final SearchResult searchResult = SearchResult.CREATOR.createFromParcel(parcel);
+    parcel.recycle();
+    return searchResult;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    // Execute query to create the table schema.
+    db.execSQL(String.format(Locale.US, "CREATE TABLE %s (%s TEXT PRIMARY KEY, %s BLOB NOT NULL, %s INTEGER NOT NULL, %s INTEGER NOT NULL, %s INTEGER NOT NULL, %s INTEGER NOT NULL);",
+        TABLE_NAME, COLUMN_KEY, COLUMN_DATA, COLUMN_SIZE, COLUMN_CREATED, COLUMN_ACCESSED, COLUMN_APP_VERSION));
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // Cached data can always be thrown away.
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+    onCreate(db);
+  }
+
+  /** Page read from the cache. */
+  public static class Entry {
+    /** Cached search result page. */
+    public final SearchResult searchResult;
+    /** Time the page was fetched from the network, in milliseconds since the epoch. */
+    public final long createdTime;
+
+    /**
+     * Create a new cache entry.
+     *
+     * @param searchResult Cached search result page.
+     * @param createdTime  Time the page was fetched from the network, in milliseconds since the epoch.
+     */
+    public Entry(SearchResult searchResult, long createdTime) {
+      this.searchResult = searchResult;
+      this.createdTime = createdTime;
+    }
+  }
+}
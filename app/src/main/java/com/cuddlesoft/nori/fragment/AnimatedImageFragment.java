@@ -0,0 +1,120 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.fragment;
+
+import android.os.Bundle;
+
+import com.cuddlesoft.nori.image.GifDrawable;
+import com.cuddlesoft.nori.image.GifRequest;
+import com.cuddlesoft.norilib.Image;
+
+/**
+ * Fragment used to display GIF images, which may be animated.
+ * <p/>
+ * Animations are decoded as they are downloaded and played in the {@link com.ortiz.touch.TouchImageView} widget, only
+ * while the fragment is the page on screen. Static images are shown by {@link PicassoImageFragment}.
+ */
+public class AnimatedImageFragment extends PicassoImageFragment {
+  /** Streams the image and tells if it's animated. Null once the image type is known. */
+  private GifRequest gifRequest;
+  /** Animation shown. Null if the image is static, or hasn't been loaded yet. */
+  private GifDrawable gifDrawable;
+
+  /**
+   * Factory method used to construct new fragments.
+   *
+   * @param image Image object to display in the created fragment.
+   * @return New AnimatedImageFragment with the image object appended to its arguments bundle.
+   */
+  public static AnimatedImageFragment newInstance(Image image) {
+    // Create a new instance of the fragment.
+    AnimatedImageFragment fragment = new AnimatedImageFragment();
+
+    // Add the image object to the fragment's arguments Bundle.
+    Bundle arguments = new Bundle();
+    arguments.putParcelable(BUNDLE_ID_IMAGE, image);
+    fragment.setArguments(arguments);
+
+    return fragment;
+  }
+
+  /** Required public empty constructor. */
+  public AnimatedImageFragment() {
+  }
+
+  @Override
+  public void setUserVisibleHint(boolean isVisibleToUser) {
+    super.setUserVisibleHint(isVisibleToUser);
+    // Only play the animation on the page on screen.
+    updatePlayback();
+  }
+
+  @Override
+  public void onResume() {
+    super.onResume();
+    updatePlayback();
+  }
+
+  @Override
+  public void onPause() {
+    super.onPause();
+    if (gifDrawable != null) {
+      gifDrawable.stop();
+    }
+  }
+
+  @Override
+  public void onDestroyView() {
+    if (gifRequest != null) {
+      gifRequest.cancel();
+      gifRequest = null;
+    }
+    if (gifDrawable != null) {
+      imageView.setImageDrawable(null);
+      gifDrawable.recycle();
+      gifDrawable = null;
+    }
+    super.onDestroyView();
+  }
+
+  @Override
+  protected void loadImage() {
+    gifRequest = GifRequest.execute(getActivity(), image.fileUrl, new GifRequest.Callback() {
+      @Override
+      public void onAnimatedImageReady(GifDrawable drawable) {
+        gifRequest = null;
+        gifDrawable = drawable;
+        // The animation is already shown at its original resolution.
+        canFetchOriginal = false;
+        imageView.setImageDrawable(drawable);
+        // Don't show the placeholder color behind transparent images.
+        imageView.setBackgroundColor(0);
+        updatePlayback();
+      }
+
+      @Override
+      public void onStaticImage() {
+        gifRequest = null;
+        // The original has just been downloaded to the HTTP cache, so it's shown instead of fetching the sample too.
+        canFetchOriginal = false;
+        loadImage(image.fileUrl);
+      }
+    });
+  }
+
+  /** Play the animation if the fragment is the page on screen, pause it otherwise. */
+  private void updatePlayback() {
+    if (gifDrawable == null) {
+      return;
+    }
+    if (getUserVisibleHint() && isResumed()) {
+      gifDrawable.start();
+    } else {
+      gifDrawable.stop();
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.fragment;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.v4.app.DialogFragment;
+
+import com.cuddlesoft.nori.R;
+
+/** Dialog used to pick the services searched in parallel by a federated search in {@link com.cuddlesoft.nori.SearchActivity}. */
+public class FederatedSearchDialogFragment extends DialogFragment {
+  /** Identifier used for the service names in this fragment's argument bundle. */
+  private static final String BUNDLE_ID_SERVICE_NAMES = "com.cuddlesoft.nori.ServiceNames";
+  /** Identifier used for the service database row IDs in this fragment's argument bundle. */
+  private static final String BUNDLE_ID_SERVICE_IDS = "com.cuddlesoft.nori.ServiceIds";
+  /** Identifier used for the checked state of each service, in the argument bundle and the saved instance state. */
+  private static final String BUNDLE_ID_CHECKED_SERVICES = "com.cuddlesoft.nori.CheckedServices";
+  /** Activity listening for the result from this dialog. */
+  private OnServicesSelectedListener listener;
+  /** Checked state of each service. */
+  private boolean[] checkedServices;
+
+  /** Required empty constructor. */
+  public FederatedSearchDialogFragment() {
+  }
+
+  /**
+   * Factory method to create a new FederatedSearchDialogFragment.
+   *
+   * @param serviceNames    Names of the configured services.
+   * @param serviceIds      Database row IDs of the configured services.
+   * @param checkedServices Checked state of each service.
+   * @return A new instance of FederatedSearchDialogFragment.
+   */
+  public static FederatedSearchDialogFragment newInstance(String[] serviceNames, long[] serviceIds, boolean[] checkedServices) {
+    FederatedSearchDialogFragment fragment = new FederatedSearchDialogFragment();
+    Bundle arguments = new Bundle();
+    arguments.putStringArray(BUNDLE_ID_SERVICE_NAMES, serviceNames);
+    arguments.putLongArray(BUNDLE_ID_SERVICE_IDS, serviceIds);
+    arguments.putBooleanArray(BUNDLE_ID_CHECKED_SERVICES, checkedServices);
+    fragment.setArguments(arguments);
+
+    return fragment;
+  }
+
+  @Override
+  public void onAttach(Activity activity) {
+    super.onAttach(activity);
+    try {
+      listener = (OnServicesSelectedListener) activity;
+    } catch (ClassCastException e) {
+      throw new ClassCastException(activity.toString()
+          + " must implement OnServicesSelectedListener");
+    }
+  }
+
+  @Override
+  public void onDetach() {
+    super.onDetach();
+    listener = null;
+  }
+
+  @Override
+  public void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    // Preserve the checked services.
+    outState.putBooleanArray(BUNDLE_ID_CHECKED_SERVICES, checkedServices);
+  }
+
+  @Override
+  public Dialog onCreateDialog(Bundle savedInstanceState) {
+    // Extract data from the arguments bundle, or restore it from saved instance state.
+    final String[] serviceNames = getArguments().getStringArray(BUNDLE_ID_SERVICE_NAMES);
+    final long[] serviceIds = getArguments().getLongArray(BUNDLE_ID_SERVICE_IDS);
+    if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_CHECKED_SERVICES)) {
+      checkedServices = savedInstanceState.getBooleanArray(BUNDLE_ID_CHECKED_SERVICES);
+    } else {
+      checkedServices = getArguments().getBooleanArray(BUNDLE_ID_CHECKED_SERVICES);
+    }
+
+    return new AlertDialog.Builder(getActivity())
+        .setTitle(R.string.dialog_title_federatedSearch)
+        .setMultiChoiceItems(serviceNames, checkedServices, new DialogInterface.OnMultiChoiceClickListener() {
+          @Override
+          public void onClick(DialogInterface dialogInterface, int position, boolean isChecked) {
+            checkedServices[position] = isChecked;
+          }
+        })
+        .setPositiveButton(R.string.action_search, new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialogInterface, int i) {
+            // Send the row IDs of the checked services to the parent activity.
+            int checkedCount = 0;
+            for (boolean isChecked : checkedServices) {
+              if (isChecked) {
+                checkedCount++;
+              }
+            }
+            final long[] selectedIds = new long[checkedCount];
+            for (int position = 0, j = 0; position < checkedServices.length; position++) {
+              if (checkedServices[position]) {
+                selectedIds[j++] = serviceIds[position];
+              }
+            }
+            if (listener != null) {
+              listener.onFederatedSearchServicesSelected(selectedIds);
+            }
+          }
+        })
+        .setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+          @Override
+          public void onClick(DialogInterface dialogInterface, int i) {
+            dismiss();
+          }
+        }).create();
+  }
+
+  /** Interface implemented by the parent activity to receive the selected services. */
+  public static interface OnServicesSelectedListener {
+    /**
+     * Called when the user confirms the selection of services.
+     * The current query is searched on the selected services if at least two of them are selected.
+     *
+     * @param serviceIds Database row IDs of the selected services.
+     */
+    public void onFederatedSearchServicesSelected(long[] serviceIds);
+  }
+}
@@ -11,13 +11,11 @@ import android.app.DownloadManager;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.preference.PreferenceManager;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.Fragment;
 import android.support.v4.view.MenuItemCompat;
@@ -32,7 +30,6 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import com.cuddlesoft.nori.R;
-import com.cuddlesoft.nori.util.NetworkUtils;
 import com.cuddlesoft.norilib.Image;
 import com.cuddlesoft.norilib.clients.SearchClient;
 
@@ -131,19 +128,6 @@ public abstract class ImageFragment extends Fragment {
     }
   }
 
-  /**
-   * Evaluate the current network conditions using the {@link com.cuddlesoft.nori.util.NetworkUtils} class to decide
-   * if lower resolution images should be loaded to conserve bandwidth.
-   *
-   * @return True if lower resolution images should be used.
-   */
-  protected boolean shouldLoadImageSamples() {
-    SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
-
-    return preferences.getBoolean(getString(R.string.preference_image_viewer_conserveBandwidth_key), false)
-        || NetworkUtils.shouldFetchImageSamples(getActivity());
-  }
-
   /**
    * Get {@link android.content.Intent} to be sent by the {@link android.support.v7.widget.ShareActionProvider}.
    *
@@ -0,0 +1,54 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.fragment;
+
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.ProgressBar;
+
+/**
+ * Page shown by the image viewer in place of an image that is still being read back from disk by the
+ * {@link com.cuddlesoft.nori.search.ImageList}. It is replaced by an {@link ImageFragment} once the image is available.
+ */
+public class LoadingImageFragment extends Fragment {
+  /** Bundle ID of the flag telling if the image has been lost. */
+  private static final String BUNDLE_ID_IS_LOST = "com.cuddlesoft.nori.ImageLost";
+
+  /**
+   * Factory method used to construct new fragments.
+   *
+   * @param isLost True if the image could not be read back from disk, and will never be available.
+   * @return New LoadingImageFragment.
+   */
+  public static LoadingImageFragment newInstance(boolean isLost) {
+    final LoadingImageFragment fragment = new LoadingImageFragment();
+    final Bundle arguments = new Bundle();
+    arguments.putBoolean(BUNDLE_ID_IS_LOST, isLost);
+    fragment.setArguments(arguments);
+    return fragment;
+  }
+
+  /** Required public empty constructor. */
+  public LoadingImageFragment() {
+  }
+
+  @Override
+  public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+    final FrameLayout view = new FrameLayout(getActivity());
+    // Lost images are left blank.
+    if (!getArguments().getBoolean(BUNDLE_ID_IS_LOST)) {
+      view.addView(new ProgressBar(getActivity()), new FrameLayout.LayoutParams(
+          ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER));
+    }
+    return view;
+  }
+}
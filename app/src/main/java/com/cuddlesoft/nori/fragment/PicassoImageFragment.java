@@ -6,22 +6,44 @@
 
 package com.cuddlesoft.nori.fragment;
 
+import android.content.SharedPreferences;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.cuddlesoft.nori.R;
+import com.cuddlesoft.nori.image.ImageLoader;
+import com.cuddlesoft.nori.image.MemoryGovernor;
+import com.cuddlesoft.nori.image.PlaceholderColors;
+import com.cuddlesoft.nori.image.TileSourceRequest;
 import com.cuddlesoft.norilib.Image;
 import com.ortiz.touch.TouchImageView;
-import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Callback;
+
+import java.io.File;
 
 /**
  * Fragment using the {@link com.ortiz.touch.TouchImageView} widget
  * and the Picasso HTTP image loading library to display images.
+ * <p/>
+ * The sample image is always shown first. The original is only fetched once the user zooms in past the resolution of
+ * the sample, and its details are then drawn over the sample in tiles, without changing the zoom or scroll position.
  */
 public class PicassoImageFragment extends ImageFragment {
+  /** The decoded tiles of the image may use up to the {@link com.cuddlesoft.nori.image.MemoryGovernor.Budget#IMAGES} budget divided by this value. */
+  private static final int TILE_CACHE_DIVISOR = 2;
   /** Widget used to display the image. */
-  private TouchImageView imageView;
+  protected TouchImageView imageView;
+  /** Copies the original image to {@link #tileSourceFile}. Null if not requested, or once the tiles are shown. */
+  private TileSourceRequest tileSourceRequest;
+  /** File the tiles of the original image are decoded from. Deleted with the view. */
+  private File tileSourceFile;
+  /** True if the original image can be fetched when zoomed in. False if the user chose to conserve bandwidth. */
+  protected boolean canFetchOriginal;
 
   /**
    * Factory method used to construct new fragments
@@ -45,6 +67,16 @@ public class PicassoImageFragment extends ImageFragment {
   public PicassoImageFragment() {
   }
 
+  /**
+   * Get the URL an image is loaded from: the sample image, or the original if the image has no sample.
+   *
+   * @param image Image.
+   * @return Image URL.
+   */
+  public static String getImageUrl(Image image) {
+    return image.sampleUrl != null ? image.sampleUrl : image.fileUrl;
+  }
+
   @Override
   public boolean canScroll(int direction) {
     return imageView == null || imageView.canScrollHorizontallyFroyo(direction);
@@ -55,12 +87,95 @@ public class PicassoImageFragment extends ImageFragment {
     // Initialize the ImageView widget.
     imageView = new TouchImageView(getActivity());
 
-    // Load image into the view.
-    String imageUrl = shouldLoadImageSamples() ? image.sampleUrl : image.fileUrl;
-    Picasso.with(getActivity())
-        .load(imageUrl)
-        .into(imageView);
+    // Show the color of the thumbnail until the image is loaded, if the thumbnail has been loaded before.
+    imageView.setBackgroundColor(PlaceholderColors.getInstance(getActivity()).get(image));
 
+    // Fetch the details of the original when the image is zoomed in past the resolution it was loaded at.
+    final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
+    canFetchOriginal = !preferences.getBoolean(getString(R.string.preference_image_viewer_conserveBandwidth_key), false);
+    imageView.setOnTouchImageViewListener(new TouchImageView.OnTouchImageViewListener() {
+      @Override
+      public void onMove() {
+        // The tiles are cleared when the view is detached or its drawable changes, so they're requested again then.
+        if (canFetchOriginal && tileSourceRequest == null && !imageView.hasTileSource()
+            && imageView.getCurrentZoom() > 1 && imageView.getDrawableScale() > 1) {
+          loadTileSource();
+        }
+      }
+    });
+
+    loadImage();
     return imageView;
   }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+
+    // Stop decoding tiles and remove the copy of the original image.
+    if (tileSourceRequest != null) {
+      tileSourceRequest.cancel();
+      tileSourceRequest = null;
+    }
+    if (tileSourceFile != null) {
+      TileSourceRequest.deleteFile(tileSourceFile);
+      tileSourceFile = null;
+    }
+    imageView.clearTileSource();
+    imageView = null;
+  }
+
+  /** Load the image into the view. */
+  protected void loadImage() {
+    loadImage(getImageUrl(image));
+  }
+
+  /**
+   * Load the image into the view from the given URL.
+   *
+   * @param url Image URL.
+   */
+  protected void loadImage(String url) {
+    ImageLoader.getInstance(getActivity()).getPicasso()
+        .load(url)
+        .into(imageView, new Callback() {
+          @Override
+          public void onSuccess() {
+            // Don't show the placeholder color behind transparent images.
+            if (imageView != null) {
+              imageView.setBackgroundColor(0);
+            }
+          }
+
+          @Override
+          public void onError() {
+          }
+        });
+  }
+
+  /**
+   * Fetch the original image to a file in the background, and let the {@link com.ortiz.touch.TouchImageView} decode
+   * the parts of it on screen in full detail, if it is larger than the image shown.
+   */
+  private void loadTileSource() {
+    final Drawable drawable = imageView.getDrawable();
+    if (tileSourceRequest != null || drawable == null) {
+      return;
+    }
+    tileSourceRequest = TileSourceRequest.execute(getActivity(), image.fileUrl, drawable.getIntrinsicWidth(),
+        new TileSourceRequest.Callback() {
+          @Override
+          public void onTileSourceReady(File file, BitmapRegionDecoder decoder) {
+            tileSourceRequest = null;
+            // Replace the copy of the original fetched before the previous tiles were cleared.
+            if (tileSourceFile != null) {
+              TileSourceRequest.deleteFile(tileSourceFile);
+            }
+            tileSourceFile = file;
+            final MemoryGovernor memoryGovernor = MemoryGovernor.getInstance(getActivity());
+            imageView.setTileSource(file.getAbsolutePath(), decoder, memoryGovernor.getImageConfig(),
+                memoryGovernor.getBudget(MemoryGovernor.Budget.IMAGES) / TILE_CACHE_DIVISOR);
+          }
+        });
+  }
 }
@@ -7,8 +7,12 @@
 package com.cuddlesoft.nori.fragment;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Build;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.PaintDrawable;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
@@ -21,22 +25,81 @@ import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
 
+import com.cuddlesoft.nori.NoriApplication;
 import com.cuddlesoft.nori.R;
+import com.cuddlesoft.nori.image.PlaceholderColors;
+import com.cuddlesoft.nori.image.ThumbnailCache;
+import com.cuddlesoft.nori.image.ThumbnailLoader;
+import com.cuddlesoft.nori.search.ImageList;
+import com.cuddlesoft.nori.search.SearchResultStore;
 import com.cuddlesoft.nori.widget.SquareImageView;
 import com.cuddlesoft.norilib.Image;
 import com.cuddlesoft.norilib.SearchResult;
-import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.RequestCreator;
 
 /** Shows images from a {@link SearchResult} as a scrollable grid of thumbnails. */
 public class SearchResultGridFragment extends Fragment implements AdapterView.OnItemClickListener, AbsListView.OnScrollListener {
-  /** Identifier used for saving currently displayed search result in {@link #onSaveInstanceState(android.os.Bundle)}. */
-  private static final String BUNDLE_ID_SEARCH_RESULT = "com.cuddlesoft.nori.SearchResult";
+  /** Identifier used for saving the {@link com.cuddlesoft.nori.search.SearchResultStore} handle of the displayed search result in {@link #onSaveInstanceState(android.os.Bundle)}. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_HANDLE = "com.cuddlesoft.nori.SearchResult.handle";
+  /** Picasso callback recording the time it took to show the first thumbnail after the process was started. */
+  private static final Callback FIRST_THUMBNAIL_CALLBACK = new Callback() {
+    @Override
+    public void onSuccess() {
+      NoriApplication.onFirstThumbnailLoaded();
+    }
+
+    @Override
+    public void onError() {
+    }
+  };
+  /** Thumbnail sizes are rounded up to a multiple of this step, so that grids of nearly the same cell size share cached thumbnails. */
+  private static final int REQUEST_SIZE_STEP = 32;
+  /** Number of rows beyond the viewport, in scroll direction, to prefetch thumbnails for once scrolling stops. */
+  private static final int PREFETCH_ROW_COUNT = 2;
   /** Interface used for communication with parent class. */
   private OnSearchResultGridFragmentInteractionListener mListener;
   /** GridView used to display the thumbnails. */
   private GridView gridView;
   /** Search result displayed by the SearchResultGridFragment. */
   private SearchResult searchResult;
+  /** Images of {@link #searchResult}. */
+  private ImageList imageList;
+  /** Number of images the grid adapter was last notified about. */
+  private int displayedImageCount;
+  /** Column width requested from the GridView, in pixels. Read from the thumbnail size preference. */
+  private int requestedColumnWidth;
+  /** Size of the grid cells and thumbnails for the current layout. Null until computed by {@link #updateCellGeometry()}. */
+  private CellGeometry cellGeometry;
+  /** Updates the grid when the thumbnail size preference is changed. Referenced here, since listeners are only weakly referenced by SharedPreferences. */
+  private final SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+      if (getActivity() != null && getString(R.string.preference_previewSize_key).equals(key) && gridView != null) {
+        requestedColumnWidth = getGridViewColumnWidth();
+        gridView.setColumnWidth(requestedColumnWidth);
+        cellGeometry = null;
+        // Bind the visible cells again, so their thumbnails are decoded at the new size.
+        for (int i = 0; i < gridView.getChildCount(); i++) {
+          gridView.getChildAt(i).setTag(null);
+        }
+        gridAdapter.notifyDataSetChanged();
+      }
+    }
+  };
+  /** Refreshes the grid when images that were spilled to disk have been read back. */
+  private final ImageList.Listener imageListListener = new ImageList.Listener() {
+    @Override
+    public void onImagesRead() {
+      gridAdapter.notifyDataSetChanged();
+    }
+  };
+  /** Current scroll state of the GridView. One of the {@link android.widget.AbsListView.OnScrollListener} constants. */
+  private int scrollState = SCROLL_STATE_IDLE;
+  /** Index of the first visible image, used to tell the scroll direction. */
+  private int firstVisibleItem;
+  /** True if the grid was last scrolled towards the end of the search result. */
+  private boolean isScrollingDown = true;
   /** Adapter used by the GridView in this fragment. */
   private BaseAdapter gridAdapter = new BaseAdapter() {
     @Override
@@ -45,18 +108,20 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       if (searchResult == null) {
         return 0;
       }
-      return searchResult.getImages().length;
+      return displayedImageCount;
     }
 
     @Override
     public Image getItem(int position) {
       // Return image at given position.
-      return searchResult.getImages()[position];
+      return imageList.get(position);
     }
 
     @Override
     public long getItemId(int position) {
-      return Long.valueOf(getItem(position).id);
+      final Image image = getItem(position);
+      // Images still being read back from disk are identified by their position until they are available.
+      return image != null ? Long.valueOf(image.id) : position;
     }
 
     @Override
@@ -64,30 +129,28 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
       // Get image object at given position.
       Image image = getItem(position);
       // Create image view for given position.
-      ImageView imageView = (ImageView) convertView;
+      GridCell imageView = (GridCell) convertView;
 
       // Create a new image, if not recycled.
       if (imageView == null) {
-        imageView = new SquareImageView(getActivity());
+        imageView = new GridCell(getActivity());
+        imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
         imageView.setLayoutParams(new GridView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
       }
 
-      int previewSize;
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-        // Resize thumbnails to actual GridView column width on Jelly Bean and above.
-        previewSize = gridView.getColumnWidth();
-      } else {
-        // Fallback to requested column width on older versions.
-        previewSize = getGridViewColumnWidth();
+      // The GridView hands each visible cell back to the adapter when new pages are appended.
+      // Cells still showing the same image are returned untouched, so only the new cells are bound.
+      if (image != null && imageView.getTag() == image) {
+        return imageView;
       }
-
-      // Load image into view.
-      Picasso.with(getActivity())
-          .load(image.previewUrl)
-          .resize(previewSize, previewSize)
-          .centerCrop()
-          .placeholder(R.color.network_thumbnail_placeholder)
-          .into(imageView);
+      if (image == null) {
+        // The image is being read back from disk. The grid is refreshed once it's available.
+        ThumbnailLoader.getInstance(getActivity()).getPicasso().cancelRequest(imageView);
+        imageView.setImageDrawable(imageView.getPlaceholder(0));
+        imageView.setTag(null);
+        return imageView;
+      }
+      bindThumbnail(imageView, image);
 
       return imageView;
     }
@@ -97,6 +160,49 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   public SearchResultGridFragment() {
   }
 
+  /**
+   * Load the thumbnail of an image into a grid cell.
+   * During a fling, only thumbnails already in the memory cache are shown. The other cells are left blank and
+   * loaded by {@link #loadDeferredThumbnails()} once scrolling stops, since they would be off screen before their
+   * thumbnail has been downloaded.
+   *
+   * @param imageView Grid cell.
+   * @param image     Image to show in the cell.
+   */
+  private void bindThumbnail(GridCell imageView, Image image) {
+    // Recompute cell geometry only when the grid layout has changed.
+    if (cellGeometry == null || cellGeometry.gridWidth != gridView.getWidth()) {
+      updateCellGeometry();
+    }
+
+    // Pick the preview or the sample image, depending on the cell size.
+    final ThumbnailLoader thumbnailLoader = ThumbnailLoader.getInstance(getActivity());
+    final String thumbnailUri = thumbnailLoader.getThumbnailUri(image, cellGeometry.requestSize);
+    // Use the color of the thumbnail as its placeholder, if it has been loaded before.
+    final PaintDrawable placeholder = imageView.getPlaceholder(PlaceholderColors.getInstance(getActivity()).get(image));
+    if (scrollState == SCROLL_STATE_FLING && !thumbnailLoader.isCached(thumbnailUri)) {
+      // Drop the request for the image previously shown in this recycled cell.
+      thumbnailLoader.getPicasso().cancelRequest(imageView);
+      imageView.setImageDrawable(placeholder);
+      // Cells without a tag are loaded when scrolling stops.
+      imageView.setTag(null);
+      return;
+    }
+    imageView.setTag(image);
+
+    // Load image into view.
+    // Thumbnails are decoded at the cell size by the ThumbnailLoader, so they aren't resized by Picasso.
+    final RequestCreator request = thumbnailLoader.getPicasso()
+        .load(thumbnailUri)
+        .placeholder(placeholder);
+    if (NoriApplication.hasLoadedFirstThumbnail()) {
+      request.into(imageView);
+    } else {
+      // Record the startup time until the first thumbnail is shown.
+      request.into(imageView, FIRST_THUMBNAIL_CALLBACK);
+    }
+  }
+
   /**
    * Get search result displayed by this fragment.
    *
@@ -114,9 +220,43 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
   public void setSearchResult(SearchResult searchResult) {
     if (searchResult == null) {
       this.searchResult = null;
+      setImageList(null);
+      displayedImageCount = 0;
       gridAdapter.notifyDataSetInvalidated();
-    } else {
+    } else if (searchResult != this.searchResult) {
       this.searchResult = searchResult;
+      setImageList(ImageList.of(getActivity(), searchResult));
+      displayedImageCount = imageList.size();
+      gridAdapter.notifyDataSetChanged();
+    } else {
+      // Pages appended to the displayed search result.
+      notifyImagesAppended();
+    }
+  }
+
+  /**
+   * Set the images shown in the grid, and listen for images read back from disk.
+   *
+   * @param imageList Images of the search result. Null if no search result is shown.
+   */
+  private void setImageList(ImageList imageList) {
+    if (this.imageList != null) {
+      this.imageList.removeListener(imageListListener);
+    }
+    this.imageList = imageList;
+    if (imageList != null) {
+      imageList.addListener(imageListListener);
+    }
+  }
+
+  /**
+   * Notify the grid adapter about images appended to the end of the displayed search result.
+   * Does nothing if no images were added since the last notification.
+   */
+  private void notifyImagesAppended() {
+    final int imageCount = imageList.size();
+    if (imageCount != displayedImageCount) {
+      displayedImageCount = imageCount;
       gridAdapter.notifyDataSetChanged();
     }
   }
@@ -126,12 +266,18 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     // Inflate the layout for this fragment
     View view = inflater.inflate(R.layout.fragment_search_result_grid, container, false);
     // Restore SearchResult from saved instance state to preserve search results across screen rotations.
-    if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT)) {
-      searchResult = savedInstanceState.getParcelable(BUNDLE_ID_SEARCH_RESULT);
+    if (savedInstanceState != null && savedInstanceState.containsKey(BUNDLE_ID_SEARCH_RESULT_HANDLE)) {
+      searchResult = SearchResultStore.getInstance(getActivity())
+          .get(savedInstanceState.getLong(BUNDLE_ID_SEARCH_RESULT_HANDLE));
+      if (searchResult != null) {
+        setImageList(ImageList.of(getActivity(), searchResult));
+        displayedImageCount = imageList.size();
+      }
     }
     // Set adapter for GridView.
     gridView = (GridView) view.findViewById(R.id.image_grid);
-    gridView.setColumnWidth(getGridViewColumnWidth());
+    requestedColumnWidth = getGridViewColumnWidth();
+    gridView.setColumnWidth(requestedColumnWidth);
     gridView.setAdapter(gridAdapter);
     gridView.setOnScrollListener(this);
     gridView.setOnItemClickListener(this);
@@ -140,6 +286,26 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     return view;
   }
 
+  /**
+   * Compute the size of the grid cells for the current width of the GridView, the same way the GridView lays out
+   * its columns, and the size thumbnails are decoded at.
+   */
+  private void updateCellGeometry() {
+    final int gridWidth = gridView.getWidth();
+    final int availableWidth = gridWidth - gridView.getPaddingLeft() - gridView.getPaddingRight();
+    int cellSize = requestedColumnWidth;
+    if (availableWidth > 0) {
+      // Matches GridView with numColumns="auto_fit" and stretchMode="columnWidth".
+      final int spacing = getResources().getDimensionPixelSize(R.dimen.searchResultGrid_spacing);
+      final int columnCount = Math.max(1, (availableWidth + spacing) / (requestedColumnWidth + spacing));
+      cellSize = requestedColumnWidth
+          + (availableWidth - columnCount * requestedColumnWidth - (columnCount - 1) * spacing) / columnCount;
+    }
+    final int requestSize = (cellSize + REQUEST_SIZE_STEP - 1) / REQUEST_SIZE_STEP * REQUEST_SIZE_STEP;
+
+    cellGeometry = new CellGeometry(gridWidth, requestSize);
+  }
+
   /**
    * Get the grid view column size from the thumbnail size shared preference.
    *
@@ -184,34 +350,251 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     mListener = null;
   }
 
+  @Override
+  public void onResume() {
+    super.onResume();
+    // The search result may have been extended by ImageViewerActivity while this fragment was in the background.
+    if (searchResult != null) {
+      notifyImagesAppended();
+    }
+  }
+
   @Override
   public void onSaveInstanceState(Bundle outState) {
     super.onSaveInstanceState(outState);
     // Preserve currently displayed SearchResult.
+    // Only its handle is saved in the Bundle, the search result itself is written to disk in the background.
     if (searchResult != null) {
-      outState.putParcelable(BUNDLE_ID_SEARCH_RESULT, searchResult);
+      final SearchResultStore searchResultStore = SearchResultStore.getInstance(getActivity());
+      final long handle = searchResultStore.put(searchResult);
+      searchResultStore.saveSnapshot(handle);
+      outState.putLong(BUNDLE_ID_SEARCH_RESULT_HANDLE, handle);
+    }
+  }
+
+  @Override
+  public void onCreate(Bundle savedInstanceState) {
+    super.onCreate(savedInstanceState);
+    PreferenceManager.getDefaultSharedPreferences(getActivity())
+        .registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+  }
+
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+    PreferenceManager.getDefaultSharedPreferences(getActivity())
+        .unregisterOnSharedPreferenceChangeListener(preferenceChangeListener);
+    setImageList(null);
+    // Remove the search result's snapshot from disk, if it will not be needed to restore this fragment.
+    if (searchResult != null && getActivity() != null && getActivity().isFinishing()) {
+      final SearchResultStore searchResultStore = SearchResultStore.getInstance(getActivity());
+      searchResultStore.removeSnapshot(searchResultStore.put(searchResult));
     }
   }
 
   @Override
   public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-    if (mListener != null) {
+    final Image image = (Image) gridAdapter.getItem(position);
+    // Cells still waiting for their image to be read back from disk can't be opened yet.
+    if (mListener != null && image != null) {
       // Notify parent activity that image has been clicked.
-      mListener.onImageSelected((Image) gridAdapter.getItem(position), position);
+      mListener.onImageSelected(image, position);
     }
   }
 
   @Override
   public void onScrollStateChanged(AbsListView view, int scrollState) {
+    final boolean wasFlinging = this.scrollState == SCROLL_STATE_FLING;
+    this.scrollState = scrollState;
+    // Load the thumbnails skipped during the fling, now that they stay on screen.
+    if (wasFlinging && scrollState != SCROLL_STATE_FLING) {
+      loadDeferredThumbnails();
+    }
   }
 
   @Override
   public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    if (firstVisibleItem != this.firstVisibleItem) {
+      isScrollingDown = firstVisibleItem > this.firstVisibleItem;
+      this.firstVisibleItem = firstVisibleItem;
+    }
+    // Keep only the images around the viewport in memory.
+    if (imageList != null) {
+      imageList.setVisiblePosition(firstVisibleItem);
+    }
+
     // Implement endless scrolling.
-    // Fetch more images if near the end of the list and more images are available for the SearchResult.
-    if ((totalItemCount - visibleItemCount) <= (firstVisibleItem + 10) && searchResult != null
-        && searchResult.hasNextPage() && mListener != null) {
-      mListener.fetchMoreImages(searchResult);
+    // Let the parent activity decide if more images should be fetched for the SearchResult.
+    if (searchResult != null && searchResult.hasNextPage() && mListener != null) {
+      mListener.onSearchResultScrolled(searchResult, firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+  }
+
+  /**
+   * Load the thumbnails of the visible cells that were skipped during a fling, then prefetch the thumbnails of the
+   * rows just beyond the viewport, in scroll direction. Picasso handles requests in the order they are sent,
+   * so visible cells are loaded first.
+   */
+  private void loadDeferredThumbnails() {
+    if (searchResult == null || gridView == null) {
+      return;
+    }
+    final int childCount = gridView.getChildCount();
+    final int firstPosition = gridView.getFirstVisiblePosition();
+    final int imageCount = displayedImageCount;
+    for (int i = 0; i < childCount; i++) {
+      final GridCell imageView = (GridCell) gridView.getChildAt(i);
+      if (imageView.getTag() == null && firstPosition + i < imageCount) {
+        final Image image = imageList.get(firstPosition + i);
+        if (image != null) {
+          bindThumbnail(imageView, image);
+        }
+      }
+    }
+    if (childCount == 0) {
+      return;
+    }
+    if (cellGeometry == null || cellGeometry.gridWidth != gridView.getWidth()) {
+      updateCellGeometry();
+    }
+
+    // Count the cells in the first row to get the number of columns.
+    int columnCount = 1;
+    while (columnCount < childCount && gridView.getChildAt(columnCount).getTop() == gridView.getChildAt(0).getTop()) {
+      columnCount++;
+    }
+    final int prefetchCount = columnCount * PREFETCH_ROW_COUNT;
+    final ThumbnailLoader thumbnailLoader = ThumbnailLoader.getInstance(getActivity());
+    if (isScrollingDown) {
+      for (int i = firstPosition + childCount; i < Math.min(imageCount, firstPosition + childCount + prefetchCount); i++) {
+        prefetchThumbnail(thumbnailLoader, imageList.get(i), cellGeometry.requestSize);
+      }
+    } else {
+      for (int i = firstPosition - 1; i >= Math.max(0, firstPosition - prefetchCount); i--) {
+        prefetchThumbnail(thumbnailLoader, imageList.get(i), cellGeometry.requestSize);
+      }
+    }
+  }
+
+  /**
+   * Download the thumbnail of an image into the cache.
+   *
+   * @param thumbnailLoader Thumbnail loader.
+   * @param image           Image. Skipped if null, when the image is still being read back from disk.
+   * @param cellSize        Size thumbnails are decoded at, in pixels.
+   */
+  private static void prefetchThumbnail(ThumbnailLoader thumbnailLoader, Image image, int cellSize) {
+    if (image != null) {
+      thumbnailLoader.getPicasso().load(thumbnailLoader.getThumbnailUri(image, cellSize)).fetch();
+    }
+  }
+
+  /** Size of the grid cells for a given grid layout. Computed once per layout change, so binding cells doesn't need to look it up. */
+  private static class CellGeometry {
+    /** Width of the GridView the geometry was computed for, in pixels. */
+    public final int gridWidth;
+    /** Size thumbnails are decoded at, in pixels. The cell size rounded up to {@link #REQUEST_SIZE_STEP}. */
+    public final int requestSize;
+
+    /**
+     * Create a new cell geometry.
+     *
+     * @param gridWidth   Width of the GridView, in pixels.
+     * @param requestSize Size thumbnails are decoded at, in pixels.
+     */
+    public CellGeometry(int gridWidth, int requestSize) {
+      this.gridWidth = gridWidth;
+      this.requestSize = requestSize;
+    }
+  }
+
+  /** Grid cell, reusing the same placeholder drawable for every thumbnail it shows. */
+  private static class GridCell extends SquareImageView {
+    /** Placeholder shown until the thumbnail is loaded. Recolored for each thumbnail. */
+    private final PaintDrawable placeholder;
+    /** Placeholder color used for thumbnails that haven't been loaded before. */
+    private final int defaultPlaceholderColor;
+    /** Cache the shown thumbnails are retained in, so they aren't reused while this cell still shows them. */
+    private final ThumbnailCache thumbnailCache;
+    /** Thumbnail currently retained by this cell. */
+    private Bitmap retainedBitmap;
+
+    /**
+     * Create a new grid cell.
+     *
+     * @param context Android context.
+     */
+    public GridCell(Context context) {
+      super(context);
+      defaultPlaceholderColor = context.getResources().getColor(R.color.network_thumbnail_placeholder);
+      placeholder = new PaintDrawable(defaultPlaceholderColor);
+      thumbnailCache = ThumbnailLoader.getInstance(context).getThumbnailCache();
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+      super.setImageDrawable(drawable);
+      // Picasso sets thumbnails through this method, wrapped in a BitmapDrawable.
+      if (getWindowToken() != null) {
+        setRetainedBitmap(getBitmap(drawable));
+      }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+      super.onAttachedToWindow();
+      setRetainedBitmap(getBitmap(getDrawable()));
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+      super.onDetachedFromWindow();
+      // The thumbnail may be reused once released, so stop showing it and have the adapter bind the cell again.
+      ThumbnailLoader.getInstance(getContext()).getPicasso().cancelRequest(this);
+      setImageDrawable(placeholder);
+      setTag(null);
+      setRetainedBitmap(null);
+    }
+
+    /**
+     * Retain the thumbnail shown by this cell in the thumbnail cache, and release the previous one.
+     *
+     * @param bitmap Thumbnail shown. Null if the cell doesn't show a thumbnail.
+     */
+    private void setRetainedBitmap(Bitmap bitmap) {
+      // Called by the superclass constructor before the cache is set.
+      if (thumbnailCache == null || bitmap == retainedBitmap) {
+        return;
+      }
+      if (retainedBitmap != null) {
+        thumbnailCache.release(retainedBitmap);
+      }
+      retainedBitmap = bitmap;
+      if (bitmap != null) {
+        thumbnailCache.retain(bitmap);
+      }
+    }
+
+    /**
+     * Get the bitmap drawn by a drawable.
+     *
+     * @param drawable Drawable.
+     * @return Bitmap drawn by the drawable. Null if it isn't a BitmapDrawable.
+     */
+    private static Bitmap getBitmap(Drawable drawable) {
+      return drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+    }
+
+    /**
+     * Get the placeholder of this cell, set to the given color.
+     *
+     * @param color Placeholder color of the thumbnail. 0 to use the default color.
+     * @return Placeholder drawable.
+     */
+    public PaintDrawable getPlaceholder(int color) {
+      placeholder.getPaint().setColor(color != 0 ? color : defaultPlaceholderColor);
+      placeholder.invalidateSelf();
+      return placeholder;
     }
   }
 
@@ -225,12 +608,15 @@ public class SearchResultGridFragment extends Fragment implements AdapterView.On
     public void onImageSelected(Image image, int position);
 
     /**
-     * Called when the user scrolls the thumbnail {@link android.widget.GridView} near the end and more images should be fetched
-     * to implement "endless scrolling".
+     * Called when the user scrolls the thumbnail {@link android.widget.GridView} and the search result has more pages
+     * available, so that more images can be fetched ahead of time to implement "endless scrolling".
      *
-     * @param searchResult Search result for which more images should be fetched.
+     * @param searchResult     Search result for which more images can be fetched.
+     * @param firstVisibleItem Index of the first visible image.
+     * @param visibleItemCount Number of visible images.
+     * @param totalItemCount   Total number of images in the grid.
      */
-    public void fetchMoreImages(SearchResult searchResult);
+    public void onSearchResultScrolled(SearchResult searchResult, int firstVisibleItem, int visibleItemCount, int totalItemCount);
   }
 
 }
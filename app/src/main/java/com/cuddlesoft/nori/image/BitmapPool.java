@@ -0,0 +1,216 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of mutable bitmaps that are no longer displayed, reused as decoding targets ({@code inBitmap}) and as the
+ * canvas of scaled thumbnails, so that steady-state scrolling allocates almost no new bitmaps.
+ * Before KitKat, bitmaps can only be reused for decodes of the exact same size.
+ */
+public class BitmapPool implements MemoryGovernor.Trimmable {
+  /** Maximum total size of the pooled bitmaps, in bytes. */
+  private final int maxSize;
+  /** Pooled bitmaps, least recently added first. */
+  private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+  /** Total size of the pooled bitmaps, in bytes. */
+  private int size;
+  /** Number of requests served from the pool. */
+  private int hitCount;
+  /** Number of requests that needed a new bitmap to be allocated. */
+  private int missCount;
+
+  /**
+   * Create a new bitmap pool.
+   *
+   * @param maxSize Maximum total size of the pooled bitmaps, in bytes.
+   */
+  public BitmapPool(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Get a bitmap of the given size, reusing a pooled bitmap if possible. The returned bitmap is cleared.
+   *
+   * @param width  Bitmap width, in pixels.
+   * @param height Bitmap height, in pixels.
+   * @param config Bitmap configuration.
+   * @return Mutable bitmap of the given size.
+   */
+  public Bitmap get(int width, int height, Bitmap.Config config) {
+    Bitmap bitmap = remove(width, height, config);
+    if (bitmap != null) {
+      bitmap.eraseColor(0);
+      return bitmap;
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  /**
+   * Get a pooled bitmap that can be used as the {@code inBitmap} target of a decode.
+   *
+   * @param width      Width of the decoded image, in pixels, after subsampling.
+   * @param height     Height of the decoded image, in pixels, after subsampling.
+   * @param sampleSize Subsampling factor of the decode.
+   * @param config     Bitmap configuration.
+   * @return Pooled bitmap. Null if none of the pooled bitmaps can be reused.
+   */
+  public Bitmap getDecodeTarget(int width, int height, int sampleSize, Bitmap.Config config) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return removeLargeEnough(width, height, config);
+    } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && sampleSize == 1) {
+      // Only bitmaps of the exact same size can be reused before KitKat, and only if the image isn't subsampled.
+      return remove(width, height, config);
+    }
+    synchronized (this) {
+      missCount++;
+    }
+    return null;
+  }
+
+  /**
+   * Add a bitmap that is no longer displayed to the pool. The least recently added bitmaps are dropped if the pool
+   * grows over its maximum size.
+   *
+   * @param bitmap Bitmap to add. Must not be drawn anywhere after this method is called.
+   */
+  public synchronized void put(Bitmap bitmap) {
+    final int bitmapSize = getSize(bitmap);
+    if (!bitmap.isMutable() || bitmap.isRecycled() || bitmapSize > maxSize) {
+      return;
+    }
+    bitmaps.addLast(bitmap);
+    size += bitmapSize;
+    trimToSize(maxSize);
+  }
+
+  /** Drop all pooled bitmaps. */
+  public synchronized void clear() {
+    trimToSize(0);
+  }
+
+  /**
+   * Get the number of requests served from the pool.
+   *
+   * @return Number of reused bitmaps.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Get the number of requests that needed a new bitmap to be allocated.
+   *
+   * @return Number of allocated bitmaps.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Remove a pooled bitmap with the exact given size.
+   *
+   * @param width  Bitmap width, in pixels.
+   * @param height Bitmap height, in pixels.
+   * @param config Bitmap configuration.
+   * @return Pooled bitmap. Null if there is no pooled bitmap of this size.
+   */
+  private synchronized Bitmap remove(int width, int height, Bitmap.Config config) {
+    // Most recently added bitmaps are checked first.
+    final Iterator<Bitmap> iterator = bitmaps.descendingIterator();
+    while (iterator.hasNext()) {
+      final Bitmap bitmap = iterator.next();
+      if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+        iterator.remove();
+        size -= getSize(bitmap);
+        hitCount++;
+        return bitmap;
+      }
+    }
+    missCount++;
+    return null;
+  }
+
+  /**
+   * Remove the smallest pooled bitmap with enough memory allocated to hold an image of the given size.
+   *
+   * @param width  Image width, in pixels.
+   * @param height Image height, in pixels.
+   * @param config Bitmap configuration.
+   * @return Pooled bitmap. Null if none of the pooled bitmaps is large enough.
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private synchronized Bitmap removeLargeEnough(int width, int height, Bitmap.Config config) {
+    final int requiredSize = width * height * getBytesPerPixel(config);
+    Bitmap bestMatch = null;
+    for (Bitmap bitmap : bitmaps) {
+      final int allocationSize = bitmap.getAllocationByteCount();
+      if (allocationSize >= requiredSize && (bestMatch == null || allocationSize < bestMatch.getAllocationByteCount())) {
+        bestMatch = bitmap;
+      }
+    }
+    if (bestMatch == null) {
+      missCount++;
+      return null;
+    }
+    bitmaps.remove(bestMatch);
+    size -= getSize(bestMatch);
+    hitCount++;
+    return bestMatch;
+  }
+
+  /**
+   * Drop the least recently added bitmaps until the pool is below the given size.
+   * They are left to the garbage collector rather than recycled, as the pool can't tell if they are still referenced.
+   *
+   * @param maxSize Maximum total size of the pooled bitmaps, in bytes.
+   */
+  @Override
+  public synchronized void trimToSize(int maxSize) {
+    while (size > maxSize && !bitmaps.isEmpty()) {
+      size -= getSize(bitmaps.removeFirst());
+    }
+  }
+
+  /**
+   * Get the memory used by a bitmap.
+   *
+   * @param bitmap Bitmap.
+   * @return Size of the bitmap, in bytes.
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  static int getSize(Bitmap bitmap) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+      return bitmap.getAllocationByteCount();
+    }
+    return bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  /**
+   * Get the number of bytes used by each pixel in the given bitmap configuration.
+   *
+   * @param config Bitmap configuration.
+   * @return Bytes per pixel.
+   */
+  static int getBytesPerPixel(Bitmap.Config config) {
+    switch (config) {
+      case ALPHA_8:
+        return 1;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+      default:
+        return 4;
+    }
+  }
+}
@@ -0,0 +1,526 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming GIF decoder. Frames are read one at a time from the stream, so an animation can be shown while it is
+ * still being downloaded, and composited into a canvas the size of the image according to their disposal methods.
+ * Only the canvas and the color indices of the current frame are kept in memory.
+ * <p/>
+ * Not thread safe.
+ */
+public class GifDecoder {
+  /** Largest image decoded, in pixels. The canvas alone takes 4 bytes per pixel. */
+  private static final int MAX_PIXEL_COUNT = 4096 * 4096;
+  /** Number of entries in the LZW code table. */
+  private static final int MAX_CODE_COUNT = 4096;
+  /** Delay of frames with no delay or a delay of 10 ms or less, which browsers also slow down, in milliseconds. */
+  private static final int DEFAULT_DELAY = 100;
+  /** Disposal method keeping the frame in place. */
+  private static final int DISPOSAL_NONE = 1;
+  /** Disposal method clearing the frame to the background once it's been shown. */
+  private static final int DISPOSAL_BACKGROUND = 2;
+  /** Disposal method restoring the canvas to its state before the frame was drawn. */
+  private static final int DISPOSAL_PREVIOUS = 3;
+  /** Stream the image is read from. */
+  private final InputStream in;
+  /** Data sub-block buffer. */
+  private final byte[] block = new byte[255];
+  /** Global color table. Null if the image has none. */
+  private int[] globalColorTable;
+  /** Local color table of the current frame. */
+  private final int[] localColorTable = new int[256];
+  /** LZW code table: code of the string prefix. */
+  private final short[] prefix = new short[MAX_CODE_COUNT];
+  /** LZW code table: last byte of the string. */
+  private final byte[] suffix = new byte[MAX_CODE_COUNT];
+  /** Bytes of the string being output by the LZW decoder, in reverse order. */
+  private final byte[] pixelStack = new byte[MAX_CODE_COUNT + 1];
+  /** Image width, in pixels. */
+  private int width;
+  /** Image height, in pixels. */
+  private int height;
+  /** Composited frame, as ARGB colors. */
+  private int[] canvas;
+  /** Copy of the canvas, restored after frames using {@link #DISPOSAL_PREVIOUS}. Created when first needed. */
+  private int[] savedCanvas;
+  /** Color indices of the current frame. */
+  private byte[] pixels;
+  /** Disposal method of the next frame, from its graphic control extension. */
+  private int disposal;
+  /** Delay of the next frame, in milliseconds. */
+  private int delay;
+  /** True if the next frame has a transparent color. */
+  private boolean hasTransparency;
+  /** Transparent color index of the next frame. */
+  private int transparentIndex;
+  /** Disposal method of the previous frame. */
+  private int previousDisposal;
+  /** Left edge of the previous frame on the canvas. */
+  private int previousLeft;
+  /** Top edge of the previous frame on the canvas. */
+  private int previousTop;
+  /** Right edge of the previous frame on the canvas, exclusive. */
+  private int previousRight;
+  /** Bottom edge of the previous frame on the canvas, exclusive. */
+  private int previousBottom;
+  /** True if the image separator of the next frame has already been read. */
+  private boolean isFramePending;
+  /** True if the trailer has been read. */
+  private boolean isEnded;
+
+  /**
+   * Create a new GIF decoder. Call {@link #readHeader()} before reading frames.
+   *
+   * @param in Stream to read the image from.
+   */
+  public GifDecoder(InputStream in) {
+    this.in = new BufferedInputStream(in, 16 * 1024);
+  }
+
+  /**
+   * Read the header of the image.
+   *
+   * @throws IOException The stream isn't a GIF image, or could not be read.
+   */
+  public void readHeader() throws IOException {
+    if (read() != 'G' || read() != 'I' || read() != 'F') {
+      throw new IOException("Not a GIF image.");
+    }
+    // Skip the version.
+    read();
+    read();
+    read();
+
+    // Logical screen descriptor.
+    width = readShort();
+    height = readShort();
+    final int packed = read();
+    read(); // Background color index. Browsers clear frames to transparency instead.
+    read(); // Pixel aspect ratio.
+    if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXEL_COUNT) {
+      throw new IOException("Invalid image size: " + width + "x" + height);
+    }
+    if ((packed & 0x80) != 0) {
+      globalColorTable = readColorTable(new int[256], 2 << (packed & 7));
+    }
+    canvas = new int[width * height];
+    pixels = new byte[width * height];
+  }
+
+  /**
+   * Get the image width.
+   *
+   * @return Width, in pixels.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Get the image height.
+   *
+   * @return Height, in pixels.
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Check if there is another frame in the image, reading the extensions before it.
+   * Used to tell animations from static images after reading the first frame.
+   *
+   * @return True if there is another frame. False if the end of the image has been reached.
+   * @throws IOException Error reading from the stream.
+   */
+  public boolean hasNextFrame() throws IOException {
+    while (!isFramePending && !isEnded) {
+      final int blockType = read();
+      switch (blockType) {
+        case 0x2C: // Image separator.
+          isFramePending = true;
+          break;
+        case 0x21: // Extension introducer.
+          readExtension();
+          break;
+        case 0x3B: // Trailer.
+          isEnded = true;
+          break;
+        case 0x00: // Padding written by some encoders.
+          break;
+        default:
+          throw new IOException("Invalid block type: " + blockType);
+      }
+    }
+    return isFramePending;
+  }
+
+  /**
+   * Read the next frame and draw it onto the canvas.
+   *
+   * @return Delay before the next frame should be shown, in milliseconds. -1 if the end of the image has been reached.
+   * @throws IOException Error reading from the stream.
+   */
+  public int readFrame() throws IOException {
+    if (!hasNextFrame()) {
+      return -1;
+    }
+    isFramePending = false;
+
+    // Image descriptor.
+    final int frameLeft = readShort();
+    final int frameTop = readShort();
+    final int frameWidth = readShort();
+    final int frameHeight = readShort();
+    final int packed = read();
+    final boolean isInterlaced = (packed & 0x40) != 0;
+    final int[] colorTable = (packed & 0x80) != 0 ? readColorTable(localColorTable, 2 << (packed & 7)) : globalColorTable;
+    if (colorTable == null) {
+      throw new IOException("Frame has no color table.");
+    }
+    if (frameWidth * frameHeight > pixels.length) {
+      if (frameWidth * frameHeight > MAX_PIXEL_COUNT) {
+        throw new IOException("Invalid frame size: " + frameWidth + "x" + frameHeight);
+      }
+      pixels = new byte[frameWidth * frameHeight];
+    }
+
+    disposePreviousFrame();
+    if (disposal == DISPOSAL_PREVIOUS) {
+      if (savedCanvas == null) {
+        savedCanvas = new int[canvas.length];
+      }
+      System.arraycopy(canvas, 0, savedCanvas, 0, canvas.length);
+    }
+    final int pixelCount = decodePixels(frameWidth * frameHeight);
+    drawPixels(frameLeft, frameTop, frameWidth, frameHeight, isInterlaced, colorTable, pixelCount);
+
+    previousDisposal = disposal;
+    previousLeft = Math.min(frameLeft, width);
+    previousTop = Math.min(frameTop, height);
+    previousRight = Math.min(frameLeft + frameWidth, width);
+    previousBottom = Math.min(frameTop + frameHeight, height);
+    final int frameDelay = delay > 10 ? delay : DEFAULT_DELAY;
+
+    // Graphic control extensions only apply to the frame following them.
+    disposal = 0;
+    delay = 0;
+    hasTransparency = false;
+    return frameDelay;
+  }
+
+  /**
+   * Copy the canvas to a bitmap.
+   *
+   * @param bitmap Mutable bitmap the size of the image.
+   */
+  public void getFrame(Bitmap bitmap) {
+    bitmap.setPixels(canvas, 0, width, 0, 0, width, height);
+  }
+
+  /** Close the stream. Can be called from another thread to interrupt a blocked read. */
+  public void close() {
+    try {
+      in.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /** Apply the disposal method of the previous frame to the canvas. */
+  private void disposePreviousFrame() {
+    if (previousDisposal == DISPOSAL_BACKGROUND) {
+      for (int y = previousTop; y < previousBottom; y++) {
+        final int lineStart = y * width;
+        for (int x = previousLeft; x < previousRight; x++) {
+          canvas[lineStart + x] = 0;
+        }
+      }
+    } else if (previousDisposal == DISPOSAL_PREVIOUS && savedCanvas != null) {
+      System.arraycopy(savedCanvas, 0, canvas, 0, canvas.length);
+    }
+  }
+
+  /**
+   * Decode the LZW-compressed color indices of the current frame into {@link #pixels}.
+   *
+   * @param pixelCount Number of pixels in the frame.
+   * @return Number of pixels decoded. Less than pixelCount if the frame data is truncated or corrupted.
+   * @throws IOException Error reading from the stream.
+   */
+  private int decodePixels(int pixelCount) throws IOException {
+    final int minimumCodeSize = read();
+    if (minimumCodeSize < 1 || minimumCodeSize > 11) {
+      throw new IOException("Invalid LZW code size: " + minimumCodeSize);
+    }
+    final int clearCode = 1 << minimumCodeSize;
+    final int endCode = clearCode + 1;
+    for (int code = 0; code < clearCode; code++) {
+      prefix[code] = 0;
+      suffix[code] = (byte) code;
+    }
+
+    int codeSize = minimumCodeSize + 1;
+    int codeMask = (1 << codeSize) - 1;
+    int nextCode = clearCode + 2;
+    int previousCode = -1;
+    int firstByte = 0;
+    int bitBuffer = 0;
+    int bitCount = 0;
+    int blockSize = 0;
+    int blockPosition = 0;
+    int stackSize = 0;
+    int pixelIndex = 0;
+    boolean isTerminated = false;
+
+    while (pixelIndex < pixelCount) {
+      if (stackSize == 0) {
+        // Read bytes until there are enough bits for the next code.
+        if (bitCount < codeSize) {
+          if (blockPosition == blockSize) {
+            blockSize = read();
+            if (blockSize == 0) {
+              isTerminated = true;
+              break;
+            }
+            readFully(block, blockSize);
+            blockPosition = 0;
+          }
+          bitBuffer |= (block[blockPosition++] & 0xFF) << bitCount;
+          bitCount += 8;
+          continue;
+        }
+        int code = bitBuffer & codeMask;
+        bitBuffer >>>= codeSize;
+        bitCount -= codeSize;
+
+        if (code == clearCode) {
+          codeSize = minimumCodeSize + 1;
+          codeMask = (1 << codeSize) - 1;
+          nextCode = clearCode + 2;
+          previousCode = -1;
+          continue;
+        } else if (code == endCode || code > nextCode) {
+          break;
+        } else if (previousCode == -1) {
+          pixelStack[stackSize++] = suffix[code];
+          previousCode = code;
+          firstByte = code;
+        } else {
+          final int currentCode = code;
+          if (code == nextCode) {
+            // The code isn't in the table yet: it's the previous string followed by its own first byte.
+            pixelStack[stackSize++] = (byte) firstByte;
+            code = previousCode;
+          }
+          while (code > clearCode) {
+            pixelStack[stackSize++] = suffix[code];
+            code = prefix[code];
+          }
+          firstByte = suffix[code] & 0xFF;
+          pixelStack[stackSize++] = (byte) firstByte;
+
+          // Add the new string to the table. Once it's full, codes are used as they are until the next clear code.
+          if (nextCode < MAX_CODE_COUNT) {
+            prefix[nextCode] = (short) previousCode;
+            suffix[nextCode] = (byte) firstByte;
+            nextCode++;
+            if ((nextCode & codeMask) == 0 && nextCode < MAX_CODE_COUNT) {
+              codeSize++;
+              codeMask = (1 << codeSize) - 1;
+            }
+          }
+          previousCode = currentCode;
+        }
+      }
+      pixels[pixelIndex++] = pixelStack[--stackSize];
+    }
+
+    if (!isTerminated) {
+      // Skip the rest of the frame data.
+      skip(blockSize - blockPosition);
+      skipBlocks();
+    }
+    return pixelIndex;
+  }
+
+  /**
+   * Draw the decoded color indices of the current frame onto the canvas.
+   *
+   * @param frameLeft    Left edge of the frame on the canvas.
+   * @param frameTop     Top edge of the frame on the canvas.
+   * @param frameWidth   Frame width.
+   * @param frameHeight  Frame height.
+   * @param isInterlaced True if the rows of the frame are interlaced.
+   * @param colorTable   Color table of the frame.
+   * @param pixelCount   Number of decoded pixels.
+   */
+  private void drawPixels(int frameLeft, int frameTop, int frameWidth, int frameHeight, boolean isInterlaced,
+                          int[] colorTable, int pixelCount) {
+    final int drawnWidth = Math.min(frameWidth, width - frameLeft);
+    int pass = 1;
+    int increment = 8;
+    int interlacedLine = 0;
+    for (int row = 0; row < frameHeight; row++) {
+      int line = row;
+      if (isInterlaced) {
+        // Interlaced frames store every 8th row from 0, then every 8th row from 4, every 4th from 2 and every 2nd from 1.
+        while (interlacedLine >= frameHeight && pass < 4) {
+          pass++;
+          switch (pass) {
+            case 2:
+              interlacedLine = 4;
+              break;
+            case 3:
+              interlacedLine = 2;
+              increment = 4;
+              break;
+            default:
+              interlacedLine = 1;
+              increment = 2;
+              break;
+          }
+        }
+        line = interlacedLine;
+        interlacedLine += increment;
+      }
+
+      final int y = frameTop + line;
+      final int rowStart = row * frameWidth;
+      if (y >= height || drawnWidth <= 0) {
+        continue;
+      }
+      if (rowStart >= pixelCount) {
+        break;
+      }
+      final int canvasStart = y * width + frameLeft;
+      final int rowEnd = Math.min(drawnWidth, pixelCount - rowStart);
+      for (int x = 0; x < rowEnd; x++) {
+        final int index = pixels[rowStart + x] & 0xFF;
+        if (!hasTransparency || index != transparentIndex) {
+          canvas[canvasStart + x] = colorTable[index];
+        }
+      }
+    }
+  }
+
+  /**
+   * Read an extension block. Only graphic control extensions are used, all others are skipped.
+   *
+   * @throws IOException Error reading from the stream.
+   */
+  private void readExtension() throws IOException {
+    final int label = read();
+    if (label == 0xF9) {
+      final int blockSize = read();
+      final int packed = read();
+      disposal = (packed >> 2) & 7;
+      if (disposal == 0) {
+        disposal = DISPOSAL_NONE;
+      }
+      hasTransparency = (packed & 1) != 0;
+      // Delays are stored in hundredths of a second.
+      delay = readShort() * 10;
+      transparentIndex = read();
+      skip(blockSize - 4);
+    }
+    skipBlocks();
+  }
+
+  /**
+   * Read a color table.
+   *
+   * @param table      Table to fill.
+   * @param colorCount Number of colors.
+   * @return The table.
+   * @throws IOException Error reading from the stream.
+   */
+  private int[] readColorTable(int[] table, int colorCount) throws IOException {
+    for (int i = 0; i < colorCount; i++) {
+      final int r = read();
+      final int g = read();
+      final int b = read();
+      table[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+    for (int i = colorCount; i < table.length; i++) {
+      table[i] = 0;
+    }
+    return table;
+  }
+
+  /**
+   * Skip data sub-blocks, up to and including the block terminator.
+   *
+   * @throws IOException Error reading from the stream.
+   */
+  private void skipBlocks() throws IOException {
+    int blockSize;
+    while ((blockSize = read()) > 0) {
+      skip(blockSize);
+    }
+  }
+
+  /**
+   * Skip bytes.
+   *
+   * @param count Number of bytes to skip.
+   * @throws IOException Error reading from the stream.
+   */
+  private void skip(int count) throws IOException {
+    for (int i = 0; i < count; i++) {
+      read();
+    }
+  }
+
+  /**
+   * Read bytes, blocking until all of them are available.
+   *
+   * @param buffer Buffer to read into.
+   * @param count  Number of bytes to read.
+   * @throws IOException Error reading from the stream, or end of the stream reached.
+   */
+  private void readFully(byte[] buffer, int count) throws IOException {
+    int offset = 0;
+    while (offset < count) {
+      final int length = in.read(buffer, offset, count - offset);
+      if (length == -1) {
+        throw new EOFException();
+      }
+      offset += length;
+    }
+  }
+
+  /**
+   * Read a byte.
+   *
+   * @return Unsigned byte.
+   * @throws IOException Error reading from the stream, or end of the stream reached.
+   */
+  private int read() throws IOException {
+    final int b = in.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  /**
+   * Read a little-endian unsigned short.
+   *
+   * @return Unsigned short.
+   * @throws IOException Error reading from the stream, or end of the stream reached.
+   */
+  private int readShort() throws IOException {
+    return read() | (read() << 8);
+  }
+}
@@ -0,0 +1,393 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Drawable playing an animated GIF image. Frames are decoded ahead of time on a background thread into a small buffer,
+ * sized by the {@link com.cuddlesoft.nori.image.MemoryGovernor.Budget#ANIMATION_FRAMES} budget, and only while the
+ * animation is running.
+ * <p/>
+ * The first loop is decoded from the download as it streams in; later loops are decoded from the copy of the image
+ * saved to a file along the way. The download is closed if the animation is stopped during the first loop, and
+ * started over when it's restarted.
+ */
+public class GifDrawable extends Drawable implements Animatable, MemoryGovernor.Trimmable {
+  /** Tag used for logging. */
+  private static final String TAG = "GifDrawable";
+  /** Largest number of decoded frames buffered ahead of the frame shown. */
+  private static final int MAX_BUFFERED_FRAMES = 4;
+  /** Threads decoding the frames of running animations. */
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+  /** Handler used to show the next frame on the UI thread once it's been decoded. */
+  private static final Handler UI_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  /** Application context. */
+  private final Context context;
+  /** Image URL, used to download the image again if the first loop was interrupted. */
+  private final String url;
+  /** Memory governor the frame buffer is registered with. */
+  private final MemoryGovernor memoryGovernor;
+  /** Copy of the image, complete once the first loop has been decoded. */
+  private final File file;
+  /** Image width, in pixels. */
+  private final int width;
+  /** Image height, in pixels. */
+  private final int height;
+  /** Size of a decoded frame, in bytes. */
+  private final int frameSize;
+  /** Paint used to draw the frames. */
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  /** Lock guarding the frame buffer and the decoding state. */
+  private final Object lock = new Object();
+  /** Decoded frames waiting to be shown. */
+  private final ArrayDeque<Frame> readyFrames = new ArrayDeque<>();
+  /** Frames that have been shown and can be decoded into again. */
+  private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+  /**
+   * Decoder reading the image. Only used by the decoding thread, except to be closed by {@link #recycle()}.
+   * Null if the download was closed when the animation was stopped during the first loop.
+   */
+  private volatile GifDecoder decoder;
+  /** True while the first loop is decoded from the download, until the image has been copied to the file in full. */
+  private volatile boolean isStreaming = true;
+  /** Frame shown. Only used on the UI thread. */
+  private Frame currentFrame;
+  /** Number of frames allocated, including the frame shown and the frame being decoded. */
+  private int frameCount;
+  /** Number of decoded frames that may be buffered ahead of the frame shown. */
+  private int maxBufferedFrames;
+  /** True if the animation is running. */
+  private boolean isRunning;
+  /** True if the decoding thread is running. */
+  private boolean isDecoding;
+  /** True if the next frame should be shown as soon as it's decoded. */
+  private boolean isWaitingForFrame;
+  /** True if the animation could not be decoded any further. It keeps showing the last frame decoded. */
+  private boolean isFailed;
+  /** True if the drawable has been recycled. */
+  private volatile boolean isRecycled;
+
+  /**
+   * Create a new animated GIF drawable. Used by {@link com.cuddlesoft.nori.image.GifRequest}.
+   *
+   * @param context    Android context.
+   * @param url        Image URL.
+   * @param decoder    Decoder that has read the first frame of the image.
+   * @param file       File the image is being copied to by the stream the decoder is reading.
+   * @param firstFrame First frame of the image.
+   * @param firstDelay Delay of the first frame, in milliseconds.
+   */
+  GifDrawable(Context context, String url, GifDecoder decoder, File file, Bitmap firstFrame, int firstDelay) {
+    this.context = context.getApplicationContext();
+    this.url = url;
+    this.decoder = decoder;
+    this.file = file;
+    width = decoder.getWidth();
+    height = decoder.getHeight();
+    frameSize = BitmapPool.getSize(firstFrame);
+    currentFrame = new Frame(firstFrame, firstDelay);
+    frameCount = 1;
+
+    memoryGovernor = MemoryGovernor.getInstance(context);
+    maxBufferedFrames = getMaxBufferedFrames(memoryGovernor.getBudget(MemoryGovernor.Budget.ANIMATION_FRAMES));
+    memoryGovernor.register(MemoryGovernor.Budget.ANIMATION_FRAMES, this);
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    if (!isRecycled) {
+      canvas.drawBitmap(currentFrame.bitmap, null, getBounds(), paint);
+    }
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return width;
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return height;
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    paint.setAlpha(alpha);
+    invalidateSelf();
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    paint.setColorFilter(colorFilter);
+    invalidateSelf();
+  }
+
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+
+  /** Start the animation. Must be called from the UI thread. */
+  @Override
+  public void start() {
+    if (isRunning || isRecycled) {
+      return;
+    }
+    synchronized (lock) {
+      isRunning = true;
+      if (!isDecoding && !isFailed) {
+        isDecoding = true;
+        EXECUTOR.execute(decodeTask);
+      }
+    }
+    scheduleSelf(advanceTask, SystemClock.uptimeMillis() + currentFrame.delay);
+  }
+
+  /**
+   * Stop the animation on the frame shown. The decoding thread stops once it has decoded the frame it's working on,
+   * and closes the download if the first loop hasn't been downloaded in full yet.
+   */
+  @Override
+  public void stop() {
+    if (!isRunning) {
+      return;
+    }
+    synchronized (lock) {
+      isRunning = false;
+      isWaitingForFrame = false;
+      lock.notifyAll();
+    }
+    unscheduleSelf(advanceTask);
+  }
+
+  @Override
+  public boolean isRunning() {
+    return isRunning;
+  }
+
+  @Override
+  public void trimToSize(int maxSize) {
+    synchronized (lock) {
+      maxBufferedFrames = getMaxBufferedFrames(maxSize);
+      // The frame shown, and the frame being decoded, are released as they are returned to the free frames.
+      while (frameCount > maxBufferedFrames + 1 && !freeFrames.isEmpty()) {
+        freeFrames.poll().bitmap.recycle();
+        frameCount--;
+      }
+    }
+  }
+
+  /**
+   * Stop the animation, release the frames and delete the copy of the image.
+   * The drawable must not be drawn after calling this method. Must be called from the UI thread.
+   */
+  public void recycle() {
+    stop();
+    isRecycled = true;
+    memoryGovernor.unregister(this);
+    // Interrupts the decoding thread if it's waiting for the download.
+    final GifDecoder decoder = this.decoder;
+    if (decoder != null) {
+      decoder.close();
+    }
+
+    synchronized (lock) {
+      for (Frame frame : readyFrames) {
+        frame.bitmap.recycle();
+      }
+      for (Frame frame : freeFrames) {
+        frame.bitmap.recycle();
+      }
+      readyFrames.clear();
+      freeFrames.clear();
+    }
+    currentFrame.bitmap.recycle();
+
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    });
+  }
+
+  /**
+   * Get the number of frames that can be buffered ahead of the frame shown within a memory budget.
+   * At least one frame is always buffered, so the animation can keep playing.
+   *
+   * @param maxSize Memory budget, in bytes.
+   * @return Number of frames.
+   */
+  private int getMaxBufferedFrames(int maxSize) {
+    return Math.max(1, Math.min(MAX_BUFFERED_FRAMES, maxSize / frameSize - 1));
+  }
+
+  /**
+   * Get a frame to decode into, reusing a frame that has been shown if possible. Must be called with the lock held.
+   *
+   * @return Frame.
+   */
+  private Frame obtainFrame() {
+    final Frame frame = freeFrames.poll();
+    if (frame != null) {
+      return frame;
+    }
+    frameCount++;
+    return new Frame(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888), 0);
+  }
+
+  /** Decodes frames into the buffer until it's full or the animation is stopped. Runs on the decoding thread. */
+  private final Runnable decodeTask = new Runnable() {
+    @Override
+    public void run() {
+      Frame frame = null;
+      try {
+        if (decoder == null) {
+          // The download was closed when the animation was stopped during the first loop. Start it over.
+          decoder = GifRequest.openDecoder(context, url, file);
+          if (isRecycled) {
+            decoder.close();
+            throw new IOException("Drawable recycled.");
+          }
+        }
+        while (true) {
+          synchronized (lock) {
+            if (frame != null && isRecycled) {
+              frame.bitmap.recycle();
+              isDecoding = false;
+              return;
+            } else if (frame != null) {
+              readyFrames.add(frame);
+              frame = null;
+              if (isWaitingForFrame) {
+                isWaitingForFrame = false;
+                UI_THREAD_HANDLER.post(advanceTask);
+              }
+            }
+            while (isRunning && readyFrames.size() >= maxBufferedFrames) {
+              lock.wait();
+            }
+            if (!isRunning || isRecycled) {
+              isDecoding = false;
+              if (isStreaming && !isRecycled) {
+                // Don't leave the download open while the animation is stopped, the server would time it out.
+                decoder.close();
+                decoder = null;
+              }
+              return;
+            }
+            frame = obtainFrame();
+          }
+
+          int delay = decoder.readFrame();
+          if (delay == -1) {
+            // End of the loop. The stream it was read from has been copied to the file in full.
+            decoder.close();
+            decoder = new GifDecoder(new FileInputStream(file));
+            isStreaming = false;
+            if (isRecycled) {
+              decoder.close();
+              throw new IOException("Drawable recycled.");
+            }
+            decoder.readHeader();
+            delay = decoder.readFrame();
+            if (delay == -1) {
+              throw new IOException("Image has no frames.");
+            }
+          }
+          decoder.getFrame(frame.bitmap);
+          frame.delay = delay;
+        }
+      } catch (IOException | InterruptedException | RuntimeException | OutOfMemoryError e) {
+        if (!isRecycled) {
+          Log.w(TAG, "Could not decode animation frame.", e);
+        }
+        synchronized (lock) {
+          isDecoding = false;
+          isFailed = true;
+          if (frame != null) {
+            // Keep playing the frames decoded so far.
+            freeFrames.add(frame);
+            if (isRecycled) {
+              frame.bitmap.recycle();
+              freeFrames.clear();
+            }
+          }
+        }
+      }
+    }
+  };
+
+  /** Shows the next decoded frame and schedules the frame after it. Runs on the UI thread. */
+  private final Runnable advanceTask = new Runnable() {
+    @Override
+    public void run() {
+      if (!isRunning || isRecycled) {
+        return;
+      }
+      final Frame nextFrame;
+      synchronized (lock) {
+        nextFrame = readyFrames.poll();
+        if (nextFrame == null) {
+          // Show the next frame as soon as it's decoded, unless the animation can't be decoded any further.
+          isWaitingForFrame = !isFailed;
+          return;
+        }
+        if (frameCount > maxBufferedFrames + 1) {
+          // Release the frame over the budget after the memory governor trimmed the buffer.
+          currentFrame.bitmap.recycle();
+          frameCount--;
+        } else {
+          freeFrames.add(currentFrame);
+        }
+        lock.notifyAll();
+      }
+      currentFrame = nextFrame;
+      invalidateSelf();
+      scheduleSelf(this, SystemClock.uptimeMillis() + nextFrame.delay);
+    }
+  };
+
+  /** Decoded animation frame. */
+  private static class Frame {
+    /** Frame bitmap. */
+    public final Bitmap bitmap;
+    /** Delay before the next frame should be shown, in milliseconds. */
+    public int delay;
+
+    /**
+     * Create a new frame.
+     *
+     * @param bitmap Frame bitmap.
+     * @param delay  Delay before the next frame should be shown, in milliseconds.
+     */
+    public Frame(Bitmap bitmap, int delay) {
+      this.bitmap = bitmap;
+      this.delay = delay;
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a GIF image from the {@link com.cuddlesoft.nori.image.HttpImageCache} (or the network, if it isn't cached) on
+ * a background thread, and tells animations from static images by decoding the image until it either finds a second
+ * frame or reaches the end.
+ * <p/>
+ * Animations are delivered as a {@link com.cuddlesoft.nori.image.GifDrawable} as soon as their first frame is
+ * decoded, and keep being decoded from the download as they play. Static images, and images that can't be decoded,
+ * are left to the regular bitmap decoders.
+ */
+public class GifRequest implements Runnable {
+  /** Tag used for logging. */
+  private static final String TAG = "GifRequest";
+  /** Name of the directory the animations are copied to, in the app's cache directory. */
+  private static final String GIF_DIRECTORY = "gifs";
+  /** Worker threads running the requests. */
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+  /** Handler used to deliver the results to the UI thread. */
+  private static final Handler UI_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  /** Directory the animations are copied to. Cleared of files left by previous processes when first used. */
+  private static File gifDirectory;
+  /** Application context. */
+  private final Context context;
+  /** Image URL. */
+  private final String url;
+  /** Callback notified on the UI thread when the image type is known. */
+  private final Callback callback;
+  /** Future used to interrupt the worker thread when the request is cancelled. */
+  private Future<?> future;
+  /** True if the request was cancelled. */
+  private volatile boolean isCancelled;
+
+  /**
+   * Create a new GIF request. Use {@link #execute(android.content.Context, String, Callback)} instead.
+   *
+   * @param context  Android context.
+   * @param url      Image URL.
+   * @param callback Callback notified on the UI thread when the image type is known.
+   */
+  private GifRequest(Context context, String url, Callback callback) {
+    this.context = context.getApplicationContext();
+    this.url = url;
+    this.callback = callback;
+  }
+
+  /**
+   * Start streaming a GIF image on a background thread.
+   *
+   * @param context  Android context.
+   * @param url      Image URL.
+   * @param callback Callback notified on the UI thread when the image type is known.
+   * @return Handle used to cancel the request.
+   */
+  public static GifRequest execute(Context context, String url, Callback callback) {
+    final GifRequest request = new GifRequest(context, url, callback);
+    request.future = EXECUTOR.submit(request);
+    return request;
+  }
+
+  /**
+   * Cancel the request. The callback will not be notified after calling this method.
+   * Must be called from the UI thread.
+   */
+  public void cancel() {
+    isCancelled = true;
+    future.cancel(true);
+  }
+
+  @Override
+  public void run() {
+    File file = null;
+    GifDecoder decoder = null;
+    try {
+      file = File.createTempFile("gif", null, getGifDirectory(context));
+      final InputStream stream = openStream(context, url);
+      decoder = new GifDecoder(new TeeInputStream(stream, new FileOutputStream(file)));
+      decoder.readHeader();
+      final int firstDelay = decoder.readFrame();
+      if (firstDelay == -1) {
+        throw new IOException("Image has no frames.");
+      }
+
+      if (isCancelled || !decoder.hasNextFrame()) {
+        // Let the regular bitmap decoders show static images, from the HTTP cache once the response is read in full.
+        if (!isCancelled) {
+          drain(stream);
+        }
+        decoder.close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        deliverStaticImage();
+        return;
+      }
+      final Bitmap firstFrame = Bitmap.createBitmap(decoder.getWidth(), decoder.getHeight(), Bitmap.Config.ARGB_8888);
+      decoder.getFrame(firstFrame);
+      deliverAnimatedImage(new GifDrawable(context, url, decoder, file, firstFrame, firstDelay));
+    } catch (IOException | RuntimeException | OutOfMemoryError e) {
+      // Malformed images may also make the decoder throw runtime exceptions, which would be lost in the executor.
+      if (!isCancelled) {
+        Log.w(TAG, "Could not decode animated image: " + url, e);
+      }
+      if (decoder != null) {
+        decoder.close();
+      }
+      if (file != null) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+      deliverStaticImage();
+    }
+  }
+
+  /**
+   * Open a decoder streaming an image from the shared HTTP cache, or the network, and copying it to a file.
+   * Used by {@link com.cuddlesoft.nori.image.GifDrawable} to download the image again after its first loop has been
+   * interrupted.
+   *
+   * @param context Android context.
+   * @param url     Image URL.
+   * @param file    File the image is copied to. Overwritten.
+   * @return Decoder that has read the header of the image.
+   * @throws IOException Error requesting or decoding the image.
+   */
+  static GifDecoder openDecoder(Context context, String url, File file) throws IOException {
+    final GifDecoder decoder = new GifDecoder(new TeeInputStream(openStream(context, url), new FileOutputStream(file)));
+    try {
+      decoder.readHeader();
+    } catch (IOException | RuntimeException e) {
+      decoder.close();
+      throw e;
+    }
+    return decoder;
+  }
+
+  /**
+   * Open the image stream, using the shared HTTP cache.
+   *
+   * @param context Android context.
+   * @param url     Image URL.
+   * @return Image stream.
+   * @throws IOException Error requesting the image.
+   */
+  private static InputStream openStream(Context context, String url) throws IOException {
+    final Request request = new Request.Builder()
+        .url(url)
+        .header("Cache-Control", "max-stale=" + ImageDownloader.MAX_STALE)
+        .build();
+    final Response response = HttpImageCache.getInstance(context).getClient().newCall(request).execute();
+    if (!response.isSuccessful()) {
+      response.body().close();
+      throw new IOException("Unexpected response code: " + response.code());
+    }
+    return response.body().byteStream();
+  }
+
+  /**
+   * Read a stream to its end.
+   *
+   * @param stream Stream.
+   * @throws IOException Error reading from the stream.
+   */
+  private static void drain(InputStream stream) throws IOException {
+    final byte[] buffer = new byte[8192];
+    //noinspection StatementWithEmptyBody
+    while (stream.read(buffer) != -1) {
+    }
+  }
+
+  /**
+   * Deliver an animation to the callback on the UI thread, or recycle it if the request was cancelled in the meantime.
+   *
+   * @param drawable Animation.
+   */
+  private void deliverAnimatedImage(final GifDrawable drawable) {
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        if (isCancelled) {
+          drawable.recycle();
+        } else {
+          callback.onAnimatedImageReady(drawable);
+        }
+      }
+    });
+  }
+
+  /** Tell the callback on the UI thread that the image should be shown as a static image. */
+  private void deliverStaticImage() {
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!isCancelled) {
+          callback.onStaticImage();
+        }
+      }
+    });
+  }
+
+  /**
+   * Get the directory the animations are copied to, deleting the files left by previous processes when first called.
+   *
+   * @param context Android context.
+   * @return Directory.
+   */
+  private static synchronized File getGifDirectory(Context context) {
+    if (gifDirectory == null) {
+      gifDirectory = new File(context.getCacheDir(), GIF_DIRECTORY);
+      final File[] leftoverFiles = gifDirectory.listFiles();
+      if (leftoverFiles != null) {
+        for (File file : leftoverFiles) {
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
+      //noinspection ResultOfMethodCallIgnored
+      gifDirectory.mkdirs();
+    }
+    return gifDirectory;
+  }
+
+  /** Input stream copying everything read from it to an output stream. */
+  private static class TeeInputStream extends FilterInputStream {
+    /** Stream the data read is copied to. */
+    private final OutputStream out;
+
+    /**
+     * Create a new tee input stream.
+     *
+     * @param in  Stream to read from.
+     * @param out Stream the data read is copied to. Closed with this stream.
+     */
+    public TeeInputStream(InputStream in, OutputStream out) {
+      super(in);
+      this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+      if (b != -1) {
+        out.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      final int length = super.read(buffer, offset, count);
+      if (length > 0) {
+        out.write(buffer, offset, length);
+      }
+      return length;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      // Skipped data must be copied too.
+      final byte[] buffer = new byte[(int) Math.min(count, 8192)];
+      final int length = read(buffer, 0, buffer.length);
+      return Math.max(length, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /** Callback notified when the type of a GIF image is known. */
+  public static interface Callback {
+    /**
+     * Called on the UI thread when the first frame of an animation has been decoded.
+     * The callback is responsible for recycling the drawable with {@link GifDrawable#recycle()}.
+     *
+     * @param drawable Animation. Keeps decoding frames from the download while it's running.
+     */
+    public void onAnimatedImageReady(GifDrawable drawable);
+
+    /** Called on the UI thread if the image is static, or can't be decoded as an animation. */
+    public void onStaticImage();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.os.StatFs;
+import android.util.Log;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.OkHttpClient;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * HTTP client with a persistent, size-budgeted response cache, shared by the thumbnails in the search result grid
+ * and the images in the image viewer. Images never change once posted, so cached responses are used without being
+ * revalidated with the server (see {@link com.cuddlesoft.nori.image.ImageDownloader}).
+ */
+public class HttpImageCache {
+  /** Tag used for logging. */
+  private static final String TAG = "HttpImageCache";
+  /** Name of the cache directory, in the app's cache directory. */
+  private static final String CACHE_DIRECTORY = "images";
+  /** Minimum size of the cache, in bytes. */
+  private static final long MIN_CACHE_SIZE = 10 * 1024 * 1024;
+  /** Maximum size of the cache, in bytes. */
+  private static final long MAX_CACHE_SIZE = 100 * 1024 * 1024;
+  /** Fraction of the free storage space the cache can use, between the minimum and the maximum size. */
+  private static final int FREE_SPACE_DIVISOR = 20;
+  /** Shared instance. */
+  private static HttpImageCache instance;
+  /** HTTP client used to download images. */
+  private final OkHttpClient client = new OkHttpClient();
+  /** HTTP response cache. Null if the cache directory could not be opened. */
+  private final Cache cache;
+
+  /**
+   * Create a new HttpImageCache. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private HttpImageCache(Context context) {
+    final File cacheDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+    Cache cache = null;
+    try {
+      //noinspection ResultOfMethodCallIgnored
+      cacheDirectory.mkdirs();
+      cache = new Cache(cacheDirectory, getCacheSize(cacheDirectory));
+      client.setCache(cache);
+    } catch (IOException e) {
+      // Images are still downloaded, just not cached on disk.
+      Log.w(TAG, "Could not open image cache.", e);
+    }
+    this.cache = cache;
+  }
+
+  /**
+   * Get the shared HttpImageCache instance.
+   *
+   * @param context Android context.
+   * @return Shared HttpImageCache instance.
+   */
+  public static synchronized HttpImageCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new HttpImageCache(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Get the HTTP client using the shared response cache.
+   *
+   * @return HTTP client.
+   */
+  public OkHttpClient getClient() {
+    return client;
+  }
+
+  /**
+   * Get the number of HTTP requests sent through the cache.
+   *
+   * @return Request count. 0 if the cache is disabled.
+   */
+  public int getRequestCount() {
+    return cache != null ? cache.getRequestCount() : 0;
+  }
+
+  /**
+   * Get the number of HTTP requests served from the cache.
+   *
+   * @return Hit count. 0 if the cache is disabled.
+   */
+  public int getHitCount() {
+    return cache != null ? cache.getHitCount() : 0;
+  }
+
+  /**
+   * Get the number of HTTP requests that needed a network round trip.
+   *
+   * @return Network count. 0 if the cache is disabled.
+   */
+  public int getNetworkCount() {
+    return cache != null ? cache.getNetworkCount() : 0;
+  }
+
+  /**
+   * Get the size of the cached responses.
+   *
+   * @return Cache size, in bytes. 0 if the cache is disabled or its size could not be read.
+   */
+  public long getSize() {
+    try {
+      return cache != null ? cache.getSize() : 0;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Get the maximum size of the cache.
+   *
+   * @return Maximum cache size, in bytes. 0 if the cache is disabled.
+   */
+  public long getMaxSize() {
+    return cache != null ? cache.getMaxSize() : 0;
+  }
+
+  /**
+   * Compute the cache size from the free space on the storage holding the cache directory.
+   *
+   * @param cacheDirectory Cache directory.
+   * @return Cache size, in bytes.
+   */
+  @SuppressWarnings("deprecation")
+  private static long getCacheSize(File cacheDirectory) {
+    long size = MIN_CACHE_SIZE;
+    try {
+      final StatFs statFs = new StatFs(cacheDirectory.getAbsolutePath());
+      size = (long) statFs.getAvailableBlocks() * statFs.getBlockSize() / FREE_SPACE_DIVISOR;
+    } catch (IllegalArgumentException ignored) {
+      // Fall back to the minimum size.
+    }
+    return Math.max(MIN_CACHE_SIZE, Math.min(size, MAX_CACHE_SIZE));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picasso memory cache used for the images shown in the image viewer, sized by the
+ * {@link com.cuddlesoft.nori.image.MemoryGovernor} and trimmed by it when memory is low.
+ */
+public class ImageCache implements Cache, MemoryGovernor.Trimmable {
+  /** Cached images. */
+  private final LruCache<String, Bitmap> lruCache;
+  /** Number of cached images. Kept up to date as images are added and removed, rather than counted on each call. */
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Create a new image cache.
+   *
+   * @param maxSize Maximum size of the cached images, in bytes.
+   */
+  public ImageCache(int maxSize) {
+    lruCache = new LruCache<String, Bitmap>(maxSize) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return BitmapPool.getSize(bitmap);
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        // Images replaced by a new image for the same key are still counted.
+        if (newValue == null) {
+          count.decrementAndGet();
+        }
+      }
+    };
+  }
+
+  @Override
+  public Bitmap get(String key) {
+    return lruCache.get(key);
+  }
+
+  @Override
+  public void set(String key, Bitmap bitmap) {
+    if (lruCache.put(key, bitmap) == null) {
+      count.incrementAndGet();
+    }
+  }
+
+  @Override
+  public int size() {
+    return lruCache.size();
+  }
+
+  @Override
+  public int maxSize() {
+    return lruCache.maxSize();
+  }
+
+  @Override
+  public void clear() {
+    lruCache.evictAll();
+  }
+
+  /**
+   * Get the average size of the cached images, used to estimate how many images fit in the cache.
+   *
+   * @return Average image size, in bytes. 0 if the cache is empty.
+   */
+  public int getAverageImageSize() {
+    final int count = this.count.get();
+    return count > 0 ? lruCache.size() / count : 0;
+  }
+
+  @Override
+  public void trimToSize(int maxSize) {
+    lruCache.trimToSize(maxSize);
+  }
+}
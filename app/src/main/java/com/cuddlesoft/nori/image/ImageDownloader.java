@@ -0,0 +1,41 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.squareup.picasso.OkHttpDownloader;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Picasso downloader using the shared {@link com.cuddlesoft.nori.image.HttpImageCache}.
+ * Cached images are used without asking the server if they are still fresh, since images never change once posted.
+ */
+class ImageDownloader extends OkHttpDownloader {
+  /** Maximum age of a cached image used without revalidation, in seconds. */
+  static final int MAX_STALE = 30 * 24 * 60 * 60;
+
+  /**
+   * Create a new image downloader.
+   *
+   * @param context Android context.
+   */
+  public ImageDownloader(Context context) {
+    super(HttpImageCache.getInstance(context).getClient());
+  }
+
+  @Override
+  protected HttpURLConnection openConnection(Uri uri) throws IOException {
+    final HttpURLConnection connection = super.openConnection(uri);
+    // Picasso replaces this header with its own when only the cache may be used.
+    connection.setRequestProperty("Cache-Control", "max-stale=" + MAX_STALE);
+    return connection;
+  }
+}
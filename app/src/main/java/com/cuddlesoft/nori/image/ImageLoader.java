@@ -0,0 +1,71 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+
+import com.squareup.picasso.Picasso;
+
+/**
+ * Picasso instance used to load images in the image viewer. Shares the
+ * {@link com.cuddlesoft.nori.image.HttpImageCache} with the search result grid. Images are decoded subsampled and
+ * cached within the budget assigned by the {@link com.cuddlesoft.nori.image.MemoryGovernor}.
+ */
+public class ImageLoader {
+  /** Shared instance. */
+  private static ImageLoader instance;
+  /** Memory cache used by {@link #picasso}. */
+  private final ImageCache imageCache;
+  /** Picasso instance used to load images. */
+  private final Picasso picasso;
+
+  /**
+   * Create a new image loader. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private ImageLoader(Context context) {
+    final MemoryGovernor memoryGovernor = MemoryGovernor.getInstance(context);
+    imageCache = new ImageCache(memoryGovernor.getBudget(MemoryGovernor.Budget.IMAGES));
+    memoryGovernor.register(MemoryGovernor.Budget.IMAGES, imageCache);
+    picasso = new Picasso.Builder(context)
+        .downloader(new ScaledImageDownloader(context))
+        .memoryCache(imageCache)
+        .build();
+  }
+
+  /**
+   * Get the shared ImageLoader instance.
+   *
+   * @param context Android context.
+   * @return Shared ImageLoader instance.
+   */
+  public static synchronized ImageLoader getInstance(Context context) {
+    if (instance == null) {
+      instance = new ImageLoader(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Get the memory cache holding the decoded images.
+   *
+   * @return Image cache.
+   */
+  public ImageCache getImageCache() {
+    return imageCache;
+  }
+
+  /**
+   * Get the Picasso instance used to load images in the image viewer.
+   *
+   * @return Picasso instance.
+   */
+  public Picasso getPicasso() {
+    return picasso;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.util.DisplayMetrics;
+
+import com.cuddlesoft.nori.util.NetworkUtils;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Target;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads and decodes the images around the one shown in the image viewer into the
+ * {@link com.cuddlesoft.nori.image.ImageCache}, so they can be shown as soon as they are swiped to.
+ * <p/>
+ * The number of images prefetched depends on the network and on how many images fit in the cache. Requests for images
+ * that fall out of the prefetch window are cancelled.
+ */
+public class ImagePrefetcher {
+  /** Number of images prefetched in the swipe direction on fast, unmetered networks. */
+  private static final int FAST_NETWORK_LOOKAHEAD = 3;
+  /** Number of images prefetched against the swipe direction on fast, unmetered networks. */
+  private static final int FAST_NETWORK_LOOKBEHIND = 1;
+  /** Number of images prefetched in the swipe direction on slow or metered networks. */
+  private static final int SLOW_NETWORK_LOOKAHEAD = 1;
+  /** Number of images prefetched against the swipe direction on slow or metered networks. */
+  private static final int SLOW_NETWORK_LOOKBEHIND = 0;
+  /** Largest number of images prefetched in the swipe direction. */
+  public static final int MAX_LOOKAHEAD = FAST_NETWORK_LOOKAHEAD;
+  /** Largest number of images prefetched against the swipe direction. */
+  public static final int MAX_LOOKBEHIND = FAST_NETWORK_LOOKBEHIND;
+  /** Android context. */
+  private final Context context;
+  /** Picasso instance used to load images in the image viewer. */
+  private final Picasso picasso;
+  /** Memory cache the images are prefetched into. */
+  private final ImageCache imageCache;
+  /** Size of an image covering the screen, in bytes. Used to estimate the cache capacity until it holds images. */
+  private final int screenImageSize;
+  /** Targets of the pending requests, by image URL. Picasso only keeps weak references to its targets. */
+  private final Map<String, Target> targets = new HashMap<>();
+
+  /**
+   * Create a new image prefetcher.
+   *
+   * @param context Android context.
+   */
+  public ImagePrefetcher(Context context) {
+    this.context = context;
+    final ImageLoader imageLoader = ImageLoader.getInstance(context);
+    picasso = imageLoader.getPicasso();
+    imageCache = imageLoader.getImageCache();
+    final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    screenImageSize = displayMetrics.widthPixels * displayMetrics.heightPixels
+        * BitmapPool.getBytesPerPixel(MemoryGovernor.getInstance(context).getImageConfig());
+  }
+
+  /**
+   * Prefetch the images around the one shown, cancelling the pending requests for images that are no longer needed.
+   * Only as many images as the network and the cache allow are prefetched.
+   *
+   * @param urlsAhead  URLs of the images in the swipe direction, nearest first. Up to {@link #MAX_LOOKAHEAD} URLs.
+   *                   Null for images that shouldn't be prefetched.
+   * @param urlsBehind URLs of the images against the swipe direction, nearest first. Up to {@link #MAX_LOOKBEHIND}
+   *                   URLs. Null for images that shouldn't be prefetched.
+   */
+  public void prefetch(List<String> urlsAhead, List<String> urlsBehind) {
+    // The network and the cache are only checked once per page change.
+    final boolean isNetworkFast = NetworkUtils.isNetworkFastAndUnmetered(context);
+    final int capacity = getCapacity();
+    final int lookahead = getLookahead(isNetworkFast, capacity);
+    final int lookbehind = getLookbehind(isNetworkFast, capacity, lookahead);
+    final List<String> urls = new ArrayList<>(lookahead + lookbehind);
+    urls.addAll(urlsAhead.subList(0, Math.min(lookahead, urlsAhead.size())));
+    urls.addAll(urlsBehind.subList(0, Math.min(lookbehind, urlsBehind.size())));
+
+    // Cancel requests that fell out of the prefetch window.
+    final Iterator<Map.Entry<String, Target>> it = targets.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, Target> entry = it.next();
+      if (!urls.contains(entry.getKey())) {
+        picasso.cancelRequest(entry.getValue());
+        it.remove();
+      }
+    }
+
+    for (String url : urls) {
+      if (url != null && !targets.containsKey(url)) {
+        // The target is added before the request is made, as cached images are delivered immediately.
+        final Target target = new PrefetchTarget(url);
+        targets.put(url, target);
+        picasso.load(url).into(target);
+      }
+    }
+  }
+
+  /** Cancel all pending requests. */
+  public void cancel() {
+    for (Target target : targets.values()) {
+      picasso.cancelRequest(target);
+    }
+    targets.clear();
+  }
+
+  /**
+   * Get the number of images that should be prefetched in the swipe direction.
+   *
+   * @param isNetworkFast True if the network is fast and unmetered.
+   * @param capacity      Number of images that can be prefetched, from {@link #getCapacity()}.
+   * @return Number of images.
+   */
+  private static int getLookahead(boolean isNetworkFast, int capacity) {
+    final int lookahead = isNetworkFast ? FAST_NETWORK_LOOKAHEAD : SLOW_NETWORK_LOOKAHEAD;
+    return Math.min(lookahead, capacity);
+  }
+
+  /**
+   * Get the number of images that should be prefetched against the swipe direction.
+   * The images ahead take precedence over the images behind when the cache is small.
+   *
+   * @param isNetworkFast True if the network is fast and unmetered.
+   * @param capacity      Number of images that can be prefetched, from {@link #getCapacity()}.
+   * @param lookahead     Number of images prefetched in the swipe direction.
+   * @return Number of images.
+   */
+  private static int getLookbehind(boolean isNetworkFast, int capacity, int lookahead) {
+    final int lookbehind = isNetworkFast ? FAST_NETWORK_LOOKBEHIND : SLOW_NETWORK_LOOKBEHIND;
+    return Math.max(0, Math.min(lookbehind, capacity - lookahead));
+  }
+
+  /**
+   * Estimate the number of images that can be prefetched without evicting the image on screen from the cache.
+   *
+   * @return Number of images.
+   */
+  private int getCapacity() {
+    int imageSize = imageCache.getAverageImageSize();
+    if (imageSize == 0) {
+      imageSize = screenImageSize;
+    }
+    return Math.max(0, imageCache.maxSize() / imageSize - 1);
+  }
+
+  /** Target releasing itself once its image is in the cache. */
+  private class PrefetchTarget implements Target {
+    /** Image URL. */
+    private final String url;
+
+    /**
+     * Create a new prefetch target.
+     *
+     * @param url Image URL.
+     */
+    public PrefetchTarget(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+      // The bitmap is kept by the memory cache.
+      targets.remove(url);
+    }
+
+    @Override
+    public void onBitmapFailed(Drawable errorDrawable) {
+      targets.remove(url);
+    }
+
+    @Override
+    public void onPrepareLoad(Drawable placeHolderDrawable) {
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the app's heap between the caches holding decoded images, based on the device's memory class, and evicts
+ * their contents in tiers when the system reports memory pressure through
+ * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+ * <p/>
+ * Devices are sorted into {@link Tier}s. Low tier devices also decode images with {@link android.graphics.Bitmap.Config#RGB_565},
+ * which halves the size of each bitmap.
+ */
+public class MemoryGovernor {
+  /** Tag used for logging. */
+  private static final String TAG = "MemoryGovernor";
+  /** Devices with a memory class up to this size are in the low tier, in megabytes. */
+  private static final int LOW_TIER_MAX_MEMORY_CLASS = 32;
+  /** Devices with a memory class up to this size are in the normal tier, in megabytes. */
+  private static final int NORMAL_TIER_MAX_MEMORY_CLASS = 64;
+  /** Shared instance. */
+  private static MemoryGovernor instance;
+  /** Application memory class, in bytes. */
+  private final int memoryClass;
+  /** Device tier. */
+  private final Tier tier;
+  /** Caches registered for each budget. */
+  private final Map<Budget, List<Trimmable>> trimmables = new EnumMap<>(Budget.class);
+
+  /**
+   * Create a new memory governor. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private MemoryGovernor(Context context) {
+    final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+    final int memoryClassMegabytes = activityManager.getMemoryClass();
+    memoryClass = memoryClassMegabytes * 1024 * 1024;
+    if (isLowRamDevice(activityManager) || memoryClassMegabytes <= LOW_TIER_MAX_MEMORY_CLASS) {
+      tier = Tier.LOW;
+    } else if (memoryClassMegabytes <= NORMAL_TIER_MAX_MEMORY_CLASS) {
+      tier = Tier.NORMAL;
+    } else {
+      tier = Tier.HIGH;
+    }
+    for (Budget budget : Budget.values()) {
+      trimmables.put(budget, new ArrayList<Trimmable>());
+    }
+    Log.i(TAG, "Memory class: " + memoryClassMegabytes + " MB, tier: " + tier);
+  }
+
+  /**
+   * Get the shared MemoryGovernor instance.
+   *
+   * @param context Android context.
+   * @return Shared MemoryGovernor instance.
+   */
+  public static synchronized MemoryGovernor getInstance(Context context) {
+    if (instance == null) {
+      instance = new MemoryGovernor(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Check if the device is flagged as low-RAM by the system. (API 19+)
+   *
+   * @param activityManager Instance of {@link android.app.ActivityManager}.
+   * @return True if the device has little memory.
+   */
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static boolean isLowRamDevice(ActivityManager activityManager) {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice();
+  }
+
+  /**
+   * Get the device tier.
+   *
+   * @return Device tier.
+   */
+  public Tier getTier() {
+    return tier;
+  }
+
+  /**
+   * Get the memory a cache may use.
+   *
+   * @param budget Cache budget.
+   * @return Maximum size of the cache, in bytes.
+   */
+  public int getBudget(Budget budget) {
+    return memoryClass / budget.getDivisor(tier);
+  }
+
+  /**
+   * Get the configuration grid thumbnails are decoded with.
+   *
+   * @return Bitmap configuration.
+   */
+  public Bitmap.Config getThumbnailConfig() {
+    return tier == Tier.LOW ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+  }
+
+  /**
+   * Get the configuration images shown in the image viewer are decoded with.
+   * Images with transparency may still be decoded with an alpha channel.
+   *
+   * @return Bitmap configuration.
+   */
+  public Bitmap.Config getImageConfig() {
+    return tier == Tier.LOW ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+  }
+
+  /**
+   * Register a cache, so it is trimmed when memory is low.
+   *
+   * @param budget    Budget of the cache.
+   * @param trimmable Cache.
+   */
+  public synchronized void register(Budget budget, Trimmable trimmable) {
+    trimmables.get(budget).add(trimmable);
+  }
+
+  /**
+   * Unregister a cache registered with {@link #register(Budget, Trimmable)}.
+   *
+   * @param trimmable Cache.
+   */
+  public synchronized void unregister(Trimmable trimmable) {
+    for (List<Trimmable> list : trimmables.values()) {
+      list.remove(trimmable);
+    }
+  }
+
+  /**
+   * Evict cached images according to the system's memory pressure level. Images that can't be on screen are evicted
+   * first: reusable bitmaps, then viewer images and animation frames, then grid thumbnails.
+   * Should be called from {@link android.app.Application#onTrimMemory(int)}.
+   *
+   * @param level Trim level. One of the {@link android.content.ComponentCallbacks2} constants.
+   */
+  public synchronized void onTrimMemory(int level) {
+    Log.i(TAG, "Trimming memory, level: " + level);
+    // Trimmed thumbnails may still be on screen, so the thumbnail cache never adds them to the bitmap pool.
+    for (Budget budget : Budget.values()) {
+      final float fraction = budget.getRetainedFraction(level);
+      if (fraction < 1) {
+        final int maxSize = (int) (getBudget(budget) * fraction);
+        for (Trimmable trimmable : trimmables.get(budget)) {
+          trimmable.trimToSize(maxSize);
+        }
+      }
+    }
+  }
+
+  /** Device tiers, based on the memory available to the app. */
+  public static enum Tier {
+    /** Low-RAM devices and devices with a memory class of up to 32 MB. */
+    LOW,
+    /** Devices with a memory class of up to 64 MB. */
+    NORMAL,
+    /** Devices with a larger memory class. */
+    HIGH
+  }
+
+  /** Memory budgets, as fractions of the memory class in each {@link Tier}. */
+  public static enum Budget {
+    /** Decoded grid thumbnails. */
+    THUMBNAILS(10, 8, 6),
+    /** Decoded images shown in the image viewer. */
+    IMAGES(5, 4, 3),
+    /** Decoded frames of animated images. */
+    ANIMATION_FRAMES(10, 8, 6),
+    /** Bitmaps kept for reuse by later decodes. */
+    BITMAP_POOL(40, 32, 24);
+
+    /** Memory class divisor for each tier. */
+    private final int[] divisors;
+
+    /**
+     * Create a new budget.
+     *
+     * @param lowTierDivisor    Memory class divisor on low tier devices.
+     * @param normalTierDivisor Memory class divisor on normal tier devices.
+     * @param highTierDivisor   Memory class divisor on high tier devices.
+     */
+    private Budget(int lowTierDivisor, int normalTierDivisor, int highTierDivisor) {
+      this.divisors = new int[]{lowTierDivisor, normalTierDivisor, highTierDivisor};
+    }
+
+    /**
+     * Get the memory class divisor for a device tier.
+     *
+     * @param tier Device tier.
+     * @return Divisor.
+     */
+    private int getDivisor(Tier tier) {
+      return divisors[tier.ordinal()];
+    }
+
+    /**
+     * Get the fraction of this budget kept at a given memory pressure level.
+     *
+     * @param level Trim level. One of the {@link android.content.ComponentCallbacks2} constants.
+     * @return Fraction of the budget to trim caches to. 1 if caches should not be trimmed.
+     */
+    private float getRetainedFraction(int level) {
+      if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+        // The process is on the LRU list. Dropping everything makes it cheaper to keep around.
+        return 0;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+        // Includes TRIM_MEMORY_UI_HIDDEN. Keep half of the thumbnails, so the grid is quick to come back to.
+        return this == THUMBNAILS ? 0.5f : 0;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+        return this == THUMBNAILS ? 1 : (this == BITMAP_POOL ? 0 : 0.5f);
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+        return this == BITMAP_POOL ? 0 : 1;
+      }
+      return 1;
+    }
+  }
+
+  /** Cache that can be trimmed by the memory governor. */
+  public static interface Trimmable {
+    /**
+     * Evict entries until the cache is below the given size.
+     *
+     * @param maxSize Maximum size of the cache, in bytes.
+     */
+    public void trimToSize(int maxSize);
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.v4.util.LongSparseArray;
+import android.util.Log;
+
+import com.cuddlesoft.norilib.Image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Average color of each thumbnail, computed when the thumbnail is first decoded and persisted to disk, so grid cells
+ * and the image viewer can show a meaningful placeholder before the image itself is loaded.
+ * <p/>
+ * Colors are stored as 12-byte records (a 64-bit hash of the thumbnail URL and the color) in a file that is only
+ * appended to, and rewritten with half of the colors once it grows too large.
+ */
+public class PlaceholderColors {
+  /** Tag used for logging. */
+  private static final String TAG = "PlaceholderColors";
+  /** Name of the file storing the colors, in the app's cache directory. */
+  private static final String FILE_NAME = "placeholder-colors";
+  /** Maximum number of colors kept. */
+  private static final int MAX_COLORS = 10000;
+  /** Number of pixels sampled along each side of a thumbnail to compute its color. */
+  private static final int SAMPLE_GRID_SIZE = 8;
+  /** Delay before newly computed colors are written to disk, in milliseconds. Batches writes while scrolling. */
+  private static final int FLUSH_DELAY = 2000;
+  /** Shared instance. */
+  private static PlaceholderColors instance;
+  /** Thread reading and writing the color file. */
+  private final ScheduledExecutorService diskExecutor = Executors.newSingleThreadScheduledExecutor();
+  /** File storing the colors. */
+  private final File file;
+  /** Colors, keyed by the hash of the thumbnail URL. */
+  private final LongSparseArray<Integer> colors = new LongSparseArray<>();
+  /** Keys of the colors not written to disk yet. */
+  private long[] pendingKeys = new long[64];
+  /** Number of colors not written to disk yet. */
+  private int pendingCount;
+  /** Number of records in the color file. */
+  private int fileRecordCount;
+
+  /**
+   * Create a new PlaceholderColors instance. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private PlaceholderColors(Context context) {
+    file = new File(context.getCacheDir(), FILE_NAME);
+    diskExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        load();
+      }
+    });
+  }
+
+  /**
+   * Get the shared PlaceholderColors instance.
+   *
+   * @param context Android context.
+   * @return Shared PlaceholderColors instance.
+   */
+  public static synchronized PlaceholderColors getInstance(Context context) {
+    if (instance == null) {
+      instance = new PlaceholderColors(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Get the placeholder color of an image.
+   *
+   * @param image Image.
+   * @return Average color of the image's thumbnail. 0 (transparent) if not known yet.
+   */
+  public int get(Image image) {
+    // Thumbnails are decoded from the sample image when the preview is too small for the grid cells.
+    final int color = image.previewUrl != null ? get(image.previewUrl) : 0;
+    return (color == 0 && image.sampleUrl != null) ? get(image.sampleUrl) : color;
+  }
+
+  /**
+   * Get the placeholder color for a thumbnail URL.
+   *
+   * @param url Thumbnail URL.
+   * @return Average color of the thumbnail. 0 (transparent) if not known yet.
+   */
+  public synchronized int get(String url) {
+    final Integer color = colors.get(hash(url));
+    return color != null ? color : 0;
+  }
+
+  /**
+   * Compute and store the placeholder color of a thumbnail, if it isn't known yet. Should be called on the thread
+   * that decoded the thumbnail.
+   *
+   * @param url       Thumbnail URL.
+   * @param thumbnail Decoded thumbnail.
+   */
+  public void put(String url, Bitmap thumbnail) {
+    final long key = hash(url);
+    synchronized (this) {
+      if (colors.get(key) != null) {
+        return;
+      }
+    }
+    final int color = computeColor(thumbnail);
+
+    synchronized (this) {
+      colors.put(key, color);
+      if (pendingCount == pendingKeys.length) {
+        final long[] newPendingKeys = new long[pendingKeys.length * 2];
+        System.arraycopy(pendingKeys, 0, newPendingKeys, 0, pendingCount);
+        pendingKeys = newPendingKeys;
+      }
+      pendingKeys[pendingCount++] = key;
+      if (pendingCount == 1) {
+        // Write this color, and the ones computed in the meantime, a bit later.
+        diskExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Compute the average color of a thumbnail from a grid of sampled pixels.
+   *
+   * @param thumbnail Thumbnail.
+   * @return Opaque average color.
+   */
+  private static int computeColor(Bitmap thumbnail) {
+    final int width = thumbnail.getWidth();
+    final int height = thumbnail.getHeight();
+    int red = 0;
+    int green = 0;
+    int blue = 0;
+    for (int y = 0; y < SAMPLE_GRID_SIZE; y++) {
+      for (int x = 0; x < SAMPLE_GRID_SIZE; x++) {
+        final int pixel = thumbnail.getPixel((2 * x + 1) * width / (2 * SAMPLE_GRID_SIZE),
+            (2 * y + 1) * height / (2 * SAMPLE_GRID_SIZE));
+        red += Color.red(pixel);
+        green += Color.green(pixel);
+        blue += Color.blue(pixel);
+      }
+    }
+    final int sampleCount = SAMPLE_GRID_SIZE * SAMPLE_GRID_SIZE;
+    return Color.rgb(red / sampleCount, green / sampleCount, blue / sampleCount);
+  }
+
+  /**
+   * Compute a 64-bit FNV-1a hash of a thumbnail URL.
+   *
+   * @param url Thumbnail URL.
+   * @return Hash used as the key of the thumbnail color.
+   */
+  private static long hash(String url) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < url.length(); i++) {
+      hash ^= url.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** Read the colors from disk. Called on the disk thread. */
+  private void load() {
+    int recordCount = 0;
+    try {
+      final DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        while (true) {
+          final long key = stream.readLong();
+          final int color = stream.readInt();
+          synchronized (this) {
+            // Colors computed while loading are more recent.
+            if (colors.get(key) == null) {
+              colors.put(key, color);
+            }
+          }
+          recordCount++;
+        }
+      } catch (EOFException ignored) {
+        // End of file, or a partially written record.
+      } finally {
+        stream.close();
+      }
+    } catch (FileNotFoundException ignored) {
+      // No colors stored yet.
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read placeholder colors.", e);
+    }
+    synchronized (this) {
+      fileRecordCount = recordCount;
+    }
+  }
+
+  /** Append the pending colors to disk, rewriting the file if it has grown too large. Called on the disk thread. */
+  private void flush() {
+    final long[] keys;
+    final int[] values;
+    final boolean rewrite;
+    synchronized (this) {
+      rewrite = fileRecordCount + pendingCount > MAX_COLORS;
+      if (rewrite) {
+        // Drop colors until half the maximum is left. Keys are hashes, so an arbitrary half is dropped.
+        while (colors.size() > MAX_COLORS / 2) {
+          colors.removeAt(colors.size() - 1);
+        }
+        keys = new long[colors.size()];
+        values = new int[colors.size()];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = colors.keyAt(i);
+          values[i] = colors.valueAt(i);
+        }
+      } else {
+        keys = new long[pendingCount];
+        values = new int[pendingCount];
+        for (int i = 0; i < pendingCount; i++) {
+          keys[i] = pendingKeys[i];
+          values[i] = colors.get(keys[i], 0);
+        }
+      }
+      pendingCount = 0;
+      fileRecordCount = rewrite ? keys.length : fileRecordCount + keys.length;
+    }
+
+    try {
+      final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !rewrite)));
+      try {
+        for (int i = 0; i < keys.length; i++) {
+          stream.writeLong(keys[i]);
+          stream.writeInt(values[i]);
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write placeholder colors.", e);
+    }
+  }
+}
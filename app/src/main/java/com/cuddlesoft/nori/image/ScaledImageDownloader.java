@@ -0,0 +1,107 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.DisplayMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Downloads images shown in the image viewer and decodes them subsampled, so that no image is decoded larger than
+ * the screen allows or than a share of the {@link com.cuddlesoft.nori.image.MemoryGovernor.Budget#IMAGES} budget.
+ * Full-size images decoded as-is are the main cause of out of memory errors on devices with little memory.
+ */
+class ScaledImageDownloader extends ImageDownloader {
+  /** Largest bitmap most devices can upload as a texture when drawing with hardware acceleration, in pixels. */
+  private static final int MAX_TEXTURE_SIZE = 2048;
+  /** Number of images the viewer cache should be able to hold: the one on screen and its neighbours. */
+  private static final int MIN_CACHED_IMAGES = 3;
+  /** Memory governor providing the image budget and decoding configuration. */
+  private final MemoryGovernor memoryGovernor;
+  /** Maximum width or height of a decoded image, in pixels. */
+  private final int maxDimension;
+
+  /**
+   * Create a new scaled image downloader.
+   *
+   * @param context Android context.
+   */
+  public ScaledImageDownloader(Context context) {
+    super(context);
+    memoryGovernor = MemoryGovernor.getInstance(context);
+    // Images are decoded as a screen-sized overview. The details of larger images are decoded in tiles when zoomed in
+    // (see com.ortiz.touch.TouchImageView#setTileSource).
+    final DisplayMetrics displayMetrics = context.getResources().getDisplayMetrics();
+    maxDimension = Math.min(MAX_TEXTURE_SIZE, Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels));
+  }
+
+  @Override
+  public Response load(Uri uri, boolean localCacheOnly) throws IOException {
+    final Response response = super.load(uri, localCacheOnly);
+    final InputStream stream = response.getInputStream();
+    if (stream == null) {
+      return response;
+    }
+
+    final byte[] data;
+    try {
+      data = readFully(stream, response.getContentLength());
+    } finally {
+      stream.close();
+    }
+
+    // Read image dimensions.
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Could not decode image.");
+    }
+
+    // Subsample the image until it fits both the maximum dimension and its share of the budget.
+    final Bitmap.Config config = memoryGovernor.getImageConfig();
+    final int maxSize = memoryGovernor.getBudget(MemoryGovernor.Budget.IMAGES) / MIN_CACHED_IMAGES;
+    int sampleSize = 1;
+    while (Math.max(options.outWidth, options.outHeight) / sampleSize > maxDimension
+        || (long) (options.outWidth / sampleSize) * (options.outHeight / sampleSize)
+        * BitmapPool.getBytesPerPixel(config) > maxSize) {
+      sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    options.inPreferredConfig = config;
+    final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    if (bitmap == null) {
+      throw new IOException("Could not decode image.");
+    }
+    return new Response(bitmap, false, data.length);
+  }
+
+  /**
+   * Read a stream into memory.
+   *
+   * @param stream        Stream to read.
+   * @param contentLength Expected length of the stream, in bytes. 0 or less if not known.
+   * @return Contents of the stream.
+   * @throws IOException Error reading from the stream.
+   */
+  private static byte[] readFully(InputStream stream, long contentLength) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 64 * 1024);
+    final byte[] buffer = new byte[8192];
+    int length;
+    while ((length = stream.read(buffer)) != -1) {
+      out.write(buffer, 0, length);
+    }
+    return out.toByteArray();
+  }
+}
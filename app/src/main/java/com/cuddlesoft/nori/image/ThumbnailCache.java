@@ -0,0 +1,199 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picasso memory cache used for the search result grid thumbnails. Evicted thumbnails are handed to a
+ * {@link com.cuddlesoft.nori.image.BitmapPool} to be reused by later decodes.
+ * <p/>
+ * The cache is shared by every search result grid, including the ones of activities in the back stack, so an evicted
+ * thumbnail may still be shown by a grid that isn't on screen. Grid cells {@link #retain(android.graphics.Bitmap)} the
+ * thumbnail they show, and evicted thumbnails are only pooled once every cell showing them has released them.
+ */
+public class ThumbnailCache implements Cache, MemoryGovernor.Trimmable {
+  /** Pool evicted thumbnails are added to. */
+  private final BitmapPool bitmapPool;
+  /** Cached thumbnails. */
+  private final LruCache<String, Bitmap> lruCache;
+  /** Number of lookups that returned a cached thumbnail, since this cache was created. */
+  private int hitCount;
+  /** Number of lookups that didn't find a cached thumbnail, since this cache was created. */
+  private int missCount;
+  /** Number of thumbnails evicted to make room for newer ones, since this cache was created. */
+  private int evictionCount;
+  /** True while the cache is being cleared or trimmed. Those thumbnails may still be on screen, so they are not pooled. */
+  private boolean isClearing;
+  /** Number of grid cells showing each thumbnail. */
+  private final Map<Bitmap, Integer> retainCounts = new IdentityHashMap<>();
+  /** Evicted thumbnails that are still shown by a grid cell, pooled once released. */
+  private final Set<Bitmap> evictedRetainedBitmaps = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+  /**
+   * Create a new thumbnail cache.
+   *
+   * @param maxSize    Maximum size of the cached thumbnails, in bytes.
+   * @param bitmapPool Pool evicted thumbnails are added to.
+   */
+  public ThumbnailCache(int maxSize, BitmapPool bitmapPool) {
+    this.bitmapPool = bitmapPool;
+    this.lruCache = createLruCache(maxSize);
+  }
+
+  @Override
+  public synchronized Bitmap get(String key) {
+    final Bitmap bitmap = lruCache.get(key);
+    if (bitmap != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return bitmap;
+  }
+
+  @Override
+  public synchronized void set(String key, Bitmap bitmap) {
+    lruCache.put(key, bitmap);
+  }
+
+  @Override
+  public synchronized int size() {
+    return lruCache.size();
+  }
+
+  @Override
+  public synchronized int maxSize() {
+    return lruCache.maxSize();
+  }
+
+  @Override
+  public synchronized void clear() {
+    isClearing = true;
+    lruCache.evictAll();
+    isClearing = false;
+  }
+
+  /**
+   * Check if a thumbnail is cached, without counting the lookup as a hit or miss.
+   *
+   * @param key Cache key.
+   * @return True if the thumbnail is in the cache.
+   */
+  public synchronized boolean contains(String key) {
+    return lruCache.get(key) != null;
+  }
+
+  /**
+   * Evict the least recently used thumbnails until the cache is below the given size. The maximum size of the cache
+   * is not changed. Trimmed thumbnails may still be on screen, so they are not added to the bitmap pool.
+   *
+   * @param maxSize Maximum size of the cached thumbnails, in bytes.
+   */
+  @Override
+  public synchronized void trimToSize(int maxSize) {
+    isClearing = true;
+    lruCache.trimToSize(maxSize);
+    isClearing = false;
+  }
+
+  /**
+   * Mark a thumbnail as shown by a view, so that it isn't added to the bitmap pool if evicted.
+   * Must be balanced by a call to {@link #release(android.graphics.Bitmap)}.
+   *
+   * @param bitmap Thumbnail shown.
+   */
+  public synchronized void retain(Bitmap bitmap) {
+    final Integer count = retainCounts.get(bitmap);
+    retainCounts.put(bitmap, count != null ? count + 1 : 1);
+  }
+
+  /**
+   * Mark a thumbnail as no longer shown by a view. Adds it to the bitmap pool if it has been evicted and no other view
+   * shows it.
+   *
+   * @param bitmap Thumbnail released.
+   */
+  public synchronized void release(Bitmap bitmap) {
+    final Integer count = retainCounts.get(bitmap);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      retainCounts.put(bitmap, count - 1);
+    } else {
+      retainCounts.remove(bitmap);
+      if (evictedRetainedBitmaps.remove(bitmap)) {
+        bitmapPool.put(bitmap);
+      }
+    }
+  }
+
+  /**
+   * Get the number of lookups that returned a cached thumbnail.
+   *
+   * @return Hit count.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Get the number of lookups that didn't find a cached thumbnail.
+   *
+   * @return Miss count.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Get the number of thumbnails evicted to make room for newer ones.
+   *
+   * @return Eviction count.
+   */
+  public synchronized int getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Create the LRU cache backing this cache.
+   *
+   * @param maxSize Maximum size of the cached thumbnails, in bytes.
+   * @return LRU cache.
+   */
+  private LruCache<String, Bitmap> createLruCache(int maxSize) {
+    return new LruCache<String, Bitmap>(maxSize) {
+      @Override
+      protected int sizeOf(String key, Bitmap bitmap) {
+        return BitmapPool.getSize(bitmap);
+      }
+
+      @Override
+      protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        // Replaced thumbnails may still be on screen, only evicted ones can be reused.
+        if (evicted && !isClearing) {
+          evictionCount++;
+          // Thumbnails still shown by a grid cell are pooled once the cell releases them.
+          if (retainCounts.containsKey(oldValue)) {
+            evictedRetainedBitmaps.add(oldValue);
+          } else {
+            bitmapPool.put(oldValue);
+          }
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Downloads grid thumbnails through the shared {@link com.cuddlesoft.nori.image.HttpImageCache} and decodes them
+ * straight into square bitmaps of the grid cell size, reusing bitmaps from a
+ * {@link com.cuddlesoft.nori.image.BitmapPool}. Picasso is handed the finished thumbnail, so it doesn't allocate
+ * a new bitmap to resize and crop each image.
+ */
+class ThumbnailDownloader extends ImageDownloader {
+  /** Initial size of the per-thread download buffer, in bytes. Large enough for most thumbnails. */
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  /** Per-thread decoding state, reused between decodes. */
+  private static final ThreadLocal<DecodeState> decodeState = new ThreadLocal<DecodeState>() {
+    @Override
+    protected DecodeState initialValue() {
+      return new DecodeState();
+    }
+  };
+  /** Loader providing the bitmap configuration and the bitmap pool. */
+  private final ThumbnailLoader thumbnailLoader;
+  /** Placeholder colors computed from the decoded thumbnails. */
+  private final PlaceholderColors placeholderColors;
+
+  /**
+   * Create a new thumbnail downloader.
+   *
+   * @param context         Android context.
+   * @param thumbnailLoader Loader providing the bitmap configuration and the bitmap pool.
+   */
+  public ThumbnailDownloader(Context context, ThumbnailLoader thumbnailLoader) {
+    super(context);
+    this.thumbnailLoader = thumbnailLoader;
+    this.placeholderColors = PlaceholderColors.getInstance(context);
+  }
+
+  @Override
+  public Response load(Uri uri, boolean localCacheOnly) throws IOException {
+    // The cell size is passed in the fragment, which is dropped so the HTTP cache is keyed by the thumbnail URL.
+    final int cellSize = ThumbnailLoader.getCellSize(uri);
+    final Uri url = uri.buildUpon().fragment(null).build();
+    final Response response = super.load(url, localCacheOnly);
+    final InputStream stream = response.getInputStream();
+    if (stream == null) {
+      return response;
+    }
+
+    final DecodeState state = decodeState.get();
+    final int length;
+    try {
+      length = state.read(stream);
+    } finally {
+      stream.close();
+    }
+    final Bitmap thumbnail = decodeThumbnail(state, length, cellSize);
+    // Remember the thumbnail's color, to be shown as the placeholder next time.
+    placeholderColors.put(url.toString(), thumbnail);
+    return new Response(thumbnail, false, length);
+  }
+
+  /**
+   * Decode an image and scale it to fill a square cell, cropping the edges that don't fit.
+   *
+   * @param state    Decoding state holding the encoded image.
+   * @param length   Length of the encoded image, in bytes.
+   * @param cellSize Cell size, in pixels.
+   * @return Square thumbnail.
+   * @throws IOException The image could not be decoded.
+   */
+  private Bitmap decodeThumbnail(DecodeState state, int length, int cellSize) throws IOException {
+    final BitmapPool bitmapPool = thumbnailLoader.getBitmapPool();
+    final BitmapFactory.Options options = state.options;
+
+    // Read image dimensions.
+    options.inJustDecodeBounds = true;
+    options.inSampleSize = 1;
+    BitmapFactory.decodeByteArray(state.buffer, 0, length, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Could not decode image.");
+    }
+
+    // Subsample large images, as long as they still cover the whole cell.
+    int sampleSize = 1;
+    while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= cellSize) {
+      sampleSize *= 2;
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = sampleSize;
+    options.inPreferredConfig = thumbnailLoader.getBitmapConfig();
+    final Bitmap image = decodeReusingBitmap(state, length, bitmapPool);
+    if (image == null) {
+      throw new IOException("Could not decode image.");
+    }
+
+    // Scale and center the image to fill the cell.
+    final float scale = Math.max((float) cellSize / image.getWidth(), (float) cellSize / image.getHeight());
+    state.matrix.setScale(scale, scale);
+    state.matrix.postTranslate((cellSize - image.getWidth() * scale) / 2, (cellSize - image.getHeight() * scale) / 2);
+    final Bitmap thumbnail = bitmapPool.get(cellSize, cellSize, thumbnailLoader.getBitmapConfig());
+    state.canvas.setBitmap(thumbnail);
+    state.canvas.drawBitmap(image, state.matrix, state.paint);
+
+    // The decoded image is no longer needed.
+    bitmapPool.put(image);
+    return thumbnail;
+  }
+
+  /**
+   * Decode an image into a pooled bitmap, if one can be reused. Falls back to allocating a new bitmap.
+   *
+   * @param state      Decoding state holding the encoded image and the decoding options.
+   * @param length     Length of the encoded image, in bytes.
+   * @param bitmapPool Pool to reuse bitmaps from.
+   * @return Decoded image. Null if the image could not be decoded.
+   */
+  @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+  private static Bitmap decodeReusingBitmap(DecodeState state, int length, BitmapPool bitmapPool) {
+    final BitmapFactory.Options options = state.options;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+      return BitmapFactory.decodeByteArray(state.buffer, 0, length, options);
+    }
+
+    final int sampleSize = options.inSampleSize;
+    options.inMutable = true;
+    options.inBitmap = bitmapPool.getDecodeTarget((options.outWidth + sampleSize - 1) / sampleSize,
+        (options.outHeight + sampleSize - 1) / sampleSize, sampleSize, options.inPreferredConfig);
+    try {
+      return BitmapFactory.decodeByteArray(state.buffer, 0, length, options);
+    } catch (IllegalArgumentException e) {
+      // The pooled bitmap couldn't be reused for this image.
+      bitmapPool.put(options.inBitmap);
+      options.inBitmap = null;
+      return BitmapFactory.decodeByteArray(state.buffer, 0, length, options);
+    } finally {
+      options.inBitmap = null;
+    }
+  }
+
+  /** Objects reused by each decoding thread. */
+  private static class DecodeState {
+    /** Decoding options. */
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    /** Transformation used to scale the decoded image to the cell size. */
+    private final Matrix matrix = new Matrix();
+    /** Canvas used to draw the thumbnail. */
+    private final Canvas canvas = new Canvas();
+    /** Paint used to draw the scaled image. */
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    /** Buffer holding the encoded image. Grows as needed. */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * Read the encoded image into the buffer.
+     *
+     * @param stream Stream to read the image from.
+     * @return Length of the image, in bytes.
+     * @throws IOException Error reading from the stream.
+     */
+    public int read(InputStream stream) throws IOException {
+      int length = 0;
+      int count;
+      while ((count = stream.read(buffer, length, buffer.length - length)) != -1) {
+        length += count;
+        if (length == buffer.length) {
+          final byte[] newBuffer = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, newBuffer, 0, length);
+          buffer = newBuffer;
+        }
+      }
+      return length;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+import android.util.DisplayMetrics;
+
+import com.cuddlesoft.nori.R;
+import com.cuddlesoft.nori.util.NetworkUtils;
+import com.cuddlesoft.norilib.Image;
+import com.squareup.picasso.Picasso;
+
+/**
+ * Picasso instance dedicated to the search result grid, with its own {@link com.cuddlesoft.nori.image.ThumbnailCache}
+ * sized from the {@link com.cuddlesoft.nori.image.MemoryGovernor} budget and the thumbnail size, and a
+ * {@link com.cuddlesoft.nori.image.BitmapPool} reusing the bitmaps of evicted thumbnails for new decodes.
+ * <p/>
+ * Thumbnails are decoded from the image previews, unless the previews are too small for the grid cells and the
+ * network is fast enough to fetch the larger sample images instead.
+ * <p/>
+ * The loader is shared by every grid, so the cell size is passed with each request, in the fragment of the thumbnail
+ * URI returned by {@link #getThumbnailUri(com.cuddlesoft.norilib.Image, int)}. Grids with different cell sizes get
+ * their own cached thumbnails.
+ */
+public class ThumbnailLoader {
+  /** Minimum number of screens of thumbnails kept in the cache. Keeps evicted thumbnails off screen. */
+  private static final int MIN_CACHED_SCREENS = 2;
+  /** Maximum number of screens of thumbnails kept in the cache. */
+  private static final int MAX_CACHED_SCREENS = 6;
+  /** Preview size assumed when the API doesn't report it, in pixels. Most boorus scale previews to fit 150x150 pixels. */
+  private static final int DEFAULT_PREVIEW_SIZE = 150;
+  /** Previews are upscaled by up to this factor to fill a cell, before the sample image is used instead. */
+  private static final float MAX_PREVIEW_UPSCALE = 1.25f;
+  /** Prefix of the thumbnail URI fragments holding the cell size. Fragments are never sent to the server. */
+  private static final String CELL_SIZE_FRAGMENT_PREFIX = "cellSize=";
+  /** Shared instance. */
+  private static ThumbnailLoader instance;
+  /** Maximum size of the thumbnail cache, unless that's less than {@link #MIN_CACHED_SCREENS}, in bytes. */
+  private final int cacheBudget;
+  /** Configuration thumbnails are decoded with. */
+  private final Bitmap.Config bitmapConfig;
+  /** Display metrics, used to compute the number of cells on screen. */
+  private final DisplayMetrics displayMetrics;
+  /** Pool of bitmaps reused by thumbnail decodes. */
+  private final BitmapPool bitmapPool;
+  /** Memory cache used by {@link #picasso}. */
+  private final ThumbnailCache thumbnailCache;
+  /** Picasso instance used to load grid thumbnails. */
+  private final Picasso picasso;
+  /** True if sample images can be used as thumbnails on the current network. */
+  private volatile boolean canFetchLargeThumbnails;
+  /** Re-evaluates {@link #canFetchLargeThumbnails} when the active network changes. */
+  private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      canFetchLargeThumbnails = NetworkUtils.shouldFetchLargeThumbnails(context);
+    }
+  };
+  /** Re-evaluates {@link #canFetchLargeThumbnails} when the bandwidth preference is changed. Referenced here, since listeners are only weakly referenced by SharedPreferences. */
+  private final SharedPreferences.OnSharedPreferenceChangeListener preferenceChangeListener;
+
+  /**
+   * Create a new thumbnail loader. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private ThumbnailLoader(Context context) {
+    final MemoryGovernor memoryGovernor = MemoryGovernor.getInstance(context);
+    cacheBudget = memoryGovernor.getBudget(MemoryGovernor.Budget.THUMBNAILS);
+    bitmapConfig = memoryGovernor.getThumbnailConfig();
+    displayMetrics = context.getResources().getDisplayMetrics();
+
+    bitmapPool = new BitmapPool(memoryGovernor.getBudget(MemoryGovernor.Budget.BITMAP_POOL));
+    // A screen of thumbnails takes about the same memory whatever the cell size, so the cache is sized once.
+    thumbnailCache = new ThumbnailCache(
+        getCacheSize(context.getResources().getDimensionPixelSize(R.dimen.previewSize_medium)), bitmapPool);
+    memoryGovernor.register(MemoryGovernor.Budget.THUMBNAILS, thumbnailCache);
+    memoryGovernor.register(MemoryGovernor.Budget.BITMAP_POOL, bitmapPool);
+    picasso = new Picasso.Builder(context)
+        .downloader(new ThumbnailDownloader(context, this))
+        .memoryCache(thumbnailCache)
+        .build();
+
+    // Keep track of the network policy for large thumbnails.
+    canFetchLargeThumbnails = NetworkUtils.shouldFetchLargeThumbnails(context);
+    context.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    final Context applicationContext = context;
+    preferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+      @Override
+      public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        if (applicationContext.getString(R.string.preference_image_viewer_conserveBandwidth_key).equals(key)) {
+          canFetchLargeThumbnails = NetworkUtils.shouldFetchLargeThumbnails(applicationContext);
+        }
+      }
+    };
+    PreferenceManager.getDefaultSharedPreferences(context).registerOnSharedPreferenceChangeListener(preferenceChangeListener);
+  }
+
+  /**
+   * Get the shared ThumbnailLoader instance.
+   *
+   * @param context Android context.
+   * @return Shared ThumbnailLoader instance.
+   */
+  public static synchronized ThumbnailLoader getInstance(Context context) {
+    if (instance == null) {
+      instance = new ThumbnailLoader(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Get the Picasso instance used to load grid thumbnails.
+   * Thumbnails are already decoded at the cell size, so requests should not be resized.
+   *
+   * @return Picasso instance.
+   */
+  public Picasso getPicasso() {
+    return picasso;
+  }
+
+  /**
+   * Get the configuration thumbnails are decoded with. RGB_565 on low tier devices.
+   *
+   * @return Bitmap configuration.
+   */
+  public Bitmap.Config getBitmapConfig() {
+    return bitmapConfig;
+  }
+
+  /**
+   * Get the URI used to load the thumbnail of an image with {@link #getPicasso()}: the thumbnail URL, with the cell
+   * size the thumbnail is decoded at in its fragment.
+   *
+   * @param image    Image.
+   * @param cellSize Size of the grid cells, in pixels.
+   * @return Thumbnail URI.
+   */
+  public String getThumbnailUri(Image image, int cellSize) {
+    final String url = getThumbnailUrl(image, cellSize);
+    if (url == null) {
+      return null;
+    }
+    return Uri.parse(url).buildUpon().fragment(CELL_SIZE_FRAGMENT_PREFIX + cellSize).build().toString();
+  }
+
+  /**
+   * Get the cell size passed in the fragment of a thumbnail URI.
+   *
+   * @param uri URI returned by {@link #getThumbnailUri(com.cuddlesoft.norilib.Image, int)}.
+   * @return Cell size, in pixels.
+   * @throws IllegalArgumentException The URI doesn't hold a cell size.
+   */
+  static int getCellSize(Uri uri) {
+    final String fragment = uri.getFragment();
+    if (fragment == null || !fragment.startsWith(CELL_SIZE_FRAGMENT_PREFIX)) {
+      throw new IllegalArgumentException("Not a thumbnail URI: " + uri);
+    }
+    return Integer.parseInt(fragment.substring(CELL_SIZE_FRAGMENT_PREFIX.length()));
+  }
+
+  /**
+   * Get the URL the thumbnail of an image should be decoded from: the preview, if it's large enough to fill a grid
+   * cell, or the sample image, if the preview would have to be upscaled and the network is fast enough.
+   *
+   * @param image    Image.
+   * @param cellSize Size of the grid cells, in pixels.
+   * @return Thumbnail URL.
+   */
+  private String getThumbnailUrl(Image image, int cellSize) {
+    if (image.previewUrl == null) {
+      return image.sampleUrl;
+    }
+    if (!canFetchLargeThumbnails || image.sampleUrl == null || image.sampleUrl.equals(image.previewUrl)) {
+      return image.previewUrl;
+    }
+    // Thumbnails are center cropped, so the shorter side of the preview has to cover the cell.
+    final int previewSize = (image.previewWidth > 0 && image.previewHeight > 0) ?
+        Math.min(image.previewWidth, image.previewHeight) : DEFAULT_PREVIEW_SIZE;
+    return (previewSize * MAX_PREVIEW_UPSCALE >= cellSize) ? image.previewUrl : image.sampleUrl;
+  }
+
+  /**
+   * Check if the thumbnail for an image is in the memory cache, so it can be shown without loading it.
+   *
+   * @param uri Thumbnail URI returned by {@link #getThumbnailUri(com.cuddlesoft.norilib.Image, int)}.
+   * @return True if the thumbnail is cached.
+   */
+  public boolean isCached(String uri) {
+    // Picasso keys requests without transformations by their URI, followed by a line feed.
+    return thumbnailCache.contains(uri + '\n');
+  }
+
+  /**
+   * Get the memory cache holding the decoded thumbnails.
+   *
+   * @return Thumbnail cache.
+   */
+  public ThumbnailCache getThumbnailCache() {
+    return thumbnailCache;
+  }
+
+  /**
+   * Get the pool of bitmaps reused by thumbnail decodes.
+   *
+   * @return Bitmap pool.
+   */
+  public BitmapPool getBitmapPool() {
+    return bitmapPool;
+  }
+
+  /**
+   * Compute the thumbnail cache size for the given cell size.
+   *
+   * @param cellSize Cell size, in pixels.
+   * @return Cache size, in bytes.
+   */
+  private int getCacheSize(int cellSize) {
+    final int cellsPerScreen = (displayMetrics.widthPixels / cellSize + 1) * (displayMetrics.heightPixels / cellSize + 1);
+    final int screenSize = cellsPerScreen * cellSize * cellSize * BitmapPool.getBytesPerPixel(bitmapConfig);
+    return Math.max(MIN_CACHED_SCREENS * screenSize, Math.min(cacheBudget, MAX_CACHED_SCREENS * screenSize));
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.image;
+
+import android.content.Context;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies an image from the {@link com.cuddlesoft.nori.image.HttpImageCache} (or the network, if it isn't cached) to a
+ * temporary file and opens a {@link android.graphics.BitmapRegionDecoder} on it, on a background thread, so that
+ * {@link com.ortiz.touch.TouchImageView} can decode the parts of the image on screen in full detail.
+ * <p/>
+ * Images that are not larger than the overview already shown, or that can't be decoded by region, are discarded.
+ */
+public class TileSourceRequest implements Runnable {
+  /** Tag used for logging. */
+  private static final String TAG = "TileSourceRequest";
+  /** Name of the directory the images are copied to, in the app's cache directory. */
+  private static final String TILE_SOURCE_DIRECTORY = "tiles";
+  /** Worker threads running the requests. */
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2);
+  /** Handler used to deliver the results to the UI thread. */
+  private static final Handler UI_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  /** Directory the images are copied to. Cleared of files left by previous processes when first used. */
+  private static File tileSourceDirectory;
+  /** Application context. */
+  private final Context context;
+  /** Image URL. */
+  private final String url;
+  /** Width of the overview already shown. The image is discarded if it isn't wider. */
+  private final int overviewWidth;
+  /** Callback notified on the UI thread when the image is ready. */
+  private final Callback callback;
+  /** Future used to interrupt the worker thread when the request is cancelled. */
+  private Future<?> future;
+  /** True if the request was cancelled. */
+  private volatile boolean isCancelled;
+
+  /**
+   * Create a new tile source request. Use {@link #execute(android.content.Context, String, int, Callback)} instead.
+   *
+   * @param context       Android context.
+   * @param url           Image URL.
+   * @param overviewWidth Width of the overview already shown.
+   * @param callback      Callback notified on the UI thread when the image is ready.
+   */
+  private TileSourceRequest(Context context, String url, int overviewWidth, Callback callback) {
+    this.context = context.getApplicationContext();
+    this.url = url;
+    this.overviewWidth = overviewWidth;
+    this.callback = callback;
+  }
+
+  /**
+   * Copy an image to a temporary file and open a region decoder on it, on a background thread.
+   *
+   * @param context       Android context.
+   * @param url           Image URL.
+   * @param overviewWidth Width of the overview already shown, in pixels.
+   * @param callback      Callback notified on the UI thread when the image is ready.
+   * @return Handle used to cancel the request.
+   */
+  public static TileSourceRequest execute(Context context, String url, int overviewWidth, Callback callback) {
+    final TileSourceRequest request = new TileSourceRequest(context, url, overviewWidth, callback);
+    request.future = EXECUTOR.submit(request);
+    return request;
+  }
+
+  /**
+   * Delete an image file delivered to {@link Callback#onTileSourceReady(java.io.File, android.graphics.BitmapRegionDecoder)},
+   * on a background thread.
+   *
+   * @param file Image file.
+   */
+  public static void deleteFile(final File file) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    });
+  }
+
+  /**
+   * Cancel the request. The callback will not be notified after calling this method.
+   * Must be called from the UI thread.
+   */
+  public void cancel() {
+    isCancelled = true;
+    future.cancel(true);
+  }
+
+  @Override
+  public void run() {
+    File file = null;
+    try {
+      file = File.createTempFile("tile", null, getTileSourceDirectory(context));
+      download(file);
+      if (isCancelled) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return;
+      }
+      // Throws an IOException if the image format can't be decoded by region.
+      final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+      if (decoder.getWidth() <= overviewWidth) {
+        // The overview already shows the image in full detail.
+        decoder.recycle();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return;
+      }
+      deliverResult(file, decoder);
+    } catch (IOException e) {
+      if (!isCancelled) {
+        Log.w(TAG, "Could not open image for tiled decoding: " + url, e);
+      }
+      if (file != null) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Download the image to a file, using the shared HTTP cache.
+   *
+   * @param file File to write to.
+   * @throws IOException Error downloading the image.
+   */
+  private void download(File file) throws IOException {
+    final Request request = new Request.Builder()
+        .url(url)
+        .header("Cache-Control", "max-stale=" + ImageDownloader.MAX_STALE)
+        .build();
+    final Response response = HttpImageCache.getInstance(context).getClient().newCall(request).execute();
+    if (!response.isSuccessful()) {
+      throw new IOException("Unexpected response code: " + response.code());
+    }
+
+    final InputStream in = response.body().byteStream();
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      final byte[] buffer = new byte[8192];
+      int length;
+      while (!isCancelled && (length = in.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Deliver the image to the callback on the UI thread, or clean up if the request was cancelled in the meantime.
+   *
+   * @param file    Image file.
+   * @param decoder Region decoder opened on the image file.
+   */
+  private void deliverResult(final File file, final BitmapRegionDecoder decoder) {
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        if (isCancelled) {
+          decoder.recycle();
+          deleteFile(file);
+        } else {
+          callback.onTileSourceReady(file, decoder);
+        }
+      }
+    });
+  }
+
+  /**
+   * Get the directory the images are copied to, deleting the files left by previous processes when first called.
+   *
+   * @param context Android context.
+   * @return Directory.
+   */
+  private static synchronized File getTileSourceDirectory(Context context) {
+    if (tileSourceDirectory == null) {
+      tileSourceDirectory = new File(context.getCacheDir(), TILE_SOURCE_DIRECTORY);
+      final File[] leftoverFiles = tileSourceDirectory.listFiles();
+      if (leftoverFiles != null) {
+        for (File file : leftoverFiles) {
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        }
+      }
+      //noinspection ResultOfMethodCallIgnored
+      tileSourceDirectory.mkdirs();
+    }
+    return tileSourceDirectory;
+  }
+
+  /** Callback notified when the image is ready for tiled decoding. */
+  public static interface Callback {
+    /**
+     * Called on the UI thread when the image has been copied to a file larger than the overview.
+     * The callback is responsible for recycling the decoder and deleting the file with {@link #deleteFile(java.io.File)}.
+     *
+     * @param file    Image file.
+     * @param decoder Region decoder opened on the image file.
+     */
+    public void onTileSourceReady(File file, BitmapRegionDecoder decoder);
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+import com.cuddlesoft.norilib.clients.SearchClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Runs the same query on several Search APIs in parallel and merges their results into a single
+ * {@link com.cuddlesoft.norilib.SearchResult}. Images are appended as soon as each service responds, so a slow or
+ * failing service never holds back the others. Each service is paginated independently by its own
+ * {@link com.cuddlesoft.nori.search.SearchResultPager}. Images posted to several services are only shown once, if
+ * the APIs expose the MD5 checksum of the image file.
+ */
+public class FederatedSearch {
+  /** Bundle ID of the {@link SearchResultStore} handle of the merged search result. */
+  private static final String BUNDLE_ID_SEARCH_RESULT_HANDLE = "com.cuddlesoft.nori.FederatedSearch.searchResult";
+  /** Bundle ID of the {@link SearchResultStore} handles of the search results fetched from each service. */
+  private static final String BUNDLE_ID_SOURCE_HANDLES = "com.cuddlesoft.nori.FederatedSearch.sourceHandles";
+  /** Bundle ID of the number of images of each service already merged into the merged search result. */
+  private static final String BUNDLE_ID_MERGED_IMAGE_COUNTS = "com.cuddlesoft.nori.FederatedSearch.mergedImageCounts";
+  /** Bundle ID of the flags telling which services failed to return their first page. */
+  private static final String BUNDLE_ID_FAILED_SOURCES = "com.cuddlesoft.nori.FederatedSearch.failedSources";
+  /** Application context. */
+  private final Context context;
+  /** Query string (a space-separated list of tags). */
+  private final String query;
+  /** Minimum number of images each service should keep loaded ahead of the last visible image. */
+  private final int minLookahead;
+  /** Listener notified when the merged search result changes. */
+  private final Listener listener;
+  /** Services searched. */
+  private final List<Source> sources;
+  /** MD5 checksums of the images in the merged search result, used to drop images posted to several services. */
+  private final Set<String> imageChecksums = new HashSet<>();
+  /** Search result merged from all services. Null until the first service responds. */
+  private SearchResult searchResult;
+  /** Images of {@link #searchResult}. Null until the first service responds. */
+  private ImageList imageList;
+  /** True if any of the services is waiting for a response from its API. */
+  private boolean isLoading;
+  /** True if the search was cancelled and should no longer extend the search result. */
+  private boolean isCancelled;
+
+  /**
+   * Create a new federated search. Call {@link #start()} to send the first requests.
+   *
+   * @param context      Android context.
+   * @param settings     Settings of the services to search.
+   * @param query        Query string (a space-separated list of tags).
+   * @param minLookahead Minimum number of images to keep loaded ahead of the last visible image.
+   * @param listener     Listener notified when the merged search result changes.
+   */
+  public FederatedSearch(Context context, List<SearchClient.Settings> settings, String query, int minLookahead,
+                         Listener listener) {
+    this.context = context.getApplicationContext();
+    this.query = query;
+    this.listener = listener;
+    // Split the lookahead between the services, since each of them fetches its own share of the images.
+    this.minLookahead = Math.max(1, minLookahead / Math.max(1, settings.size()));
+    this.sources = new ArrayList<>(settings.size());
+    for (SearchClient.Settings s : settings) {
+      sources.add(new Source(s));
+    }
+  }
+
+  /** Request the first page from each service. */
+  public void start() {
+    for (Source source : sources) {
+      source.requestFirstPage();
+    }
+    updateLoadingState();
+  }
+
+  /**
+   * Restore the state saved by {@link #onSaveInstanceState(android.os.Bundle)}, instead of calling {@link #start()}.
+   * Services still waiting for their first page request it again on the next call to {@link #resumeRequests()}.
+   * Starts the search over if the merged search result can no longer be restored.
+   *
+   * @param savedInstanceState Saved instance state.
+   */
+  public void onRestoreInstanceState(Bundle savedInstanceState) {
+    final SearchResultStore searchResultStore = SearchResultStore.getInstance(context);
+    final long[] sourceHandles = savedInstanceState.getLongArray(BUNDLE_ID_SOURCE_HANDLES);
+    final int[] mergedImageCounts = savedInstanceState.getIntArray(BUNDLE_ID_MERGED_IMAGE_COUNTS);
+    final boolean[] failedSources = savedInstanceState.getBooleanArray(BUNDLE_ID_FAILED_SOURCES);
+    searchResult = searchResultStore.get(
+        savedInstanceState.getLong(BUNDLE_ID_SEARCH_RESULT_HANDLE, SearchResultStore.INVALID_HANDLE));
+    if (searchResult == null || sourceHandles == null || sourceHandles.length != sources.size()) {
+      searchResult = null;
+      start();
+      return;
+    }
+
+    // Rebuild the checksums of the merged images, so that duplicates are still dropped from the next pages.
+    imageList = ImageList.of(context, searchResult);
+    for (int i = 0; i * ImageList.CHUNK_SIZE < imageList.size(); i++) {
+      final Image[] chunk = imageList.getChunk(i);
+      if (chunk != null) {
+        for (Image image : chunk) {
+          if (image.md5 != null) {
+            imageChecksums.add(image.md5.toLowerCase(Locale.US));
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < sources.size(); i++) {
+      final Source source = sources.get(i);
+      source.hasFailed = failedSources[i];
+      source.searchResult = searchResultStore.get(sourceHandles[i]);
+      if (source.searchResult != null) {
+        source.mergedImageCount = mergedImageCounts[i];
+        source.pager = new SearchResultPager(context, source.searchClient, source.searchResult, minLookahead, source);
+      } else if (sourceHandles[i] != SearchResultStore.INVALID_HANDLE) {
+        // The images of this service were lost, fetching them again would add them to the merged result twice.
+        source.hasFailed = true;
+      }
+    }
+  }
+
+  /**
+   * Save the state of the search, so that it can be restored by {@link #onRestoreInstanceState(android.os.Bundle)}
+   * after the activity has been recreated. The search results are written to the {@link SearchResultStore}.
+   * Should be called from {@link android.app.Activity#onSaveInstanceState(android.os.Bundle)}.
+   *
+   * @param outState Bundle to save the state into.
+   */
+  public void onSaveInstanceState(Bundle outState) {
+    if (searchResult == null) {
+      // Nothing has been merged yet, the search is started over when restored.
+      return;
+    }
+    final SearchResultStore searchResultStore = SearchResultStore.getInstance(context);
+    final long[] sourceHandles = new long[sources.size()];
+    final int[] mergedImageCounts = new int[sources.size()];
+    final boolean[] failedSources = new boolean[sources.size()];
+    for (int i = 0; i < sources.size(); i++) {
+      final Source source = sources.get(i);
+      sourceHandles[i] = SearchResultStore.INVALID_HANDLE;
+      if (source.searchResult != null) {
+        sourceHandles[i] = searchResultStore.put(source.searchResult);
+        searchResultStore.saveSnapshot(sourceHandles[i]);
+      }
+      mergedImageCounts[i] = source.mergedImageCount;
+      failedSources[i] = source.hasFailed;
+    }
+    // The merged search result's snapshot is saved by the search result grid showing it.
+    outState.putLong(BUNDLE_ID_SEARCH_RESULT_HANDLE, searchResultStore.put(searchResult));
+    outState.putLongArray(BUNDLE_ID_SOURCE_HANDLES, sourceHandles);
+    outState.putIntArray(BUNDLE_ID_MERGED_IMAGE_COUNTS, mergedImageCounts);
+    outState.putBooleanArray(BUNDLE_ID_FAILED_SOURCES, failedSources);
+  }
+
+  /**
+   * Remove the snapshots of the search results fetched from each service from disk.
+   * Should be called when the activity owning the search is finishing.
+   */
+  public void removeSnapshots() {
+    final SearchResultStore searchResultStore = SearchResultStore.getInstance(context);
+    for (Source source : sources) {
+      if (source.searchResult != null) {
+        searchResultStore.removeSnapshot(searchResultStore.put(source.searchResult));
+      }
+    }
+  }
+
+  /**
+   * Get the search result merged from all services.
+   *
+   * @return Merged search result. Null until the first service has responded.
+   */
+  public SearchResult getSearchResult() {
+    return searchResult;
+  }
+
+  /**
+   * Update the scroll position and fetch more pages from each service, if needed.
+   * Should be called each time the visible range of images changes.
+   *
+   * @param firstVisibleItem Index of the first visible image.
+   * @param visibleItemCount Number of visible images.
+   * @param totalItemCount   Total number of images.
+   */
+  public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    if (isCancelled) {
+      return;
+    }
+    for (Source source : sources) {
+      if (source.pager != null) {
+        // Each service is responsible for its share of the images ahead of the viewport.
+        final float share = totalItemCount > 0 ? (float) source.mergedImageCount / totalItemCount : 0;
+        // Keep the images of each service windowed around its share of the visible position, like the merged images.
+        ImageList.of(context, source.searchResult).setVisiblePosition(Math.round(firstVisibleItem * share));
+        source.pager.onScroll(Math.round(firstVisibleItem * share), Math.round(visibleItemCount * share),
+            source.mergedImageCount);
+      }
+    }
+  }
+
+  /**
+   * Abort all requests waiting for a response. Call {@link #resumeRequests()} to request the missing first pages again,
+   * more pages are requested on the next call to {@link #onScroll(int, int, int)}.
+   */
+  public void cancelRequests() {
+    for (Source source : sources) {
+      source.cancelRequests();
+    }
+    updateLoadingState();
+  }
+
+  /** Request the first pages aborted by {@link #cancelRequests()} again. */
+  public void resumeRequests() {
+    if (isCancelled) {
+      return;
+    }
+    for (Source source : sources) {
+      if (source.pager == null && source.firstPageRequest == null && !source.hasFailed) {
+        source.requestFirstPage();
+      }
+    }
+    updateLoadingState();
+  }
+
+  /** Cancel the search and abort all requests. The search result is no longer extended after calling this method. */
+  public void cancel() {
+    isCancelled = true;
+    for (Source source : sources) {
+      source.cancelRequests();
+      if (source.pager != null) {
+        source.pager.cancel();
+      }
+    }
+  }
+
+  /**
+   * Append the images received from a service since the last call to the merged search result.
+   *
+   * @param source Service the images were received from.
+   */
+  private void mergeImages(Source source) {
+    final ImageList sourceImages = ImageList.of(context, source.searchResult);
+    final int imageCount = sourceImages.size();
+    final List<Image> newImages = new ArrayList<>(imageCount - source.mergedImageCount);
+    while (source.mergedImageCount < imageCount) {
+      final int end = Math.min(imageCount, (source.mergedImageCount / ImageList.CHUNK_SIZE + 1) * ImageList.CHUNK_SIZE);
+      final Image[] chunk = sourceImages.getChunk(source.mergedImageCount / ImageList.CHUNK_SIZE);
+      if (chunk == null) {
+        // The chunk could not be read back from disk.
+        source.mergedImageCount = end;
+        continue;
+      }
+      for (; source.mergedImageCount < end; source.mergedImageCount++) {
+        final Image image = chunk[source.mergedImageCount % ImageList.CHUNK_SIZE];
+        // Images without a checksum are always kept.
+        if (image.md5 == null || imageChecksums.add(image.md5.toLowerCase(Locale.US))) {
+          newImages.add(image);
+        }
+      }
+    }
+
+    if (searchResult == null) {
+      searchResult = new SearchResult(newImages.toArray(new Image[newImages.size()]), Tag.arrayFromString(query), 0);
+      imageList = ImageList.of(context, searchResult);
+    } else {
+      // The merged search result is never paged by offset, so only its images are extended.
+      imageList.append(newImages.toArray(new Image[newImages.size()]));
+    }
+    if (isLastPage()) {
+      searchResult.onLastPage();
+    }
+    listener.onSearchResultChanged(searchResult);
+  }
+
+  /**
+   * Check if all services have run out of images.
+   *
+   * @return True if there are no more pages to fetch from any of the services.
+   */
+  private boolean isLastPage() {
+    for (Source source : sources) {
+      if (!source.hasFailed && (source.searchResult == null || source.searchResult.hasNextPage())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Notify the listener when any of the services starts or stops waiting for a response. */
+  private void updateLoadingState() {
+    boolean isLoading = false;
+    for (Source source : sources) {
+      isLoading |= source.firstPageRequest != null || (source.pager != null && source.pager.isLoading());
+    }
+    if (isLoading != this.isLoading) {
+      this.isLoading = isLoading;
+      listener.onLoadingStateChanged(isLoading);
+    }
+  }
+
+  /** A single service searched by the federated search. */
+  private class Source implements SearchRequest.Callback, SearchResultPager.Listener {
+    /** Search API client. */
+    private final SearchClient searchClient;
+    /** Request for the first page. Null if the first page isn't being fetched. */
+    private SearchRequest firstPageRequest;
+    /** Search result fetched from this service. Null until the first page is received. */
+    private SearchResult searchResult;
+    /** Fetches more pages from this service. Null until the first page is received. */
+    private SearchResultPager pager;
+    /** Number of images from {@link #searchResult} already merged into the federated search result. */
+    private int mergedImageCount;
+    /** True if the first page could not be fetched. */
+    private boolean hasFailed;
+
+    /**
+     * Create a new source.
+     *
+     * @param settings Search API client settings.
+     */
+    public Source(SearchClient.Settings settings) {
+      this.searchClient = settings.createSearchClient();
+    }
+
+    /** Request the first page from the API. */
+    public void requestFirstPage() {
+      firstPageRequest = SearchRequest.execute(context, searchClient, query, 0, this);
+    }
+
+    /** Abort all requests sent to the API. */
+    public void cancelRequests() {
+      if (firstPageRequest != null) {
+        firstPageRequest.cancel();
+        firstPageRequest = null;
+      }
+      if (pager != null) {
+        pager.cancelRequests();
+      }
+    }
+
+    @Override
+    public void onSuccess(SearchResult searchResult, int unfilteredCount) {
+      firstPageRequest = null;
+      if (unfilteredCount == 0) {
+        searchResult.onLastPage();
+      }
+      this.searchResult = searchResult;
+      pager = new SearchResultPager(context, searchClient, searchResult, minLookahead, this);
+      updateLoadingState();
+      mergeImages(this);
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+      firstPageRequest = null;
+      hasFailed = true;
+      updateLoadingState();
+      listener.onSourceFailed(searchClient.getSettings(), e);
+      // The other services may have run out of pages already.
+      if (FederatedSearch.this.searchResult != null && isLastPage()) {
+        FederatedSearch.this.searchResult.onLastPage();
+        listener.onSearchResultChanged(FederatedSearch.this.searchResult);
+      }
+    }
+
+    @Override
+    public void onSearchResultChanged(SearchResult searchResult) {
+      if (!isCancelled) {
+        mergeImages(this);
+      }
+    }
+
+    @Override
+    public void onPageFailed(IOException e) {
+      listener.onSourceFailed(searchClient.getSettings(), e);
+    }
+
+    @Override
+    public void onLoadingStateChanged(boolean isLoading) {
+      updateLoadingState();
+    }
+  }
+
+  /** Listener notified when the merged search result changes. */
+  public static interface Listener {
+    /**
+     * Called on the UI thread after images from any of the services have been appended to the merged search result,
+     * or all services have run out of images.
+     *
+     * @param searchResult Merged search result. The same object is passed each time after it has been created.
+     */
+    public void onSearchResultChanged(SearchResult searchResult);
+
+    /**
+     * Called on the UI thread when a page could not be fetched from one of the services.
+     * The other services are not affected.
+     *
+     * @param settings Settings of the service that failed.
+     * @param e        Error returned by the API client.
+     */
+    public void onSourceFailed(SearchClient.Settings settings, IOException e);
+
+    /**
+     * Called on the UI thread when the search starts or stops waiting for responses from any of the services.
+     *
+     * @param isLoading True if there are requests waiting for a response.
+     */
+    public void onLoadingStateChanged(boolean isLoading);
+  }
+}
@@ -0,0 +1,603 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only list of the images in a {@link com.cuddlesoft.norilib.SearchResult}, stored in fixed-size chunks.
+ * Appending a page only copies the images in that page, and images are looked up by index in constant time.
+ * <p/>
+ * Only the chunks around the visible position are kept in memory. Distant chunks are spilled to disk as parcelled
+ * image arrays and read back in the background as they come back into the window, so endless scrolling through a long
+ * search result doesn't keep every image it has ever fetched in memory.
+ * <p/>
+ * {@link com.cuddlesoft.norilib.SearchResult} itself only holds the first page, the page offset and whether the last
+ * page has been reached. Pages fetched after the first one are appended here by the
+ * {@link com.cuddlesoft.nori.search.SearchResultPager}.
+ */
+public class ImageList {
+  /** Number of images in each chunk. */
+  public static final int CHUNK_SIZE = 256;
+  /** Log tag. */
+  private static final String TAG = "ImageList";
+  /** Name of the directory containing spilled chunks, inside the app's private data directory. */
+  private static final String SPILL_DIRECTORY = "image_pages";
+  /** Number of images kept in memory on each side of the visible position. */
+  private static final int WINDOW_SIZE = 512;
+  /** Background thread used for disk I/O. */
+  private static final Executor DISK_EXECUTOR = Executors.newSingleThreadExecutor();
+  /** Handler used to notify the listeners on the UI thread. */
+  private static final Handler UI_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  /** Image lists of each live search result. */
+  private static final Map<SearchResult, ImageList> instances = new WeakHashMap<>();
+  /** Spill directories of each live search result, removed once the search result is no longer used. */
+  private static final Map<File, WeakReference<SearchResult>> spillDirectories = new HashMap<>();
+  /** Directory containing the spill directories of all search results. Cleared when first used by this process. */
+  private static File spillRoot;
+  /** Name of the next spill directory. */
+  private static int nextSpillDirectoryId;
+  /** Directory this search result's chunks are spilled to. */
+  private final File spillDirectory;
+  /** Number of images in the first page, which is also held by the SearchResult. */
+  private final int firstPageSize;
+  /** Chunks, in order. All chunks but the last one are full. */
+  private final List<Chunk> chunks = new ArrayList<>();
+  /** Total number of images. */
+  private int size;
+  /** Index of the chunk containing the visible position, -1 if the visible position hasn't been set yet. */
+  private int visibleChunkIndex = -1;
+  /** Listeners notified when spilled images have been read back into memory. */
+  private final List<Listener> listeners = new ArrayList<>();
+  /** Notifies the listeners on the UI thread. */
+  private final Runnable notifyListenersTask = new Runnable() {
+    @Override
+    public void run() {
+      final Listener[] listeners;
+      synchronized (ImageList.this) {
+        listeners = ImageList.this.listeners.toArray(new Listener[ImageList.this.listeners.size()]);
+      }
+      for (Listener listener : listeners) {
+        listener.onImagesRead();
+      }
+    }
+  };
+
+  /**
+   * Create a new image list for a search result. Use {@link #of(android.content.Context, com.cuddlesoft.norilib.SearchResult)} instead.
+   *
+   * @param spillDirectory Directory chunks are spilled to.
+   * @param firstPage      Images in the first page of the search result.
+   */
+  private ImageList(File spillDirectory, Image[] firstPage) {
+    this.spillDirectory = spillDirectory;
+    this.firstPageSize = firstPage.length;
+    append(firstPage);
+  }
+
+  /**
+   * Get the image list of a search result. The first time the list of a search result is requested, it is created
+   * from the images the search result already contains.
+   *
+   * @param context      Android context.
+   * @param searchResult Search result.
+   * @return Images of the search result.
+   */
+  public static synchronized ImageList of(Context context, SearchResult searchResult) {
+    ImageList imageList = instances.get(searchResult);
+    if (imageList == null) {
+      imageList = new ImageList(createSpillDirectory(context, searchResult), searchResult.getImages());
+      instances.put(searchResult, imageList);
+    }
+    return imageList;
+  }
+
+  /**
+   * Create the image list of a search result restored from a parcel written by {@link #writeToParcel(android.os.Parcel)}.
+   *
+   * @param context      Android context.
+   * @param searchResult Search result restored from the same parcel, holding the first page.
+   * @param parcel       Parcel to read the other images from.
+   * @return Images of the search result.
+   */
+  static synchronized ImageList createFromParcel(Context context, SearchResult searchResult, Parcel parcel) {
+    final ImageList imageList = new ImageList(createSpillDirectory(context, searchResult), searchResult.getImages());
+    final Image[] images = new Image[parcel.readInt()];
+    for (int i = 0; i < images.length; i++) {
+      images[i] = Image.CREATOR.createFromParcel(parcel);
+    }
+    imageList.append(images);
+    instances.put(searchResult, imageList);
+    return imageList;
+  }
+
+  /**
+   * Create the directory the chunks of a search result are spilled to, and remove the directories of search results
+   * that are no longer used.
+   *
+   * @param context      Android context.
+   * @param searchResult Search result.
+   * @return Spill directory. Created on the disk thread, before any chunks are written to it.
+   */
+  private static File createSpillDirectory(Context context, SearchResult searchResult) {
+    if (spillRoot == null) {
+      // Chunks spilled by previous processes are never read again.
+      spillRoot = context.getApplicationContext().getDir(SPILL_DIRECTORY, Context.MODE_PRIVATE);
+      final File[] leftoverDirectories = spillRoot.listFiles();
+      if (leftoverDirectories != null) {
+        for (File directory : leftoverDirectories) {
+          deleteDirectory(directory);
+        }
+      }
+    }
+
+    final Iterator<Map.Entry<File, WeakReference<SearchResult>>> it = spillDirectories.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<File, WeakReference<SearchResult>> entry = it.next();
+      if (entry.getValue().get() == null) {
+        deleteDirectory(entry.getKey());
+        it.remove();
+      }
+    }
+
+    final File spillDirectory = new File(spillRoot, Integer.toString(nextSpillDirectoryId++));
+    spillDirectories.put(spillDirectory, new WeakReference<>(searchResult));
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        //noinspection ResultOfMethodCallIgnored
+        spillDirectory.mkdirs();
+      }
+    });
+    return spillDirectory;
+  }
+
+  /**
+   * Delete a spill directory and the chunks in it, on the disk thread.
+   *
+   * @param directory Spill directory.
+   */
+  private static void deleteDirectory(final File directory) {
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+          for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+          }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+      }
+    });
+  }
+
+  /**
+   * Get the total number of images.
+   *
+   * @return Number of images.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Add a listener notified when spilled images have been read back into memory.
+   * The grid and the image viewer can both show the same search result.
+   *
+   * @param listener Listener.
+   */
+  public synchronized void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Remove a listener added with {@link #addListener(Listener)}.
+   *
+   * @param listener Listener.
+   */
+  public synchronized void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Get an image without blocking. Chunks around the visible position are read back from disk in the background ahead
+   * of time, so this normally returns the image right away. If its chunk is still spilled, it is read in the
+   * background, and the {@link Listener}s are notified once it's in memory. Spilled chunks outside the window around
+   * the visible position are not read back.
+   *
+   * @param index Index of the image.
+   * @return Image. Null if its chunk is spilled to disk, or could not be read back.
+   */
+  public synchronized Image get(int index) {
+    checkIndex(index);
+    final Chunk chunk = chunks.get(index / CHUNK_SIZE);
+    if (chunk.images == null) {
+      readChunkInBackground(chunk);
+      return null;
+    }
+    return chunk.images[index % CHUNK_SIZE];
+  }
+
+  /**
+   * Check if an image has been lost, because its chunk could not be read back from disk.
+   * {@link #get(int)} will never return it.
+   *
+   * @param index Index of the image.
+   * @return True if the image has been lost.
+   */
+  public synchronized boolean isLost(int index) {
+    checkIndex(index);
+    return chunks.get(index / CHUNK_SIZE).isUnreadable;
+  }
+
+  /**
+   * Get an image, reading its chunk back from disk on the calling thread if it has been spilled.
+   * Must not be called from the UI thread; use {@link #get(int)} there.
+   *
+   * @param index Index of the image.
+   * @return Image. Null if its chunk could not be read back from disk.
+   */
+  public Image getNow(int index) {
+    final Chunk chunk;
+    synchronized (this) {
+      checkIndex(index);
+      chunk = chunks.get(index / CHUNK_SIZE);
+      if (chunk.images != null) {
+        return chunk.images[index % CHUNK_SIZE];
+      } else if (chunk.isUnreadable) {
+        return null;
+      }
+    }
+    // Spilled chunks are never modified, so the file can be read without holding the lock.
+    final Image[] images = readChunk(chunk);
+    synchronized (this) {
+      if (images == null) {
+        chunk.isUnreadable = true;
+        return null;
+      }
+      if (chunk.images == null && isInWindow(chunk)) {
+        chunk.images = images;
+      }
+    }
+    return images[index % CHUNK_SIZE];
+  }
+
+  /**
+   * Get the images in a chunk, for scans over the whole search result. Spilled chunks are read from disk on the
+   * calling thread, but are not kept in memory.
+   *
+   * @param chunkIndex Index of the chunk. Image {@code i} is in chunk {@code i / CHUNK_SIZE}, at index
+   *                   {@code i % CHUNK_SIZE}.
+   * @return Images in the chunk. The last chunk may not be full. Must not be modified. Null if the chunk could not be
+   * read back from disk.
+   */
+  public Image[] getChunk(int chunkIndex) {
+    final Chunk chunk;
+    synchronized (this) {
+      chunk = chunks.get(chunkIndex);
+      if (chunk.images != null || chunk.isUnreadable) {
+        return chunk.images;
+      }
+    }
+    // Spilled chunks are never modified, so the file can be read without holding the lock.
+    return readChunk(chunk);
+  }
+
+  /**
+   * Append a page of images.
+   *
+   * @param images Images in the page.
+   */
+  public synchronized void append(Image[] images) {
+    int copied = 0;
+    while (copied < images.length) {
+      if (size % CHUNK_SIZE == 0) {
+        chunks.add(new Chunk(chunks.size()));
+      }
+      // Only full chunks are spilled, so the last chunk is always in memory.
+      final Chunk chunk = chunks.get(chunks.size() - 1);
+      final int count = Math.min(images.length - copied, CHUNK_SIZE - size % CHUNK_SIZE);
+      System.arraycopy(images, copied, chunk.images, size % CHUNK_SIZE, count);
+      copied += count;
+      size += count;
+    }
+  }
+
+  /**
+   * Update the visible position. Chunks more than {@link #WINDOW_SIZE} images away from its chunk are spilled to disk,
+   * spilled chunks within the window are read back in the background. Should be called each time the visible range
+   * of images changes.
+   *
+   * @param position Index of the first visible image.
+   */
+  public synchronized void setVisiblePosition(int position) {
+    if (size == 0) {
+      return;
+    }
+    final int chunkIndex = Math.max(0, Math.min(position, size - 1)) / CHUNK_SIZE;
+    if (chunkIndex == visibleChunkIndex) {
+      return;
+    }
+    visibleChunkIndex = chunkIndex;
+
+    // The last chunk is still being filled, so it's never spilled.
+    for (int i = 0; i < chunks.size() - 1; i++) {
+      final Chunk chunk = chunks.get(i);
+      final boolean isInWindow = isInWindow(chunk);
+      if (isInWindow && chunk.images == null) {
+        readChunkInBackground(chunk);
+      } else if (!isInWindow && chunk.images != null) {
+        spill(chunk);
+      }
+    }
+  }
+
+  /**
+   * Write the images after the first page to a parcel. The first page is written by the
+   * {@link com.cuddlesoft.norilib.SearchResult} itself. Spilled chunks are read from disk on the calling thread.
+   * Chunks that can't be read back are left out.
+   * <p/>
+   * Images are never modified once appended, so this can be called from a background thread while more pages are
+   * appended, as long as the image count was read beforehand.
+   *
+   * @param parcel     Parcel to write the images to.
+   * @param imageCount Number of images to write, including the first page. At most {@link #size()}.
+   */
+  void writeToParcel(Parcel parcel, int imageCount) {
+    final int countPosition = parcel.dataPosition();
+    parcel.writeInt(0);
+    int writtenCount = 0;
+    for (int i = firstPageSize; i < imageCount; ) {
+      final Image[] chunk = getChunk(i / CHUNK_SIZE);
+      final int end = Math.min(imageCount, (i / CHUNK_SIZE + 1) * CHUNK_SIZE);
+      if (chunk == null) {
+        i = end;
+        continue;
+      }
+      for (; i < end; i++) {
+        chunk[i % CHUNK_SIZE].writeToParcel(parcel, 0);
+        writtenCount++;
+      }
+    }
+    // Write the number of images written in front of them.
+    final int endPosition = parcel.dataPosition();
+    parcel.setDataPosition(countPosition);
+    parcel.writeInt(writtenCount);
+    parcel.setDataPosition(endPosition);
+  }
+
+  /**
+   * Drop a chunk from memory, writing it to disk first if it hasn't been spilled before.
+   * The chunk stays in memory until it has been written.
+   *
+   * @param chunk Chunk to spill.
+   */
+  private void spill(final Chunk chunk) {
+    if (chunk.isWritten) {
+      chunk.images = null;
+      return;
+    }
+    if (chunk.isWriting) {
+      return;
+    }
+    chunk.isWriting = true;
+    final Image[] images = chunk.images;
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        final boolean isWritten = writeChunk(chunk, images);
+        synchronized (ImageList.this) {
+          chunk.isWriting = false;
+          chunk.isWritten = isWritten;
+          // The chunk may have scrolled back into view while it was being written.
+          if (isWritten && !isInWindow(chunk)) {
+            chunk.images = null;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Check if a chunk is within the window around the visible position.
+   *
+   * @param chunk Chunk.
+   * @return True if the chunk should be kept in memory.
+   */
+  private boolean isInWindow(Chunk chunk) {
+    if (visibleChunkIndex == -1) {
+      return true;
+    }
+    return Math.abs(chunk.index - visibleChunkIndex) * CHUNK_SIZE <= WINDOW_SIZE;
+  }
+
+  /**
+   * Check that an image index is valid.
+   *
+   * @param index Index of the image.
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + size);
+    }
+  }
+
+  /**
+   * Read a spilled chunk back into memory on the disk thread, so it's already there when it scrolls into view.
+   * The listeners are notified once the chunk has been read, or found to be unreadable. Does nothing if the chunk is already being read, or could
+   * not be read before. Must be called with the lock held.
+   *
+   * @param chunk Spilled chunk.
+   */
+  private void readChunkInBackground(final Chunk chunk) {
+    if (chunk.isReading || chunk.isUnreadable) {
+      return;
+    }
+    chunk.isReading = true;
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (ImageList.this) {
+          if (chunk.images != null || !isInWindow(chunk)) {
+            chunk.isReading = false;
+            return;
+          }
+        }
+        final Image[] images = readChunk(chunk);
+        synchronized (ImageList.this) {
+          chunk.isReading = false;
+          if (images == null) {
+            chunk.isUnreadable = true;
+          } else if (chunk.images == null) {
+            chunk.images = images;
+          }
+        }
+        UI_THREAD_HANDLER.post(notifyListenersTask);
+      }
+    });
+  }
+
+  /**
+   * Get the file a chunk is spilled to.
+   *
+   * @param chunk Chunk.
+   * @return Spill file.
+   */
+  private File getChunkFile(Chunk chunk) {
+    return new File(spillDirectory, Integer.toString(chunk.index));
+  }
+
+  /**
+   * Write a chunk to disk. Called on the disk thread.
+   *
+   * @param chunk  Chunk.
+   * @param images Images in the chunk.
+   * @return True if the chunk was written.
+   */
+  private boolean writeChunk(Chunk chunk, Image[] images) {
+    final Parcel parcel = Parcel.obtain();
+    parcel.writeTypedArray(images, 0);
+    final byte[] data = parcel.marshall();
+    parcel.recycle();
+
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(getChunkFile(chunk));
+      out.write(data);
+      return true;
+    } catch (IOException e) {
+      // The chunk is kept in memory instead.
+      Log.w(TAG, "Could not spill images to disk.", e);
+      return false;
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a spilled chunk from disk.
+   *
+   * @param chunk Spilled chunk.
+   * @return Images in the chunk. Null if the chunk could not be read.
+   */
+  private Image[] readChunk(Chunk chunk) {
+    final File file = getChunkFile(chunk);
+    InputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+      final byte[] buffer = new byte[8192];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+      final byte[] data = out.toByteArray();
+
+      final Parcel parcel = Parcel.obtain();
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      final Image[] images = parcel.createTypedArray(Image.CREATOR);
+      parcel.recycle();
+      return images;
+    } catch (IOException | RuntimeException e) {
+      // Spilled chunks live in private storage that isn't cleared by the system, so this shouldn't happen.
+      // The images in the chunk are shown as placeholders rather than crashing.
+      Log.e(TAG, "Could not read spilled images from " + file, e);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  /** A fixed-size chunk of images. */
+  private static class Chunk {
+    /** Index of the chunk. */
+    public final int index;
+    /** Images in the chunk. Null while the chunk is spilled to disk. */
+    public Image[] images = new Image[CHUNK_SIZE];
+    /** True if the chunk has been written to disk and can be dropped from memory at any time. */
+    public boolean isWritten;
+    /** True while the chunk is being written to disk. */
+    public boolean isWriting;
+    /** True while the chunk is being read back from disk in the background. */
+    public boolean isReading;
+    /** True if the chunk could not be read back from disk. Its images are lost. */
+    public boolean isUnreadable;
+
+    /**
+     * Create a new, empty chunk.
+     *
+     * @param index Index of the chunk.
+     */
+    public Chunk(int index) {
+      this.index = index;
+    }
+  }
+
+  /** Listener notified when spilled images have been read back into memory. */
+  public static interface Listener {
+    /** Called on the UI thread when images returned as null by {@link #get(int)} may now be available. */
+    public void onImagesRead();
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps a latency breakdown of recent {@link com.cuddlesoft.nori.search.SearchRequest}s in memory, so that slow
+ * servers, slow parsing and slow UI updates can be told apart. Samples can be exported as CSV or JSON.
+ */
+public class SearchMetrics {
+  /** Maximum number of samples kept in memory. Older samples are discarded first. */
+  private static final int MAX_SAMPLES = 500;
+  /** Header row of the CSV export. */
+  private static final String CSV_HEADER = "time,api_type,endpoint,offset,outcome,image_count,cache_lookup_ms,"
+      + "request_ms,cache_store_ms,filter_ms,delivery_ms,total_ms,error";
+  /** Shared instance. */
+  private static final SearchMetrics instance = new SearchMetrics();
+  /** Recorded samples, oldest first. */
+  private final Deque<Sample> samples = new ArrayDeque<>(MAX_SAMPLES);
+
+  /** Create a new SearchMetrics instance. Use {@link #getInstance()} instead. */
+  private SearchMetrics() {
+  }
+
+  /**
+   * Get the shared SearchMetrics instance.
+   *
+   * @return Shared SearchMetrics instance.
+   */
+  public static SearchMetrics getInstance() {
+    return instance;
+  }
+
+  /**
+   * Record a sample.
+   *
+   * @param sample Sample to record.
+   */
+  public synchronized void record(Sample sample) {
+    if (samples.size() >= MAX_SAMPLES) {
+      samples.removeFirst();
+    }
+    samples.addLast(sample);
+  }
+
+  /**
+   * Get the recorded samples.
+   *
+   * @return Copy of the recorded samples, newest first.
+   */
+  public synchronized List<Sample> getSamples() {
+    final List<Sample> list = new ArrayList<>(samples);
+    Collections.reverse(list);
+    return list;
+  }
+
+  /** Remove all recorded samples. */
+  public synchronized void clear() {
+    samples.clear();
+  }
+
+  /**
+   * Export the recorded samples as CSV. Durations are in milliseconds, empty if the stage didn't run.
+   *
+   * @return CSV document.
+   */
+  public String toCsv() {
+    final StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+    for (Sample sample : getSamples()) {
+      csv.append(sample.time).append(',')
+          .append(sample.apiType).append(',')
+          .append(escapeCsv(sample.endpoint)).append(',')
+          .append(sample.offset).append(',')
+          .append(sample.outcome).append(',')
+          .append(sample.imageCount).append(',')
+          .append(formatDuration(sample.cacheLookupTime)).append(',')
+          .append(formatDuration(sample.requestTime)).append(',')
+          .append(formatDuration(sample.cacheStoreTime)).append(',')
+          .append(formatDuration(sample.filterTime)).append(',')
+          .append(formatDuration(sample.deliveryTime)).append(',')
+          .append(formatDuration(sample.totalTime)).append(',')
+          .append(sample.error != null ? escapeCsv(sample.error) : "").append('\n');
+    }
+    return csv.toString();
+  }
+
+  /**
+   * Export the recorded samples as a JSON array. Durations are in milliseconds, omitted if the stage didn't run.
+   *
+   * @return JSON document.
+   */
+  public String toJson() {
+    final JSONArray json = new JSONArray();
+    try {
+      for (Sample sample : getSamples()) {
+        final JSONObject object = new JSONObject();
+        object.put("time", sample.time);
+        object.put("api_type", sample.apiType);
+        object.put("endpoint", sample.endpoint);
+        object.put("offset", sample.offset);
+        object.put("outcome", sample.outcome);
+        object.put("image_count", sample.imageCount);
+        putDuration(object, "cache_lookup_ms", sample.cacheLookupTime);
+        putDuration(object, "request_ms", sample.requestTime);
+        putDuration(object, "cache_store_ms", sample.cacheStoreTime);
+        putDuration(object, "filter_ms", sample.filterTime);
+        putDuration(object, "delivery_ms", sample.deliveryTime);
+        putDuration(object, "total_ms", sample.totalTime);
+        object.putOpt("error", sample.error);
+        json.put(object);
+      }
+    } catch (JSONException e) {
+      // Only thrown for non-finite numbers, which durations never are.
+      throw new IllegalStateException(e);
+    }
+    return json.toString();
+  }
+
+  /**
+   * Get the median duration of a stage over the recorded samples.
+   *
+   * @param stage Stage to get the durations of.
+   * @return Median duration in milliseconds. -1 if the stage didn't run in any of the samples.
+   */
+  public double getMedian(Stage stage) {
+    final List<Long> durations = new ArrayList<>();
+    for (Sample sample : getSamples()) {
+      final long duration = sample.getDuration(stage);
+      if (duration >= 0) {
+        durations.add(duration);
+      }
+    }
+    if (durations.isEmpty()) {
+      return -1;
+    }
+    Collections.sort(durations);
+    return durations.get(durations.size() / 2) / 1000d;
+  }
+
+  /**
+   * Add a duration to a JSON object.
+   *
+   * @param object   JSON object.
+   * @param name     Property name.
+   * @param duration Duration in microseconds. Not added if negative.
+   */
+  private static void putDuration(JSONObject object, String name, long duration) throws JSONException {
+    if (duration >= 0) {
+      object.put(name, duration / 1000d);
+    }
+  }
+
+  /**
+   * Format a duration as milliseconds.
+   *
+   * @param duration Duration in microseconds.
+   * @return Milliseconds with three decimal places. Empty if the duration is negative.
+   */
+  private static String formatDuration(long duration) {
+    return duration >= 0 ? String.format(Locale.US, "%.3f", duration / 1000d) : "";
+  }
+
+  /**
+   * Quote a CSV field, if needed.
+   *
+   * @param value Field value.
+   * @return Field value safe to include in a CSV row.
+   */
+  private static String escapeCsv(String value) {
+    if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"") + '"';
+  }
+
+  /** Stages of a search request. */
+  public static enum Stage {
+    /** Looking up the page in the {@link com.cuddlesoft.nori.search.SearchResultCache}. */
+    CACHE_LOOKUP,
+    /** Resolving the host name, connecting, sending the request, receiving and parsing the response in the API client. */
+    REQUEST,
+    /** Storing the page in the {@link com.cuddlesoft.nori.search.SearchResultCache}. */
+    CACHE_STORE,
+    /** Filtering the page using the {@link com.cuddlesoft.nori.search.SearchResultFilter}. */
+    FILTER,
+    /** Waiting for the UI thread to pick up the page. */
+    DELIVERY,
+    /** Whole request, from being sent to the executor to the page being delivered. */
+    TOTAL
+  }
+
+  /** Latency breakdown of a single search request. All durations are in microseconds, -1 if the stage didn't run. */
+  public static class Sample {
+    /** The page was returned from the cache and was still fresh. */
+    public static final String OUTCOME_CACHE = "cache";
+    /** The page was fetched from the API. */
+    public static final String OUTCOME_NETWORK = "network";
+    /** A stale page was returned from the cache, then revalidated with the API. */
+    public static final String OUTCOME_REVALIDATED = "revalidated";
+    /** The page could not be fetched. */
+    public static final String OUTCOME_FAILED = "failed";
+    /** The request was cancelled before it finished. */
+    public static final String OUTCOME_CANCELLED = "cancelled";
+    /** Time the request was sent, in milliseconds since the epoch. */
+    public final long time = System.currentTimeMillis();
+    /** API type of the search client. */
+    public final String apiType;
+    /** API endpoint URL. */
+    public final String endpoint;
+    /** Page offset. */
+    public final int offset;
+    /** How the request ended. One of the OUTCOME_ constants. */
+    public String outcome;
+    /** Number of images in the page, before filtering. */
+    public int imageCount;
+    /** Time spent looking up the page in the cache. */
+    public long cacheLookupTime = -1;
+    /** Time spent in the API client (DNS lookup, connect, TLS handshake, time to first byte, transfer and parsing). */
+    public long requestTime = -1;
+    /** Time spent storing the page in the cache. */
+    public long cacheStoreTime = -1;
+    /** Time spent filtering the page. */
+    public long filterTime = -1;
+    /** Time between the page being ready and the UI thread picking it up. */
+    public long deliveryTime = -1;
+    /** Time from the request being sent to the page being delivered, or the request failing. */
+    public long totalTime = -1;
+    /** Error message, if the request failed. */
+    public String error;
+
+    /**
+     * Create a new sample.
+     *
+     * @param apiType  API type of the search client.
+     * @param endpoint API endpoint URL.
+     * @param offset   Page offset.
+     */
+    public Sample(String apiType, String endpoint, int offset) {
+      this.apiType = apiType;
+      this.endpoint = endpoint;
+      this.offset = offset;
+    }
+
+    /**
+     * Get the duration of a stage.
+     *
+     * @param stage Stage.
+     * @return Duration in microseconds. -1 if the stage didn't run.
+     */
+    public long getDuration(Stage stage) {
+      switch (stage) {
+        case CACHE_LOOKUP:
+          return cacheLookupTime;
+        case REQUEST:
+          return requestTime;
+        case CACHE_STORE:
+          return cacheStoreTime;
+        case FILTER:
+          return filterTime;
+        case DELIVERY:
+          return deliveryTime;
+        default:
+          return totalTime;
+      }
+    }
+  }
+}
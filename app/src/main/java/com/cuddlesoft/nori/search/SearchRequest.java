@@ -0,0 +1,367 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import com.cuddlesoft.nori.database.SearchResultCacheDatabase;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.clients.SearchClient;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cancellable request for a single page of search results. The page is returned from the
+ * {@link com.cuddlesoft.nori.search.SearchResultCache} when possible, fetched from the API otherwise and filtered
+ * using the {@link com.cuddlesoft.nori.search.SearchResultFilter}, all on a background thread.
+ * <p/>
+ * Cancelling a request skips all the remaining caching and filtering work. The HTTP transfer itself is made by the
+ * {@link com.cuddlesoft.norilib.clients.SearchClient}, which doesn't expose its connection, and an interrupt doesn't
+ * abort a blocking socket read, so a transfer already under way runs to completion in the background. Cancelled
+ * requests stop counting towards the limit of requests fetched at the same time as soon as they are cancelled, so that
+ * they never hold back the requests sent after them.
+ * <p/>
+ * The time spent in each stage of the request is recorded in {@link com.cuddlesoft.nori.search.SearchMetrics}.
+ */
+public class SearchRequest implements Runnable {
+  /** Largest number of requests fetching pages at the same time. */
+  private static final int MAX_ACTIVE_REQUESTS = 4;
+  /** Permits held by the requests fetching pages. Released as soon as a request is cancelled. */
+  private static final Semaphore ACTIVE_REQUESTS = new Semaphore(MAX_ACTIVE_REQUESTS);
+  /**
+   * Worker threads running the requests. Not bounded, since the workers of cancelled requests may still be blocked on
+   * their transfer. The number of requests fetching pages is limited by {@link #ACTIVE_REQUESTS} instead.
+   */
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+  /** Handler used to deliver the results to the UI thread. */
+  private static final Handler UI_THREAD_HANDLER = new Handler(Looper.getMainLooper());
+  /** Application context. */
+  private final Context context;
+  /** Search API client. */
+  private final SearchClient searchClient;
+  /** Query string (a space-separated list of tags). */
+  private final String query;
+  /** Page offset. */
+  private final int offset;
+  /** Callback notified on the UI thread when the page is available. */
+  private final Callback callback;
+  /** Future used to interrupt the worker thread when the request is cancelled. */
+  private Future<?> future;
+  /** True if the request was cancelled. */
+  private volatile boolean isCancelled;
+  /** True once the request has either been picked up by a worker thread or cancelled before that. */
+  private final AtomicBoolean hasStarted = new AtomicBoolean();
+  /** True while the request holds one of the {@link #ACTIVE_REQUESTS} permits. */
+  private final AtomicBoolean hasPermit = new AtomicBoolean();
+  /**
+   * Latency breakdown of this request. Only written by the worker thread, and handed over to the UI thread by
+   * {@link #recordSample()} once the worker is done with it.
+   */
+  private final SearchMetrics.Sample sample;
+  /** Time from the page being ready to it being delivered to the callback, in microseconds. Only used on the UI thread. */
+  private long deliveryTime = -1;
+  /** Time from the request being created to the result being delivered to the callback, in microseconds. Only used on the UI thread. */
+  private long totalTime = -1;
+  /** Time the request was created, in microseconds of {@link System#nanoTime()}. */
+  private final long startTime = now();
+
+  /**
+   * Create a new search request. Use {@link #execute(Context, SearchClient, String, int, Callback)} instead.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client.
+   * @param query        Query string (a space-separated list of tags).
+   * @param offset       Page offset.
+   * @param callback     Callback notified on the UI thread when the page is available.
+   */
+  private SearchRequest(Context context, SearchClient searchClient, String query, int offset, Callback callback) {
+    this.context = context.getApplicationContext();
+    this.searchClient = searchClient;
+    this.query = query;
+    this.offset = offset;
+    this.callback = callback;
+    final SearchClient.Settings settings = searchClient.getSettings();
+    this.sample = new SearchMetrics.Sample(settings.getApiType().name(), settings.getEndpoint(), offset);
+  }
+
+  /**
+   * Request a page of search results on a background thread.
+   * If the callback implements {@link OnRevalidatedListener}, it is also notified if a stale page returned from the
+   * cache turns out to be different from the page currently returned by the API.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client.
+   * @param query        Query string (a space-separated list of tags).
+   * @param offset       Page offset.
+   * @param callback     Callback notified on the UI thread when the page is available.
+   * @return Handle used to cancel the request.
+   */
+  public static SearchRequest execute(Context context, SearchClient searchClient, String query, int offset, Callback callback) {
+    final SearchRequest request = new SearchRequest(context, searchClient, query, offset, callback);
+    request.future = EXECUTOR.submit(request);
+    return request;
+  }
+
+  /**
+   * Cancel the request. The callback will not be notified after calling this method.
+   * Must be called from the UI thread.
+   */
+  public void cancel() {
+    isCancelled = true;
+    future.cancel(true);
+    // Let the next request start right away, even if the worker is still blocked on the transfer.
+    releasePermit();
+    // Requests cancelled before a worker picked them up never run, so their sample is recorded here.
+    if (hasStarted.compareAndSet(false, true)) {
+      recordSample();
+    }
+  }
+
+  /**
+   * Check if the request was cancelled.
+   *
+   * @return True if {@link #cancel()} was called.
+   */
+  public boolean isCancelled() {
+    return isCancelled;
+  }
+
+  /**
+   * Get the offset of the requested page.
+   *
+   * @return Page offset.
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  @Override
+  public void run() {
+    if (!hasStarted.compareAndSet(false, true)) {
+      // Cancelled before being picked up by a worker.
+      return;
+    }
+    try {
+      ACTIVE_REQUESTS.acquire();
+    } catch (InterruptedException e) {
+      // Cancelled while waiting for the other requests.
+      recordSample();
+      return;
+    }
+    hasPermit.set(true);
+    try {
+      if (!isCancelled) {
+        fetchPage();
+      }
+    } finally {
+      releasePermit();
+      recordSample();
+    }
+  }
+
+  /** Release the {@link #ACTIVE_REQUESTS} permit held by this request, if it still holds it. */
+  private void releasePermit() {
+    if (hasPermit.compareAndSet(true, false)) {
+      ACTIVE_REQUESTS.release();
+    }
+  }
+
+  /** Return the page from the cache or fetch it from the API, then filter it and deliver it to the callback. */
+  private void fetchPage() {
+    final SearchResultCache searchResultCache = SearchResultCache.getInstance(context);
+    final String key = SearchResultCache.createKey(searchClient.getSettings(), query, offset);
+
+    // Return the cached page, if available.
+    long stageStartTime = now();
+    final SearchResultCacheDatabase.Entry entry = searchResultCache.get(key);
+    sample.cacheLookupTime = now() - stageStartTime;
+    Image[] cachedImages = null;
+    if (entry != null && !isCancelled) {
+      // Keep the unfiltered images to compare them with the up-to-date page later.
+      cachedImages = entry.searchResult.getImages();
+      sample.outcome = SearchMetrics.Sample.OUTCOME_CACHE;
+      sample.imageCount = cachedImages.length;
+      deliverResult(entry.searchResult, false);
+      if (System.currentTimeMillis() - entry.createdTime <= SearchResultCache.FRESH_TIME) {
+        return;
+      }
+    }
+    if (isCancelled) {
+      return;
+    }
+
+    // Fetch the page from the API.
+    final SearchResult searchResult;
+    stageStartTime = now();
+    try {
+      searchResult = searchClient.search(query, offset);
+    } catch (final IOException e) {
+      sample.requestTime = now() - stageStartTime;
+      sample.error = e.toString();
+      // Failing to revalidate a page that has already been returned from the cache isn't an error.
+      if (cachedImages == null) {
+        sample.outcome = SearchMetrics.Sample.OUTCOME_FAILED;
+        deliverFailure(e);
+      }
+      return;
+    }
+    sample.requestTime = now() - stageStartTime;
+    if (isCancelled) {
+      return;
+    }
+
+    // Store the page before it gets filtered.
+    stageStartTime = now();
+    searchResultCache.put(key, searchResult);
+    sample.cacheStoreTime = now() - stageStartTime;
+    if (cachedImages == null) {
+      sample.outcome = SearchMetrics.Sample.OUTCOME_NETWORK;
+      sample.imageCount = searchResult.getImages().length;
+      deliverResult(searchResult, false);
+    } else {
+      sample.outcome = SearchMetrics.Sample.OUTCOME_REVALIDATED;
+      if (callback instanceof OnRevalidatedListener && !hasSameImages(cachedImages, searchResult.getImages())) {
+        deliverResult(searchResult, true);
+      }
+    }
+  }
+
+  /**
+   * Record the latency breakdown on the UI thread, after the page has been delivered. Called by the worker thread once
+   * it's done writing to the sample. Posting the sample to the UI thread publishes the worker's writes to it.
+   */
+  private void recordSample() {
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        // Results are posted before the sample, so the timings measured on the UI thread are known by now.
+        sample.deliveryTime = deliveryTime;
+        sample.totalTime = totalTime;
+        if (isCancelled) {
+          sample.outcome = SearchMetrics.Sample.OUTCOME_CANCELLED;
+          sample.totalTime = now() - startTime;
+        }
+        SearchMetrics.getInstance().record(sample);
+      }
+    });
+  }
+
+  /**
+   * Filter the page and deliver it to the callback on the UI thread.
+   *
+   * @param searchResult   Unfiltered page.
+   * @param isRevalidation True if the page replaces a stale page returned from the cache.
+   */
+  private void deliverResult(SearchResult searchResult, final boolean isRevalidation) {
+    final int unfilteredCount = searchResult.getImages().length;
+    final long filterStartTime = now();
+    final SearchResult filteredResult = SearchResultFilter.getInstance(context).filter(searchResult);
+    final long readyTime = now();
+    if (!isRevalidation) {
+      sample.filterTime = readyTime - filterStartTime;
+    }
+
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        if (isCancelled) {
+          return;
+        }
+        if (isRevalidation) {
+          ((OnRevalidatedListener) callback).onRevalidated(filteredResult, unfilteredCount);
+        } else {
+          deliveryTime = now() - readyTime;
+          totalTime = now() - startTime;
+          callback.onSuccess(filteredResult, unfilteredCount);
+        }
+      }
+    });
+  }
+
+  /**
+   * Deliver an error to the callback on the UI thread.
+   *
+   * @param e Error returned by the API client.
+   */
+  private void deliverFailure(final IOException e) {
+    UI_THREAD_HANDLER.post(new Runnable() {
+      @Override
+      public void run() {
+        if (!isCancelled) {
+          totalTime = now() - startTime;
+          callback.onFailure(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Get the current time.
+   *
+   * @return Time in microseconds of {@link System#nanoTime()}.
+   */
+  private static long now() {
+    return System.nanoTime() / 1000;
+  }
+
+  /**
+   * Check if two pages contain the same images.
+   *
+   * @param a Images in the first page.
+   * @param b Images in the second page.
+   * @return True if both pages have the same image IDs, in the same order.
+   */
+  private static boolean hasSameImages(Image[] a, Image[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; i++) {
+      if (!TextUtils.equals(a[i].id, b[i].id)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Callback notified when the requested page is available. */
+  public static interface Callback {
+    /**
+     * Called on the UI thread when the page has been fetched and filtered.
+     *
+     * @param searchResult    Filtered page.
+     * @param unfilteredCount Number of images in the page before it was filtered.
+     */
+    public void onSuccess(SearchResult searchResult, int unfilteredCount);
+
+    /**
+     * Called on the UI thread when the page could not be fetched.
+     *
+     * @param e Error returned by the API client.
+     */
+    public void onFailure(IOException e);
+  }
+
+  /** Implemented by {@link Callback}s that can replace a stale page returned from the cache. */
+  public static interface OnRevalidatedListener {
+    /**
+     * Called on the UI thread when a stale page returned from the cache differs from the page returned by the API.
+     *
+     * @param searchResult    Filtered up-to-date page.
+     * @param unfilteredCount Number of images in the page before it was filtered.
+     */
+    public void onRevalidated(SearchResult searchResult, int unfilteredCount);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.cuddlesoft.nori.database.SearchResultCacheDatabase;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.clients.SearchClient;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent cache of unfiltered {@link com.cuddlesoft.norilib.SearchResult} pages, keyed by the API endpoint, the
+ * normalized query string and the page offset. Pages are looked up and stored by
+ * {@link com.cuddlesoft.nori.search.SearchRequest}s. Cached pages are returned immediately, while pages older than
+ * {@link #FRESH_TIME} are revalidated with the API.
+ */
+public class SearchResultCache {
+  /** Cached pages younger than this are returned without revalidation, in milliseconds. */
+  public static final long FRESH_TIME = 5 * 60 * 1000;
+  /** Cached pages older than this are never returned, in milliseconds. */
+  public static final long MAX_STALE_TIME = 24 * 60 * 60 * 1000;
+  /** Maximum total size of the cached pages on disk, in bytes. */
+  public static final long MAX_SIZE = 4 * 1024 * 1024;
+  /** Trim the cache after this many pages have been stored. */
+  private static final int TRIM_INTERVAL = 16;
+  /** Background thread used to clear the cache. */
+  private static final Executor DISK_EXECUTOR = Executors.newSingleThreadExecutor();
+  /** Shared instance, created when first requested using {@link #getInstance(android.content.Context)}. */
+  private static SearchResultCache instance;
+  /** Database holding the cached pages. */
+  private final SearchResultCacheDatabase database;
+  /** Number of pages stored since the cache was last trimmed. */
+  private int pagesSinceTrim = TRIM_INTERVAL;
+
+  /**
+   * Create a new search result cache. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private SearchResultCache(Context context) {
+    database = new SearchResultCacheDatabase(context.getApplicationContext());
+  }
+
+  /**
+   * Get the shared SearchResultCache instance.
+   *
+   * @param context Android context.
+   * @return Shared SearchResultCache instance.
+   */
+  public static synchronized SearchResultCache getInstance(Context context) {
+    if (instance == null) {
+      instance = new SearchResultCache(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Create the key used to store a page in the cache.
+   *
+   * @param settings Settings of the API client used to fetch the page.
+   * @param query    Query string (a space-separated list of tags).
+   * @param offset   Page offset.
+   * @return Cache key.
+   */
+  public static String createKey(SearchClient.Settings settings, String query, int offset) {
+    // Results may differ for each user (e.g. user blacklists), so the username is part of the key.
+    return String.format(Locale.US, "%s\n%s\n%s\n%d", settings.getEndpoint(),
+        settings.getUsername() != null ? settings.getUsername() : "", normalizeQuery(query), offset);
+  }
+
+  /**
+   * Normalize the query string, so that equivalent queries share cache entries.
+   *
+   * @param query Query string (a space-separated list of tags).
+   * @return Lower case, sorted list of the unique tags in the query, separated by single spaces.
+   */
+  public static String normalizeQuery(String query) {
+    if (query == null) {
+      return "";
+    }
+    final String trimmedQuery = query.trim().toLowerCase(Locale.US);
+    if (trimmedQuery.isEmpty()) {
+      return "";
+    }
+    return TextUtils.join(" ", new TreeSet<>(Arrays.asList(trimmedQuery.split("\\s+"))));
+  }
+
+  /**
+   * Get a page from the cache. Must not be called on the UI thread.
+   * Database access is serialized, as requests for several pages may run in parallel.
+   *
+   * @param key Cache key created using {@link #createKey(SearchClient.Settings, String, int)}.
+   * @return Cached page. Null if there is no cached page younger than {@link #MAX_STALE_TIME}.
+   */
+  public synchronized SearchResultCacheDatabase.Entry get(String key) {
+    final SearchResultCacheDatabase.Entry entry = database.get(key);
+    if (entry == null || System.currentTimeMillis() - entry.createdTime > MAX_STALE_TIME) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Store a page in the cache. Must not be called on the UI thread.
+   *
+   * @param key          Cache key created using {@link #createKey(SearchClient.Settings, String, int)}.
+   * @param searchResult Unfiltered search result page.
+   */
+  public synchronized void put(String key, SearchResult searchResult) {
+    database.put(key, searchResult);
+
+    // Remove expired and least recently used pages every once in a while.
+    if (++pagesSinceTrim >= TRIM_INTERVAL) {
+      database.trim(MAX_SIZE, System.currentTimeMillis() - MAX_STALE_TIME);
+      pagesSinceTrim = 0;
+    }
+  }
+
+  /** Remove all pages from the cache on a background thread. */
+  public void clear() {
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (SearchResultCache.this) {
+          database.clear();
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import com.cuddlesoft.nori.R;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes images from {@link com.cuddlesoft.norilib.SearchResult}s according to the obscenity rating and tag filter
+ * preferences. The preferences are compiled into a rating bitmask and a hashed tag blacklist once and only compiled
+ * again after they are changed by the user, so filtering a page costs a single pass over its images.
+ */
+public class SearchResultFilter implements SharedPreferences.OnSharedPreferenceChangeListener {
+  /** Shared instance, created when first requested using {@link #getInstance(android.content.Context)}. */
+  private static SearchResultFilter instance;
+  /** Application context. */
+  private final Context context;
+  /** Default {@link android.content.SharedPreferences} object. */
+  private final SharedPreferences sharedPreferences;
+  /** Incremented each time the filter preferences change. Filters compiled before the last change are discarded. */
+  private final AtomicInteger generation = new AtomicInteger();
+  /** Last filter compiled. Out of date if its generation doesn't match {@link #generation}. Null until first used. */
+  private volatile CompiledFilter compiledFilter;
+
+  /**
+   * Create a new search result filter. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private SearchResultFilter(Context context) {
+    this.context = context.getApplicationContext();
+    this.sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+    // The preferences only keep a weak reference to the listener, which is fine since the shared instance is never freed.
+    sharedPreferences.registerOnSharedPreferenceChangeListener(this);
+  }
+
+  /**
+   * Get the shared SearchResultFilter instance.
+   *
+   * @param context Android context.
+   * @return Shared SearchResultFilter instance.
+   */
+  public static synchronized SearchResultFilter getInstance(Context context) {
+    if (instance == null) {
+      instance = new SearchResultFilter(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Filter the search result on the calling thread. Safe to call from background threads.
+   *
+   * @param searchResult Search result to filter.
+   * @return Search result with the filtered out images removed. The same object is returned if no images were removed.
+   */
+  public SearchResult filter(SearchResult searchResult) {
+    final CompiledFilter filter = getCompiledFilter();
+    final Image[] images = searchResult.getImages();
+    final List<Image> imagesKept = new ArrayList<>(images.length);
+
+    for (Image image : images) {
+      if (filter.accept(image)) {
+        imagesKept.add(image);
+      }
+    }
+
+    if (imagesKept.size() == images.length) {
+      return searchResult;
+    }
+    return new SearchResult(imagesKept.toArray(new Image[imagesKept.size()]),
+        searchResult.getQuery(), searchResult.getCurrentOffset());
+  }
+
+  /**
+   * Get the filter compiled from the current preference values, compiling it first if needed.
+   *
+   * @return Compiled filter.
+   */
+  private CompiledFilter getCompiledFilter() {
+    // The generation is read before the preferences, so a filter compiled from values changed in the meantime is
+    // tagged with the generation that was already out of date, and compiled again on the next call.
+    final int currentGeneration = generation.get();
+    CompiledFilter filter = compiledFilter;
+    if (filter == null || filter.generation != currentGeneration) {
+      filter = compileFilter(currentGeneration);
+      compiledFilter = filter;
+    }
+    return filter;
+  }
+
+  /**
+   * Compile the obscenity rating and tag filter preferences.
+   *
+   * @param generation Value of {@link #generation} read before the preferences.
+   * @return Compiled filter.
+   */
+  private CompiledFilter compileFilter(int generation) {
+    // Get obscenity ratings to show from shared preferences or fallback to the default value.
+    final String nsfwFilter = sharedPreferences.getString(context.getString(R.string.preference_nsfwFilter_key), "").trim();
+    final Image.ObscenityRating[] obscenityRatings;
+    if (!TextUtils.isEmpty(nsfwFilter)) {
+      obscenityRatings = Image.ObscenityRating.arrayFromStrings(nsfwFilter.split(" "));
+    } else {
+      obscenityRatings = Image.ObscenityRating.arrayFromStrings(
+          context.getResources().getStringArray(R.array.preference_nsfwFilter_defaultValues));
+    }
+    int obscenityRatingMask = 0;
+    for (Image.ObscenityRating obscenityRating : obscenityRatings) {
+      obscenityRatingMask |= 1 << obscenityRating.ordinal();
+    }
+
+    // Get names of the tags to filter out from shared preferences.
+    final String tagFilter = sharedPreferences.getString(context.getString(R.string.preference_tagFilter_key), "").trim();
+    final Set<String> tagBlacklist = new HashSet<>();
+    if (!TextUtils.isEmpty(tagFilter)) {
+      for (Tag tag : Tag.arrayFromString(tagFilter)) {
+        tagBlacklist.add(tag.getName());
+      }
+    }
+
+    return new CompiledFilter(generation, obscenityRatingMask, tagBlacklist);
+  }
+
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    // Compile the filter again the next time it is used.
+    if (context.getString(R.string.preference_nsfwFilter_key).equals(key)
+        || context.getString(R.string.preference_tagFilter_key).equals(key)) {
+      generation.incrementAndGet();
+    }
+  }
+
+  /** Immutable filter compiled from the obscenity rating and tag filter preferences. */
+  private static class CompiledFilter {
+    /** Value of {@link SearchResultFilter#generation} when the preferences were read. */
+    private final int generation;
+    /** Bitmask of the {@link com.cuddlesoft.norilib.Image.ObscenityRating} ordinals to show. */
+    private final int obscenityRatingMask;
+    /** Names of tags to remove from search results. */
+    private final Set<String> tagBlacklist;
+
+    /**
+     * Create a new compiled filter.
+     *
+     * @param generation          Value of {@link SearchResultFilter#generation} when the preferences were read.
+     * @param obscenityRatingMask Bitmask of the obscenity rating ordinals to show.
+     * @param tagBlacklist        Names of tags to remove from search results.
+     */
+    public CompiledFilter(int generation, int obscenityRatingMask, Set<String> tagBlacklist) {
+      this.generation = generation;
+      this.obscenityRatingMask = obscenityRatingMask;
+      this.tagBlacklist = tagBlacklist;
+    }
+
+    /**
+     * Check if an image should be kept in the search result.
+     *
+     * @param image Image to check.
+     * @return True if the image passes the filter.
+     */
+    public boolean accept(Image image) {
+      // Treat images without an obscenity rating the same as images with an undefined rating.
+      final Image.ObscenityRating obscenityRating =
+          image.obscenityRating != null ? image.obscenityRating : Image.ObscenityRating.UNDEFINED;
+      if ((obscenityRatingMask & (1 << obscenityRating.ordinal())) == 0) {
+        return false;
+      }
+
+      if (!tagBlacklist.isEmpty() && image.tags != null) {
+        for (Tag tag : image.tags) {
+          if (tagBlacklist.contains(tag.getName())) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+  }
+}
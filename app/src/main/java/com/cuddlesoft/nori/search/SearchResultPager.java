@@ -0,0 +1,467 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.cuddlesoft.nori.util.LongHashSet;
+import com.cuddlesoft.norilib.Image;
+import com.cuddlesoft.norilib.SearchResult;
+import com.cuddlesoft.norilib.Tag;
+import com.cuddlesoft.norilib.clients.SearchClient;
+
+import java.io.IOException;
+
+/**
+ * Fetches more pages of a {@link com.cuddlesoft.norilib.SearchResult} ahead of the user's scroll position to implement
+ * endless scrolling. The number of images kept loaded ahead is adapted to the scroll velocity and to how long recent
+ * pages took to arrive. Up to {@link #MAX_REQUESTS_IN_FLIGHT} pages are requested in parallel, but they are always
+ * appended to the search result in order.
+ * <p/>
+ * Listings shift when new images are posted while the user is scrolling, so pages fetched by offset can repeat images
+ * from previous pages. These duplicates are dropped before a page is appended.
+ * <p/>
+ * Stale pages returned from the {@link com.cuddlesoft.nori.search.SearchResultCache} are revalidated with the API.
+ * Images are never removed from the search result, so the images missing from a stale page that has already been
+ * appended are added to the end of the search result.
+ */
+public class SearchResultPager {
+  /** Maximum number of page requests waiting for a response at the same time. */
+  private static final int MAX_REQUESTS_IN_FLIGHT = 3;
+  /** Page latency assumed before the first page arrives, in milliseconds. */
+  private static final long INITIAL_PAGE_LATENCY = 1500;
+  /** Weight given to the latest sample in the page latency and page size moving averages. */
+  private static final float MOVING_AVERAGE_WEIGHT = 0.3f;
+  /** Fetch enough images to cover this multiple of the expected page latency at the current scroll velocity. */
+  private static final float LOOKAHEAD_SAFETY_FACTOR = 1.5f;
+  /** Scroll velocity is considered to be zero when the scroll position hasn't changed for this long, in milliseconds. */
+  private static final long SCROLL_IDLE_TIME = 500;
+  /** Time to wait before requesting a page again after a request fails, in milliseconds. */
+  private static final long RETRY_DELAY = 5000;
+  /** Value returned by {@link #parseImageId(Image)} for images without a numeric ID. */
+  private static final long INVALID_IMAGE_ID = -1L;
+  /** Passed to {@link com.cuddlesoft.norilib.SearchResult#addImages(Image[], int)} to advance the page offset. */
+  private static final Image[] NO_IMAGES = new Image[0];
+  /** Application context. */
+  private final Context context;
+  /** Search API client. */
+  private final SearchClient searchClient;
+  /** Search result extended with the fetched pages. */
+  private final SearchResult searchResult;
+  /** Images of the search result, new pages are appended to. */
+  private final ImageList imageList;
+  /** Query string of the search result. */
+  private final String query;
+  /** Minimum number of images to keep loaded ahead of the last visible image. */
+  private final int minLookahead;
+  /** Listener notified when new pages are appended to the search result. */
+  private final Listener listener;
+  /** Requests for pages waiting for a response from the API. Mapped by page offset. */
+  private final SparseArray<SearchRequest> requestsInFlight = new SparseArray<>();
+  /** Pages received out of order, waiting for the preceding pages to arrive. Mapped by page offset. */
+  private final SparseArray<Page> pendingPages = new SparseArray<>();
+  /** IDs of the images in the search result, used to drop duplicate images from new pages. */
+  private final LongHashSet imageIds;
+  /** Number of images at the start of the search result whose IDs have been added to {@link #imageIds}. */
+  private int indexedImageCount;
+  /** Offset of the next page to append to the search result. */
+  private int nextOffsetToDeliver;
+  /** Moving average of the time it took for recent pages to arrive, in milliseconds. */
+  private float pageLatency = INITIAL_PAGE_LATENCY;
+  /** Moving average of the number of images in each page, after filtering. */
+  private float pageSize;
+  /** Current scroll velocity, in images per second. */
+  private float scrollVelocity;
+  /** Index of the first visible image the last time the scroll position changed. */
+  private int lastFirstVisibleItem = -1;
+  /** Time of the last scroll position change, in milliseconds of {@link android.os.SystemClock#uptimeMillis()}. */
+  private long lastScrollTime;
+  /** Don't send any requests before this time after a request has failed, in milliseconds of uptime. */
+  private long retryTime;
+  /** True if the pager was cancelled and should no longer extend the search result. */
+  private boolean isCancelled;
+
+  /**
+   * Create a new pager.
+   *
+   * @param context      Android context.
+   * @param searchClient Search API client used to fetch more pages.
+   * @param searchResult Search result to extend.
+   * @param minLookahead Minimum number of images to keep loaded ahead of the last visible image.
+   * @param listener     Listener notified when new pages are appended to the search result.
+   */
+  public SearchResultPager(Context context, SearchClient searchClient, SearchResult searchResult, int minLookahead,
+                           Listener listener) {
+    this.context = context.getApplicationContext();
+    this.searchClient = searchClient;
+    this.searchResult = searchResult;
+    this.imageList = ImageList.of(context, searchResult);
+    this.query = Tag.stringFromArray(searchResult.getQuery());
+    this.minLookahead = minLookahead;
+    this.listener = listener;
+    this.nextOffsetToDeliver = searchResult.getCurrentOffset() + 1;
+    // The SearchResult only holds its first page.
+    this.pageSize = Math.max(1, searchResult.getImages().length);
+    this.imageIds = new LongHashSet(imageList.size() * 4);
+    indexImageIds();
+  }
+
+  /**
+   * Get the search result extended by this pager.
+   *
+   * @return Search result.
+   */
+  public SearchResult getSearchResult() {
+    return searchResult;
+  }
+
+  /**
+   * Check if there are page requests waiting for a response from the API.
+   *
+   * @return True if more pages are being fetched.
+   */
+  public boolean isLoading() {
+    return requestsInFlight.size() > 0;
+  }
+
+  /**
+   * Update the scroll position and fetch more pages, if needed.
+   * Should be called each time the visible range of images changes.
+   *
+   * @param firstVisibleItem Index of the first visible image.
+   * @param visibleItemCount Number of visible images.
+   * @param totalItemCount   Total number of images.
+   */
+  public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+    updateScrollVelocity(firstVisibleItem);
+    skipDeliveredPages();
+
+    if (isCancelled || !searchResult.hasNextPage() || SystemClock.uptimeMillis() < retryTime) {
+      return;
+    }
+
+    // Number of images that should be loaded ahead of the viewport to cover the expected wait for the next page.
+    final float lookahead = minLookahead + scrollVelocity * (pageLatency / 1000f) * LOOKAHEAD_SAFETY_FACTOR;
+    // Images already loaded, or expected to arrive from requests in flight, ahead of the last visible image.
+    float loadedAhead = (totalItemCount - firstVisibleItem - visibleItemCount)
+        + (requestsInFlight.size() + pendingPages.size()) * pageSize;
+
+    while (loadedAhead < lookahead && requestsInFlight.size() < MAX_REQUESTS_IN_FLIGHT) {
+      requestPage(getNextOffsetToRequest());
+      loadedAhead += pageSize;
+    }
+  }
+
+  /**
+   * Abort all page requests waiting for a response from the API. More pages are requested on the next call to
+   * {@link #onScroll(int, int, int)}. Should be called when the search result is no longer on screen.
+   */
+  public void cancelRequests() {
+    final boolean wasLoading = isLoading();
+    for (int i = 0; i < requestsInFlight.size(); i++) {
+      requestsInFlight.valueAt(i).cancel();
+    }
+    requestsInFlight.clear();
+
+    if (wasLoading && !isCancelled) {
+      listener.onLoadingStateChanged(false);
+    }
+  }
+
+  /** Cancel the pager and abort all page requests. The pager no longer extends the search result after calling this method. */
+  public void cancel() {
+    isCancelled = true;
+    cancelRequests();
+  }
+
+  /**
+   * Update the scroll velocity estimate.
+   *
+   * @param firstVisibleItem Index of the first visible image.
+   */
+  private void updateScrollVelocity(int firstVisibleItem) {
+    final long now = SystemClock.uptimeMillis();
+
+    if (lastFirstVisibleItem == -1) {
+      // First scroll event.
+      lastFirstVisibleItem = firstVisibleItem;
+      lastScrollTime = now;
+    } else if (firstVisibleItem != lastFirstVisibleItem) {
+      // Only scrolling towards the end of the search result needs images loaded ahead.
+      final long elapsedTime = Math.max(1, now - lastScrollTime);
+      final float velocity = Math.max(0, firstVisibleItem - lastFirstVisibleItem) * 1000f / elapsedTime;
+      scrollVelocity = (elapsedTime > SCROLL_IDLE_TIME) ? velocity : (scrollVelocity + velocity) / 2;
+      lastFirstVisibleItem = firstVisibleItem;
+      lastScrollTime = now;
+    } else if (now - lastScrollTime > SCROLL_IDLE_TIME) {
+      // Scrolling has stopped.
+      scrollVelocity = 0;
+    }
+  }
+
+  /**
+   * Get the offset of the first page that hasn't been requested yet.
+   *
+   * @return Page offset.
+   */
+  private int getNextOffsetToRequest() {
+    int offset = nextOffsetToDeliver;
+    while (requestsInFlight.get(offset) != null || pendingPages.get(offset) != null) {
+      offset++;
+    }
+    return offset;
+  }
+
+  /**
+   * Request a page from the API.
+   *
+   * @param offset Page offset.
+   */
+  private void requestPage(int offset) {
+    final boolean wasLoading = isLoading();
+    requestsInFlight.put(offset, SearchRequest.execute(context, searchClient, query, offset, new PageCallback(offset)));
+
+    if (!wasLoading) {
+      listener.onLoadingStateChanged(true);
+    }
+  }
+
+  /**
+   * Called when a page request has finished.
+   *
+   * @param offset Page offset.
+   */
+  private void onRequestFinished(int offset) {
+    requestsInFlight.delete(offset);
+    if (!isLoading()) {
+      listener.onLoadingStateChanged(false);
+    }
+  }
+
+  /**
+   * Skip pages that have already been appended to the search result by another pager.
+   * (e.g. when the same search result is extended by both the grid and the image viewer)
+   */
+  private void skipDeliveredPages() {
+    indexImageIds();
+    final int nextOffset = searchResult.getCurrentOffset() + 1;
+    if (nextOffset > nextOffsetToDeliver) {
+      for (int i = pendingPages.size() - 1; i >= 0; i--) {
+        if (pendingPages.keyAt(i) < nextOffset) {
+          pendingPages.removeAt(i);
+        }
+      }
+      nextOffsetToDeliver = nextOffset;
+    }
+  }
+
+  /** Append received pages to the search result, in order. */
+  private void deliverPages() {
+    skipDeliveredPages();
+    Page page;
+    boolean hasEmptyPages = false;
+    while (searchResult.hasNextPage() && (page = pendingPages.get(nextOffsetToDeliver)) != null) {
+      pendingPages.delete(nextOffsetToDeliver);
+      nextOffsetToDeliver++;
+
+      if (page.unfilteredCount == 0) {
+        // There are no more pages after an empty one.
+        searchResult.onLastPage();
+        pendingPages.clear();
+      } else {
+        final Image[] images = removeDuplicates(page.searchResult.getImages());
+        // Pages made mostly of duplicates contribute few new images, which makes the pager fetch further ahead.
+        pageSize = pageSize * (1 - MOVING_AVERAGE_WEIGHT) + images.length * MOVING_AVERAGE_WEIGHT;
+        // Only the page offset is kept by the SearchResult, the images themselves are stored by the ImageList.
+        imageList.append(images);
+        searchResult.addImages(NO_IMAGES, page.searchResult.getCurrentOffset());
+        indexedImageCount = imageList.size();
+        hasEmptyPages |= images.length == 0;
+      }
+      listener.onSearchResultChanged(searchResult);
+    }
+
+    // Pages made only of duplicate or filtered out images don't move the scroll position closer to the end of the
+    // search result, so the next page has to be requested without waiting for the next scroll event.
+    if (hasEmptyPages && !isCancelled && !isLoading() && searchResult.hasNextPage()) {
+      requestPage(getNextOffsetToRequest());
+    }
+  }
+
+  /**
+   * Add the IDs of images appended to the search result since the last call to {@link #imageIds}.
+   * (e.g. when the same search result is extended by both the grid and the image viewer)
+   */
+  private void indexImageIds() {
+    final int imageCount = imageList.size();
+    // Scan chunk by chunk, so that chunks spilled to disk aren't kept in memory.
+    while (indexedImageCount < imageCount) {
+      final int end = Math.min(imageCount, (indexedImageCount / ImageList.CHUNK_SIZE + 1) * ImageList.CHUNK_SIZE);
+      final Image[] chunk = imageList.getChunk(indexedImageCount / ImageList.CHUNK_SIZE);
+      if (chunk == null) {
+        // The chunk could not be read back from disk.
+        indexedImageCount = end;
+        continue;
+      }
+      for (; indexedImageCount < end; indexedImageCount++) {
+        final long id = parseImageId(chunk[indexedImageCount % ImageList.CHUNK_SIZE]);
+        if (id != INVALID_IMAGE_ID) {
+          imageIds.add(id);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove images already in the search result from a new page and add the IDs of the remaining images to
+   * {@link #imageIds}.
+   *
+   * @param images Images in the new page.
+   * @return Images not already in the search result. The same array is returned if the page has no duplicates.
+   */
+  private Image[] removeDuplicates(Image[] images) {
+    final Image[] uniqueImages = new Image[images.length];
+    int uniqueCount = 0;
+    for (Image image : images) {
+      final long id = parseImageId(image);
+      // Images without a numeric ID are always kept.
+      if (id == INVALID_IMAGE_ID || imageIds.add(id)) {
+        uniqueImages[uniqueCount++] = image;
+      }
+    }
+
+    if (uniqueCount == images.length) {
+      return images;
+    }
+    final Image[] result = new Image[uniqueCount];
+    System.arraycopy(uniqueImages, 0, result, 0, uniqueCount);
+    return result;
+  }
+
+  /**
+   * Parse the image's ID.
+   *
+   * @param image Image.
+   * @return Numeric image ID. {@link #INVALID_IMAGE_ID} if the ID isn't a number.
+   */
+  private static long parseImageId(Image image) {
+    if (image.id == null) {
+      return INVALID_IMAGE_ID;
+    }
+    try {
+      return Long.parseLong(image.id);
+    } catch (NumberFormatException e) {
+      return INVALID_IMAGE_ID;
+    }
+  }
+
+  /** A filtered page waiting to be appended to the search result. */
+  private static class Page {
+    /** Filtered search result page. */
+    public final SearchResult searchResult;
+    /** Number of images in the page before it was filtered. */
+    public final int unfilteredCount;
+
+    /**
+     * Create a new page.
+     *
+     * @param searchResult    Filtered search result page.
+     * @param unfilteredCount Number of images in the page before it was filtered.
+     */
+    public Page(SearchResult searchResult, int unfilteredCount) {
+      this.searchResult = searchResult;
+      this.unfilteredCount = unfilteredCount;
+    }
+  }
+
+  /** Callback waiting for a single page, and for the up-to-date version of the page if it was stale. */
+  private class PageCallback implements SearchRequest.Callback, SearchRequest.OnRevalidatedListener {
+    /** Offset of the requested page. */
+    private final int offset;
+    /** Time the page was requested, in milliseconds of uptime. */
+    private final long requestTime = SystemClock.uptimeMillis();
+
+    /**
+     * Create a new PageCallback.
+     *
+     * @param offset Offset of the requested page.
+     */
+    public PageCallback(int offset) {
+      this.offset = offset;
+    }
+
+    @Override
+    public void onFailure(IOException e) {
+      if (!isCancelled) {
+        onRequestFinished(offset);
+        retryTime = SystemClock.uptimeMillis() + RETRY_DELAY;
+        listener.onPageFailed(e);
+      }
+    }
+
+    @Override
+    public void onSuccess(SearchResult searchResult, int unfilteredCount) {
+      if (!isCancelled) {
+        onRequestFinished(offset);
+        pageLatency = pageLatency * (1 - MOVING_AVERAGE_WEIGHT) + (SystemClock.uptimeMillis() - requestTime) * MOVING_AVERAGE_WEIGHT;
+        // Pages received after the last page has been reached, or already appended by another pager, are discarded.
+        if (SearchResultPager.this.searchResult.hasNextPage() && offset > SearchResultPager.this.searchResult.getCurrentOffset()) {
+          pendingPages.put(offset, new Page(searchResult, unfilteredCount));
+          deliverPages();
+        }
+      }
+    }
+
+    @Override
+    public void onRevalidated(SearchResult searchResult, int unfilteredCount) {
+      if (isCancelled) {
+        return;
+      }
+      final SearchResult extendedResult = SearchResultPager.this.searchResult;
+      if (pendingPages.get(offset) != null) {
+        // The stale page is still waiting for the preceding pages, so it can be replaced.
+        pendingPages.put(offset, new Page(searchResult, unfilteredCount));
+      } else if (offset <= extendedResult.getCurrentOffset()) {
+        // The stale page has already been appended. Append the images it was missing.
+        indexImageIds();
+        final Image[] images = removeDuplicates(searchResult.getImages());
+        if (images.length > 0) {
+          imageList.append(images);
+          indexedImageCount = imageList.size();
+          listener.onSearchResultChanged(extendedResult);
+        }
+      }
+    }
+  }
+
+  /** Listener notified when new pages are appended to the search result. */
+  public static interface Listener {
+    /**
+     * Called on the UI thread after one or more pages have been appended to the search result,
+     * or the search result has reached its last page.
+     *
+     * @param searchResult Extended search result.
+     */
+    public void onSearchResultChanged(SearchResult searchResult);
+
+    /**
+     * Called on the UI thread when a page could not be fetched.
+     *
+     * @param e Error returned by the API client.
+     */
+    public void onPageFailed(IOException e);
+
+    /**
+     * Called on the UI thread when the pager starts or stops waiting for pages.
+     *
+     * @param isLoading True if there are page requests waiting for a response.
+     */
+    public void onLoadingStateChanged(boolean isLoading);
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.search;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.cuddlesoft.norilib.SearchResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide registry of live {@link com.cuddlesoft.norilib.SearchResult}s. Activities and fragments pass around
+ * lightweight handles instead of parceling entire search results into {@link android.content.Intent}s and saved
+ * instance state {@link android.os.Bundle}s. Snapshots of the search results are written to disk in the background,
+ * so that they can be restored after the process has been killed.
+ */
+public class SearchResultStore {
+  /** Value used to represent an invalid handle. */
+  public static final long INVALID_HANDLE = -1L;
+  /** Log tag. */
+  private static final String TAG = "SearchResultStore";
+  /** Name of the directory containing the snapshots, inside the app's cache directory. */
+  private static final String SNAPSHOT_DIRECTORY = "search_results";
+  /** Snapshots older than this are removed when the store is created, in milliseconds. */
+  private static final long SNAPSHOT_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+  /** Background thread used for disk I/O. */
+  private static final Executor DISK_EXECUTOR = Executors.newSingleThreadExecutor();
+  /** Shared instance, created when first requested using {@link #getInstance(android.content.Context)}. */
+  private static SearchResultStore instance;
+  /** Live search results, mapped by handle. Search results are only kept while they are used by an activity. */
+  private final Map<Long, WeakReference<SearchResult>> searchResults = new HashMap<>();
+  /** Application context. */
+  private final Context context;
+  /** Directory containing the snapshots. */
+  private final File snapshotDirectory;
+  /** Next handle to give out. Based on the current time, so that handles from previous processes aren't reused. */
+  private long nextHandle = System.currentTimeMillis();
+
+  /**
+   * Create a new search result store. Use {@link #getInstance(android.content.Context)} instead.
+   *
+   * @param context Android context.
+   */
+  private SearchResultStore(Context context) {
+    this.context = context.getApplicationContext();
+    snapshotDirectory = new File(this.context.getCacheDir(), SNAPSHOT_DIRECTORY);
+    removeOldSnapshots();
+  }
+
+  /**
+   * Get the shared SearchResultStore instance.
+   *
+   * @param context Android context.
+   * @return Shared SearchResultStore instance.
+   */
+  public static synchronized SearchResultStore getInstance(Context context) {
+    if (instance == null) {
+      instance = new SearchResultStore(context);
+    }
+    return instance;
+  }
+
+  /**
+   * Register a search result with the store.
+   *
+   * @param searchResult Search result.
+   * @return Handle used to retrieve the search result. If the search result is already registered, the existing handle is returned.
+   */
+  public synchronized long put(SearchResult searchResult) {
+    // Reuse the existing handle, if the search result has already been registered.
+    final Iterator<Map.Entry<Long, WeakReference<SearchResult>>> it = searchResults.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Long, WeakReference<SearchResult>> entry = it.next();
+      final SearchResult registeredResult = entry.getValue().get();
+      if (registeredResult == searchResult) {
+        return entry.getKey();
+      } else if (registeredResult == null) {
+        // Drop entries for search results that are no longer used.
+        it.remove();
+      }
+    }
+
+    final long handle = nextHandle++;
+    searchResults.put(handle, new WeakReference<>(searchResult));
+    return handle;
+  }
+
+  /**
+   * Get a search result from the store. If the search result is no longer in memory (e.g. because the process was
+   * killed while the app was in the background), it is restored from its last snapshot on the calling thread.
+   * <p/>
+   * Restoring a snapshot blocks the UI thread when called from {@link android.app.Activity#onCreate(android.os.Bundle)}.
+   * This is accepted, since it only happens once after the process has been killed, and the activity can't show
+   * anything before the search result is back. Search results that are still in memory are returned right away.
+   *
+   * @param handle Handle returned by {@link #put(com.cuddlesoft.norilib.SearchResult)}.
+   * @return Search result. Null if the search result is no longer available.
+   */
+  public synchronized SearchResult get(long handle) {
+    final WeakReference<SearchResult> reference = searchResults.get(handle);
+    SearchResult searchResult = reference != null ? reference.get() : null;
+
+    if (searchResult == null) {
+      searchResult = readSnapshot(handle);
+      if (searchResult != null) {
+        searchResults.put(handle, new WeakReference<>(searchResult));
+      }
+    }
+    return searchResult;
+  }
+
+  /**
+   * Write a snapshot of the search result to disk on a background thread.
+   * Should be called from {@link android.app.Activity#onSaveInstanceState(android.os.Bundle)}, on the UI thread.
+   *
+   * @param handle Handle returned by {@link #put(com.cuddlesoft.norilib.SearchResult)}.
+   */
+  public void saveSnapshot(final long handle) {
+    final SearchResult searchResult = get(handle);
+    if (searchResult == null) {
+      return;
+    }
+
+    // The search result is modified by the UI thread as pages are appended, so it's serialized here.
+    final Parcel parcel = Parcel.obtain();
+    searchResult.writeToParcel(parcel, 0);
+    final byte[] searchResultData = parcel.marshall();
+    parcel.recycle();
+    // Images are never modified once appended, and spilled ones are read from disk, so they're serialized in the
+    // background, up to the images appended so far.
+    final ImageList imageList = ImageList.of(context, searchResult);
+    final int imageCount = imageList.size();
+
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        writeSnapshot(handle, searchResultData, imageList, imageCount);
+      }
+    });
+  }
+
+  /**
+   * Remove the search result's snapshot from disk.
+   * Should be called when the activity owning the search result is finishing.
+   *
+   * @param handle Handle returned by {@link #put(com.cuddlesoft.norilib.SearchResult)}.
+   */
+  public void removeSnapshot(final long handle) {
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        //noinspection ResultOfMethodCallIgnored
+        getSnapshotFile(handle).delete();
+      }
+    });
+  }
+
+  /**
+   * Get the file used to store the search result's snapshot.
+   *
+   * @param handle Search result handle.
+   * @return Snapshot file.
+   */
+  private File getSnapshotFile(long handle) {
+    return new File(snapshotDirectory, Long.toString(handle));
+  }
+
+  /**
+   * Write the search result's snapshot to disk. Called on the disk thread.
+   *
+   * @param handle           Search result handle.
+   * @param searchResultData Serialized search result.
+   * @param imageList        Images of the search result.
+   * @param imageCount       Number of images in the search result when it was serialized.
+   */
+  private void writeSnapshot(long handle, byte[] searchResultData, ImageList imageList, int imageCount) {
+    // The serialized search result is followed by the images appended after its first page.
+    final Parcel parcel = Parcel.obtain();
+    parcel.unmarshall(searchResultData, 0, searchResultData.length);
+    parcel.setDataPosition(searchResultData.length);
+    imageList.writeToParcel(parcel, imageCount);
+    final byte[] data = parcel.marshall();
+    parcel.recycle();
+
+    // Write the data to a temporary file first, so that a valid snapshot is never partially overwritten.
+    //noinspection ResultOfMethodCallIgnored
+    snapshotDirectory.mkdirs();
+    final File snapshotFile = getSnapshotFile(handle);
+    final File temporaryFile = new File(snapshotDirectory, snapshotFile.getName() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(temporaryFile);
+      out.write(data);
+      out.close();
+      out = null;
+      if (!temporaryFile.renameTo(snapshotFile)) {
+        throw new IOException("Could not rename " + temporaryFile);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write search result snapshot.", e);
+      //noinspection ResultOfMethodCallIgnored
+      temporaryFile.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  /**
+   * Read the search result's snapshot from disk.
+   *
+   * @param handle Search result handle.
+   * @return Search result. Null if the snapshot doesn't exist or couldn't be read.
+   */
+  private SearchResult readSnapshot(long handle) {
+    final File snapshotFile = getSnapshotFile(handle);
+    if (!snapshotFile.exists()) {
+      return null;
+    }
+
+    InputStream in = null;
+    try {
+      // Read the file into memory.
+      in = new FileInputStream(snapshotFile);
+      final ByteArrayOutputStream out = new ByteArrayOutputStream((int) snapshotFile.length());
+      final byte[] buffer = new byte[8192];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+      final byte[] data = out.toByteArray();
+
+      // Deserialize the search result.
+      final Parcel parcel = Parcel.obtain();
+      parcel.unmarshall(data, 0, data.length);
+      parcel.setDataPosition(0);
+      final SearchResult searchResult = SearchResult.CREATOR.createFromParcel(parcel);
+      // Snapshots written by previous versions hold all images in the search result itself.
+      if (parcel.dataAvail() > 0) {
+        ImageList.createFromParcel(context, searchResult, parcel);
+      }
+      parcel.recycle();
+      return searchResult;
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Could not read search result snapshot.", e);
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /** Remove snapshots left behind by tasks that were never finished, on a background thread. */
+  private void removeOldSnapshots() {
+    DISK_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        final File[] snapshotFiles = snapshotDirectory.listFiles();
+        if (snapshotFiles == null) {
+          return;
+        }
+        final long minModifiedTime = System.currentTimeMillis() - SNAPSHOT_MAX_AGE;
+        for (File snapshotFile : snapshotFiles) {
+          if (snapshotFile.lastModified() < minModifiedTime) {
+            //noinspection ResultOfMethodCallIgnored
+            snapshotFile.delete();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Close a stream, ignoring any errors.
+   *
+   * @param closeable Stream to close. May be null.
+   */
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+}
@@ -10,10 +10,12 @@ import android.app.IntentService;
 import android.content.Intent;
 
 import com.cuddlesoft.nori.database.SearchSuggestionDatabase;
+import com.cuddlesoft.nori.search.SearchResultCache;
 
 /**
  * Service used by {@link com.cuddlesoft.nori.SettingsActivity} to remove all recent search history entries stored in
- * {@link com.cuddlesoft.nori.database.SearchSuggestionDatabase}.
+ * {@link com.cuddlesoft.nori.database.SearchSuggestionDatabase} and the search result pages stored in
+ * {@link com.cuddlesoft.nori.database.SearchResultCacheDatabase}.
  */
 public class ClearSearchHistoryService extends IntentService {
 
@@ -32,5 +34,8 @@ public class ClearSearchHistoryService extends IntentService {
 
     // Close the database resource.
     db.close();
+
+    // Cached search result pages also reveal previous queries, so remove them as well.
+    SearchResultCache.getInstance(this).clear();
   }
 }
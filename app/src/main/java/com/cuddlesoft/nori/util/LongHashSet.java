@@ -0,0 +1,145 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.cuddlesoft.nori.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive long values, backed by an open addressing hash table.
+ * Unlike {@link java.util.HashSet}, values aren't boxed, so adding a value doesn't allocate any objects
+ * (unless the table has to grow).
+ */
+public class LongHashSet {
+  /** Value used to mark empty slots in the hash table. */
+  private static final long EMPTY = Long.MIN_VALUE;
+  /** The table is grown once it's filled to this fraction of its capacity. */
+  private static final float LOAD_FACTOR = 0.5f;
+  /** Hash table. Its length is always a power of two. */
+  private long[] table;
+  /** Number of values in the set, excluding {@link #EMPTY}. */
+  private int size;
+  /** True if the set contains {@link #EMPTY}, which can't be stored in the table itself. */
+  private boolean containsEmptyValue;
+
+  /** Create a new, empty set. */
+  public LongHashSet() {
+    this(16);
+  }
+
+  /**
+   * Create a new, empty set.
+   *
+   * @param expectedSize Number of values the set should be able to hold without growing.
+   */
+  public LongHashSet(int expectedSize) {
+    int capacity = 16;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    table = new long[capacity];
+    Arrays.fill(table, EMPTY);
+  }
+
+  /**
+   * Add a value to the set.
+   *
+   * @param value Value to add.
+   * @return True if the value was added, false if it was already in the set.
+   */
+  public boolean add(long value) {
+    if (value == EMPTY) {
+      if (containsEmptyValue) {
+        return false;
+      }
+      containsEmptyValue = true;
+      return true;
+    }
+
+    final int mask = table.length - 1;
+    int i = hash(value) & mask;
+    while (table[i] != EMPTY) {
+      if (table[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    table[i] = value;
+
+    if (++size > table.length * LOAD_FACTOR) {
+      grow();
+    }
+    return true;
+  }
+
+  /**
+   * Check if a value is in the set.
+   *
+   * @param value Value to look for.
+   * @return True if the set contains the value.
+   */
+  public boolean contains(long value) {
+    if (value == EMPTY) {
+      return containsEmptyValue;
+    }
+
+    final int mask = table.length - 1;
+    int i = hash(value) & mask;
+    while (table[i] != EMPTY) {
+      if (table[i] == value) {
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Get the number of values in the set.
+   *
+   * @return Number of values.
+   */
+  public int size() {
+    return containsEmptyValue ? size + 1 : size;
+  }
+
+  /** Remove all values from the set. */
+  public void clear() {
+    Arrays.fill(table, EMPTY);
+    size = 0;
+    containsEmptyValue = false;
+  }
+
+  /** Double the capacity of the hash table. */
+  private void grow() {
+    final long[] oldTable = table;
+    table = new long[oldTable.length << 1];
+    Arrays.fill(table, EMPTY);
+
+    final int mask = table.length - 1;
+    for (long value : oldTable) {
+      if (value != EMPTY) {
+        int i = hash(value) & mask;
+        while (table[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        table[i] = value;
+      }
+    }
+  }
+
+  /**
+   * Spread the bits of a value, so that sequential values (e.g. image IDs) don't cluster in the table.
+   *
+   * @param value Value to hash.
+   * @return Hash code.
+   */
+  private static int hash(long value) {
+    long h = value * 0x9E3779B97F4A7C15L;
+    h ^= h >>> 32;
+    return (int) (h ^ (h >>> 16));
+  }
+}
@@ -11,39 +11,47 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.preference.PreferenceManager;
 import android.telephony.TelephonyManager;
 
+import com.cuddlesoft.nori.R;
+
 /**
  * Network utility class.
  */
 public abstract class NetworkUtils {
 
   /**
-   * Decides if low-resolution ("sample") images should be fetched by default instead of full-size images, based on:
-   * - Screen density
+   * Decides if grid thumbnails can be decoded from the larger "sample" images when the previews are too small for the
+   * grid cells, based on:
+   * - The user's "conserve bandwidth" preference
    * - Network link speed and quality
    * - Is the network metered? ($$$ per MB)
    *
-   * @return true if low-resolution images should be used.
+   * @return true if sample images can be used as thumbnails.
    */
-  public static boolean shouldFetchImageSamples(Context context) {
-    // Note that the low-resolution images aren't actually that bad unless the user zooms in on them.
-    // They're meant for cases where the original image is much larger than an average desktop browser window.
-
-    // Check screen resolution.
-    if (context.getResources().getDisplayMetrics().density <= 1.0) {
-      return true;
+  public static boolean shouldFetchLargeThumbnails(Context context) {
+    // Samples are often ten times the size of the previews, so they are only used when bandwidth is cheap.
+    if (PreferenceManager.getDefaultSharedPreferences(context)
+        .getBoolean(context.getString(R.string.preference_image_viewer_conserveBandwidth_key), false)) {
+      return false;
     }
 
+    return isNetworkFastAndUnmetered(context);
+  }
+
+  /**
+   * Check if the active network is fast and the user doesn't pay for bandwidth, so images can be downloaded ahead of
+   * time without much thought.
+   *
+   * @return true if the active network is fast and unmetered.
+   */
+  public static boolean isNetworkFastAndUnmetered(Context context) {
     // Get system connectivity manager service.
     ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-    // Check if network is metered.
-    if (isActiveNetworkMetered(cm)) {
-      return true;
-    }
-    // Check link quality.
     NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-    return !isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
+    return networkInfo != null && !isActiveNetworkMetered(cm)
+        && isConnectionFast(networkInfo.getType(), networkInfo.getSubtype());
   }
 
   /**
@@ -23,6 +23,8 @@ public class ImageViewerPager extends ViewPager {
   /** Gets notified when a {@link android.view.MotionEvent} is intercepted by this view. */
   // Can't use OnGenericMotionEventListener, because it requires API>=12
   private OnMotionEventListener onMotionEventListener;
+  /** Fragment of the current page. Used to check if it's panning a zoomed in image without looking it up on every touch event. */
+  private ImageFragment primaryFragment;
 
   public ImageViewerPager(Context context) {
     super(context);
@@ -36,6 +38,16 @@ public class ImageViewerPager extends ViewPager {
     onMotionEventListener = listener;
   }
 
+  /**
+   * Set the fragment of the current page. Called by the adapter from
+   * {@link android.support.v4.view.PagerAdapter#setPrimaryItem(android.view.ViewGroup, int, Object)}.
+   *
+   * @param fragment Fragment of the current page.
+   */
+  public void setPrimaryFragment(ImageFragment fragment) {
+    primaryFragment = fragment;
+  }
+
   @Override
   public boolean onInterceptTouchEvent(MotionEvent ev) {
     if (onMotionEventListener != null) {
@@ -56,10 +68,8 @@ public class ImageViewerPager extends ViewPager {
   @Override
   protected boolean canScroll(View v, boolean checkV, int dx, int x, int y) {
     // Make sure the ImageViewerFragment isn't currently panning a zoomed in image.
-    // #instantiateItem() seems to be the "least awful" way to get the current item.
-    ImageFragment imageFragment = (ImageFragment) getAdapter().instantiateItem(null, getCurrentItem());
-    if (imageFragment != null) {
-      return imageFragment.canScroll(-dx);
+    if (primaryFragment != null) {
+      return primaryFragment.canScroll(-dx);
     }
     return super.canScroll(v, checkV, dx, x, y);
   }
@@ -0,0 +1,482 @@
+/*
+ * This file is part of nori.
+ * Copyright (c) 2014 vomitcuddle <shinku@dollbooru.org>
+ * License: ISC
+ */
+
+package com.ortiz.touch;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws an image in full detail on top of the subsampled overview shown by a {@link TouchImageView}, by decoding the
+ * parts of the image visible at the current zoom level in tiles, on a pool of worker threads.
+ * <p/>
+ * Tiles are decoded at the power of two sample size closest to the zoom level. Tiles that aren't on screen are evicted
+ * once the cache is full, and the sample size is raised when the tiles on screen wouldn't fit in it, so memory use
+ * depends on the size of the view and not on the size of the image.
+ * <p/>
+ * Tiles are drawn and evicted on the main thread only.
+ */
+class TileRenderer {
+  /** Tag used for logging. */
+  private static final String TAG = "TileRenderer";
+  /** Width and height of a decoded tile, in pixels. */
+  private static final int TILE_SIZE = 256;
+  /** Number of worker threads decoding tiles. */
+  private static final int THREAD_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  /** Worker threads decoding tiles, shared by all renderers. */
+  private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+  /** Handler used to deliver decoded tiles to the main thread. */
+  private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+  /** Natural logarithm of 2, used to compute sample sizes. */
+  private static final double LN_2 = Math.log(2);
+  /** View the tiles are drawn in. */
+  private final View view;
+  /** Path of the image file. Each worker thread opens its own decoder, since decoding a region locks the decoder. */
+  private final String imagePath;
+  /** Width of the image, in pixels. */
+  private final int imageWidth;
+  /** Height of the image, in pixels. */
+  private final int imageHeight;
+  /** Configuration tiles are decoded with. */
+  private final Bitmap.Config config;
+  /** Maximum size of the decoded tiles, in bytes. */
+  private final int maxSize;
+  /** Size of a full tile, in bytes. */
+  private final int tileSize;
+  /** Tiles for each sample size, indexed by the binary logarithm of the sample size. Created when first drawn. */
+  private final Tile[][] levels;
+  /** Region decoders not used by a worker. */
+  private final ConcurrentLinkedQueue<BitmapRegionDecoder> decoders = new ConcurrentLinkedQueue<>();
+  /** Paint used to draw the tiles. */
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  /** Values of the image matrix. */
+  private final float[] matrixValues = new float[9];
+  /** Area a tile is drawn in, in view coordinates. */
+  private final RectF drawRect = new RectF();
+  /** Size of the decoded tiles, in bytes. */
+  private int size;
+  /** Level of the tiles on screen. -1 if the overview is detailed enough and no tiles are needed. */
+  private volatile int visibleLevel = -1;
+  /** First tile column on screen, in {@link #visibleLevel}. */
+  private volatile int visibleLeft;
+  /** First tile row on screen, in {@link #visibleLevel}. */
+  private volatile int visibleTop;
+  /** Last tile column on screen, in {@link #visibleLevel}. */
+  private volatile int visibleRight;
+  /** Last tile row on screen, in {@link #visibleLevel}. */
+  private volatile int visibleBottom;
+  /** True if the image can't be decoded. */
+  private volatile boolean failed;
+  /** True if the renderer has been recycled. */
+  private volatile boolean recycled;
+
+  /**
+   * Create a new tile renderer.
+   *
+   * @param view      View the tiles are drawn in.
+   * @param imagePath Path of the image file.
+   * @param decoder   Region decoder opened on the image file. Recycled with the renderer.
+   * @param config    Configuration tiles are decoded with.
+   * @param maxSize   Maximum size of the decoded tiles, in bytes.
+   */
+  public TileRenderer(View view, String imagePath, BitmapRegionDecoder decoder, Bitmap.Config config, int maxSize) {
+    this.view = view;
+    this.imagePath = imagePath;
+    this.imageWidth = decoder.getWidth();
+    this.imageHeight = decoder.getHeight();
+    this.config = config;
+    this.maxSize = maxSize;
+    this.tileSize = TILE_SIZE * TILE_SIZE * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+    this.levels = new Tile[32 - Integer.numberOfLeadingZeros(Math.max(imageWidth, imageHeight))][];
+    decoders.add(decoder);
+  }
+
+  /**
+   * Create the executor running the worker threads.
+   *
+   * @return Executor.
+   */
+  private static ThreadPoolExecutor createExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 5, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Get the width of the image.
+   *
+   * @return Image width, in pixels.
+   */
+  public int getImageWidth() {
+    return imageWidth;
+  }
+
+  /**
+   * Draw the tiles on screen, and queue the missing tiles for decoding. Must be called from the main thread.
+   *
+   * @param canvas          Canvas to draw on.
+   * @param matrix          Matrix the overview is drawn with.
+   * @param overviewWidth   Width of the overview.
+   * @param overviewHeight  Height of the overview.
+   * @param viewWidth       Width of the view.
+   * @param viewHeight      Height of the view.
+   */
+  public void draw(Canvas canvas, Matrix matrix, int overviewWidth, int overviewHeight, int viewWidth, int viewHeight) {
+    if (failed || recycled || overviewWidth <= 0 || overviewHeight <= 0) {
+      return;
+    }
+
+    // Scale and translation from image pixels to view coordinates.
+    matrix.getValues(matrixValues);
+    final float scaleX = matrixValues[Matrix.MSCALE_X] * overviewWidth / imageWidth;
+    final float scaleY = matrixValues[Matrix.MSCALE_Y] * overviewHeight / imageHeight;
+    final float transX = matrixValues[Matrix.MTRANS_X];
+    final float transY = matrixValues[Matrix.MTRANS_Y];
+
+    // Part of the image on screen, in image pixels.
+    final float left = Math.max(0, -transX / scaleX);
+    final float top = Math.max(0, -transY / scaleY);
+    final float right = Math.min(imageWidth, (viewWidth - transX) / scaleX);
+    final float bottom = Math.min(imageHeight, (viewHeight - transY) / scaleY);
+    if (right <= left || bottom <= top) {
+      visibleLevel = -1;
+      return;
+    }
+
+    // Use the sample size closest to the zoom level, unless the tiles on screen wouldn't fit in the cache.
+    final int overviewLevel = getLevel((float) overviewWidth / imageWidth);
+    int level = getLevel(scaleX);
+    int tileLeft, tileTop, tileRight, tileBottom;
+    while (true) {
+      if (level >= overviewLevel) {
+        // The overview is as detailed as the tiles would be.
+        visibleLevel = -1;
+        return;
+      }
+      final int tileSpan = TILE_SIZE << level;
+      tileLeft = (int) left / tileSpan;
+      tileTop = (int) top / tileSpan;
+      tileRight = ((int) Math.ceil(right) - 1) / tileSpan;
+      tileBottom = ((int) Math.ceil(bottom) - 1) / tileSpan;
+      if ((tileRight - tileLeft + 1) * (tileBottom - tileTop + 1) * tileSize <= maxSize) {
+        break;
+      }
+      level++;
+    }
+    visibleLeft = tileLeft;
+    visibleTop = tileTop;
+    visibleRight = tileRight;
+    visibleBottom = tileBottom;
+    visibleLevel = level;
+
+    // Coarser tiles that are still cached fill in for the tiles that are still being decoded.
+    for (int coarserLevel = overviewLevel - 1; coarserLevel > level; coarserLevel--) {
+      final Tile[] tiles = levels[coarserLevel];
+      if (tiles != null) {
+        for (Tile tile : tiles) {
+          if (tile.state == TileState.LOADED && tile.rect.right > left && tile.rect.left < right
+              && tile.rect.bottom > top && tile.rect.top < bottom) {
+            drawTile(canvas, tile, scaleX, scaleY, transX, transY);
+          }
+        }
+      }
+    }
+
+    final Tile[] tiles = getTiles(level);
+    final int columnCount = getColumnCount(level);
+    for (int row = tileTop; row <= tileBottom; row++) {
+      for (int column = tileLeft; column <= tileRight; column++) {
+        final Tile tile = tiles[row * columnCount + column];
+        if (tile.state == TileState.LOADED) {
+          drawTile(canvas, tile, scaleX, scaleY, transX, transY);
+        } else if (tile.state == TileState.EMPTY) {
+          tile.state = TileState.QUEUED;
+          EXECUTOR.execute(tile);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evict all tiles and recycle the region decoders. Must be called from the main thread.
+   */
+  public void recycle() {
+    recycled = true;
+    for (Tile[] tiles : levels) {
+      if (tiles != null) {
+        for (Tile tile : tiles) {
+          if (tile.state == TileState.LOADED) {
+            evict(tile);
+          }
+        }
+      }
+    }
+    recycleIdleDecoders();
+  }
+
+  /**
+   * Draw a decoded tile.
+   *
+   * @param canvas Canvas to draw on.
+   * @param tile   Tile.
+   * @param scaleX Horizontal scale from image pixels to view coordinates.
+   * @param scaleY Vertical scale from image pixels to view coordinates.
+   * @param transX Horizontal translation of the image.
+   * @param transY Vertical translation of the image.
+   */
+  private void drawTile(Canvas canvas, Tile tile, float scaleX, float scaleY, float transX, float transY) {
+    drawRect.set(transX + tile.rect.left * scaleX, transY + tile.rect.top * scaleY,
+        transX + tile.rect.right * scaleX, transY + tile.rect.bottom * scaleY);
+    canvas.drawBitmap(tile.bitmap, null, drawRect, paint);
+  }
+
+  /**
+   * Get the level of the tiles decoded at the power of two sample size closest to the given scale.
+   *
+   * @param scale Scale from image pixels to view coordinates.
+   * @return Binary logarithm of the sample size.
+   */
+  private int getLevel(float scale) {
+    return Math.max(0, Math.min(levels.length - 1, (int) Math.round(Math.log(1 / scale) / LN_2)));
+  }
+
+  /**
+   * Get the number of tile columns in a level.
+   *
+   * @param level Tile level.
+   * @return Number of columns.
+   */
+  private int getColumnCount(int level) {
+    final int tileSpan = TILE_SIZE << level;
+    return (imageWidth + tileSpan - 1) / tileSpan;
+  }
+
+  /**
+   * Get the tiles of a level, creating them if needed.
+   *
+   * @param level Tile level.
+   * @return Tiles, in row-major order.
+   */
+  private Tile[] getTiles(int level) {
+    if (levels[level] == null) {
+      final int tileSpan = TILE_SIZE << level;
+      final int columnCount = getColumnCount(level);
+      final int rowCount = (imageHeight + tileSpan - 1) / tileSpan;
+      final Tile[] tiles = new Tile[columnCount * rowCount];
+      for (int row = 0; row < rowCount; row++) {
+        for (int column = 0; column < columnCount; column++) {
+          tiles[row * columnCount + column] = new Tile(level, column, row, new Rect(column * tileSpan, row * tileSpan,
+              Math.min(imageWidth, (column + 1) * tileSpan), Math.min(imageHeight, (row + 1) * tileSpan)));
+        }
+      }
+      levels[level] = tiles;
+    }
+    return levels[level];
+  }
+
+  /**
+   * Check if a tile is still on screen. Called from the worker threads, to skip tiles that were scrolled out of view.
+   *
+   * @param tile Tile.
+   * @return True if the tile is on screen.
+   */
+  private boolean isVisible(Tile tile) {
+    return tile.level == visibleLevel && tile.column >= visibleLeft && tile.column <= visibleRight
+        && tile.row >= visibleTop && tile.row <= visibleBottom;
+  }
+
+  /** Evict tiles until the cache fits in {@link #maxSize}: first tiles of other levels, then tiles off screen. */
+  private void trim() {
+    for (int pass = 0; pass < 2 && size > maxSize; pass++) {
+      for (Tile[] tiles : levels) {
+        if (tiles != null) {
+          for (Tile tile : tiles) {
+            if (size <= maxSize) {
+              return;
+            }
+            if (tile.state == TileState.LOADED && (tile.level != visibleLevel || (pass == 1 && !isVisible(tile)))) {
+              evict(tile);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Recycle the bitmap of a decoded tile.
+   *
+   * @param tile Tile.
+   */
+  private void evict(Tile tile) {
+    size -= tile.bitmap.getRowBytes() * tile.bitmap.getHeight();
+    tile.bitmap.recycle();
+    tile.bitmap = null;
+    tile.state = TileState.EMPTY;
+  }
+
+  /**
+   * Get a region decoder for the calling worker thread, opening a new one if all are in use.
+   *
+   * @return Region decoder. Null if the image could not be opened.
+   */
+  private BitmapRegionDecoder obtainDecoder() {
+    final BitmapRegionDecoder decoder = decoders.poll();
+    if (decoder != null) {
+      return decoder;
+    }
+    // There are never more decoders than worker threads.
+    try {
+      return BitmapRegionDecoder.newInstance(imagePath, false);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not open image.", e);
+      failed = true;
+      return null;
+    }
+  }
+
+  /**
+   * Return a region decoder obtained with {@link #obtainDecoder()}.
+   *
+   * @param decoder Region decoder.
+   */
+  private void releaseDecoder(BitmapRegionDecoder decoder) {
+    decoders.add(decoder);
+    if (recycled) {
+      recycleIdleDecoders();
+    }
+  }
+
+  /** Recycle the decoders not used by a worker. */
+  private void recycleIdleDecoders() {
+    BitmapRegionDecoder decoder;
+    while ((decoder = decoders.poll()) != null) {
+      decoder.recycle();
+    }
+  }
+
+  /** Tile states. */
+  private static enum TileState {
+    /** Not decoded. */
+    EMPTY,
+    /** Waiting for a worker thread. */
+    QUEUED,
+    /** Decoded, waiting to be delivered to the main thread. */
+    DECODED,
+    /** Decoded and cached. */
+    LOADED,
+    /** Could not be decoded. */
+    FAILED
+  }
+
+  /**
+   * Part of the image decoded at a given sample size. Runs on a worker thread to decode the tile, and then on the main
+   * thread to add it to the cache.
+   */
+  private class Tile implements Runnable {
+    /** Binary logarithm of the sample size. */
+    private final int level;
+    /** Column of the tile. */
+    private final int column;
+    /** Row of the tile. */
+    private final int row;
+    /** Part of the image covered by the tile, in image pixels. */
+    private final Rect rect;
+    /** Current state. */
+    private volatile TileState state = TileState.EMPTY;
+    /** Decoded tile. Written by the worker thread before the state is set to {@link TileState#DECODED}. */
+    private Bitmap bitmap;
+
+    /**
+     * Create a new tile.
+     *
+     * @param level  Binary logarithm of the sample size.
+     * @param column Column of the tile.
+     * @param row    Row of the tile.
+     * @param rect   Part of the image covered by the tile, in image pixels.
+     */
+    public Tile(int level, int column, int row, Rect rect) {
+      this.level = level;
+      this.column = column;
+      this.row = row;
+      this.rect = rect;
+    }
+
+    @Override
+    public void run() {
+      if (state == TileState.DECODED) {
+        onDecoded();
+      } else {
+        decode();
+      }
+    }
+
+    /** Decode the tile. Called on a worker thread. */
+    private void decode() {
+      if (recycled || failed || !isVisible(this)) {
+        // Queued tiles are skipped once they are scrolled out of view. They are queued again when needed.
+        state = TileState.EMPTY;
+        return;
+      }
+      final BitmapRegionDecoder decoder = obtainDecoder();
+      if (decoder == null) {
+        state = TileState.FAILED;
+        return;
+      }
+
+      Bitmap bitmap = null;
+      try {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+        options.inPreferredConfig = config;
+        bitmap = decoder.decodeRegion(rect, options);
+      } catch (OutOfMemoryError e) {
+        Log.w(TAG, "Not enough memory to decode tile.", e);
+      } finally {
+        releaseDecoder(decoder);
+      }
+
+      if (bitmap == null) {
+        state = TileState.FAILED;
+        return;
+      }
+      this.bitmap = bitmap;
+      state = TileState.DECODED;
+      MAIN_HANDLER.post(this);
+    }
+
+    /** Add the decoded tile to the cache. Called on the main thread. */
+    private void onDecoded() {
+      if (recycled) {
+        bitmap.recycle();
+        bitmap = null;
+        state = TileState.EMPTY;
+        return;
+      }
+      state = TileState.LOADED;
+      size += bitmap.getRowBytes() * bitmap.getHeight();
+      trim();
+      view.invalidate();
+    }
+  }
+}
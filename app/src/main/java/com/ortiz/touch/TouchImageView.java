@@ -16,6 +16,7 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
@@ -74,6 +75,14 @@ public class TouchImageView extends ImageView {
     
     private Context context;
     private Fling fling;
+    private DoubleTapZoom doubleTapZoom;
+
+    //
+    // Scratch points reused by the touch, zoom and fling code paths, so they don't
+    // allocate on every event or animation frame.
+    //
+    private final PointF bitmapPoint = new PointF();
+    private final PointF touchPoint = new PointF();
     
     private ScaleType mScaleType;
     
@@ -97,6 +106,18 @@ public class TouchImageView extends ImageView {
     private GestureDetector.OnDoubleTapListener doubleTapListener = null;
     private OnTouchListener userTouchListener = null;
     private OnTouchImageViewListener touchImageViewListener = null;
+    
+    //
+    // Draws the parts of a large image on screen in full detail, when the drawable
+    // is a subsampled version of it.
+    //
+    private TileRenderer tileRenderer;
+    
+    //
+    // Max zoom before it was raised by setTileSource, restored when the tile
+    // source is cleared.
+    //
+    private float maxScaleWithoutTiles;
 
     public TouchImageView(Context context) {
         super(context);
@@ -151,6 +172,7 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageResource(int resId) {
+    	clearTileSource();
     	super.setImageResource(resId);
     	savePreviousImageValues();
     	fitImageToView();
@@ -158,6 +180,7 @@ public class TouchImageView extends ImageView {
     
     @Override
     public void setImageBitmap(Bitmap bm) {
+    	clearTileSource();
     	super.setImageBitmap(bm);
     	savePreviousImageValues();
     	fitImageToView();
@@ -165,6 +188,7 @@ public class TouchImageView extends ImageView {
     
     @Override
     public void setImageDrawable(Drawable drawable) {
+    	clearTileSource();
     	super.setImageDrawable(drawable);
     	savePreviousImageValues();
     	fitImageToView();
@@ -172,11 +196,61 @@ public class TouchImageView extends ImageView {
     
     @Override
     public void setImageURI(Uri uri) {
+    	clearTileSource();
     	super.setImageURI(uri);
     	savePreviousImageValues();
     	fitImageToView();
     }
     
+    /**
+     * Draw the image opened by a region decoder in tiles on top of the drawable, so that the
+     * drawable can be a subsampled version of a much larger image and still show full detail
+     * when zoomed in. Tiles are decoded in the background for the part of the image on screen,
+     * at the current zoom level. The max zoom is raised so the image can be zoomed in to twice
+     * its original size. The tile source is cleared when the drawable is changed or when the
+     * view is detached from its window.
+     * @param imagePath path of the image file, used to open a decoder for each worker thread
+     * @param decoder region decoder opened on the image file. Recycled by the view.
+     * @param config configuration tiles are decoded with
+     * @param maxTileCacheSize maximum size of the decoded tiles, in bytes
+     */
+    public void setTileSource(String imagePath, BitmapRegionDecoder decoder, Bitmap.Config config, int maxTileCacheSize) {
+    	clearTileSource();
+    	tileRenderer = new TileRenderer(this, imagePath, decoder, config, maxTileCacheSize);
+    	maxScaleWithoutTiles = maxScale;
+    	if (matchViewWidth > 0) {
+    		setMaxZoom(Math.max(maxScale, 2 * tileRenderer.getImageWidth() / matchViewWidth));
+    	}
+    	invalidate();
+    }
+    
+    /**
+     * Stop drawing the tiles set with setTileSource and free their memory.
+     * The max zoom is restored to its value before the tile source was set.
+     */
+    public void clearTileSource() {
+    	if (tileRenderer != null) {
+    		tileRenderer.recycle();
+    		tileRenderer = null;
+    		setMaxZoom(maxScaleWithoutTiles);
+    		invalidate();
+    	}
+    }
+    
+    /**
+     * Returns true if the drawable is drawn with tiles from a tile source.
+     * @return true if a tile source is set
+     */
+    public boolean hasTileSource() {
+    	return tileRenderer != null;
+    }
+    
+    @Override
+    protected void onDetachedFromWindow() {
+    	clearTileSource();
+    	super.onDetachedFromWindow();
+    }
+    
     @Override
     public void setScaleType(ScaleType type) {
     	if (type == ScaleType.FIT_START || type == ScaleType.FIT_END) {
@@ -218,8 +292,8 @@ public class TouchImageView extends ImageView {
     	if (mScaleType == ScaleType.FIT_XY) {
     		throw new UnsupportedOperationException("getZoomedRect() not supported with FIT_XY");
     	}
-    	PointF topLeft = transformCoordTouchToBitmap(0, 0, true);
-    	PointF bottomRight = transformCoordTouchToBitmap(viewWidth, viewHeight, true);
+    	PointF topLeft = transformCoordTouchToBitmap(0, 0, true, new PointF());
+    	PointF bottomRight = transformCoordTouchToBitmap(viewWidth, viewHeight, true, new PointF());
     	
     	float w = getDrawable().getIntrinsicWidth();
     	float h = getDrawable().getIntrinsicHeight();
@@ -284,6 +358,14 @@ public class TouchImageView extends ImageView {
     		delayedZoomVariables = null;
     	}
     	super.onDraw(canvas);
+    	
+    	//
+    	// Draw the tiles of the full size image over the drawable.
+    	//
+    	Drawable drawable = getDrawable();
+    	if (tileRenderer != null && drawable != null) {
+    		tileRenderer.draw(canvas, matrix, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), viewWidth, viewHeight);
+    	}
     }
     
     @Override
@@ -326,6 +408,16 @@ public class TouchImageView extends ImageView {
     	return normalizedScale;
     }
     
+    /**
+     * Get the scale the drawable is drawn at. Greater than 1 when the drawable is
+     * zoomed in past its own resolution.
+     * @return number of view pixels covered by one pixel of the drawable.
+     */
+    public float getDrawableScale() {
+    	matrix.getValues(m);
+    	return m[Matrix.MSCALE_X];
+    }
+    
     /**
      * Set the min zoom multiplier. Default value: 1.
      * @param min min zoom multiplier.
@@ -423,7 +515,7 @@ public class TouchImageView extends ImageView {
     	int drawableWidth = drawable.getIntrinsicWidth();
         int drawableHeight = drawable.getIntrinsicHeight();
         
-        PointF point = transformCoordTouchToBitmap(viewWidth / 2, viewHeight / 2, true);
+        PointF point = transformCoordTouchToBitmap(viewWidth / 2, viewHeight / 2, true, new PointF());
         point.x /= drawableWidth;
         point.y /= drawableHeight;
         return point;
@@ -775,7 +867,11 @@ public class TouchImageView extends ImageView {
         		//
         		fling.cancelFling();
         	}
-        	fling = new Fling((int) velocityX, (int) velocityY);
+        	if (fling == null) {
+        		fling = new Fling();
+        	}
+        	removeCallbacks(fling);
+        	fling.start((int) velocityX, (int) velocityY);
         	compatPostOnAnimation(fling);
         	return super.onFling(e1, e2, velocityX, velocityY);
         }
@@ -788,8 +884,7 @@ public class TouchImageView extends ImageView {
             }
         	if (state == State.NONE) {
 	        	float targetZoom = (normalizedScale == minScale) ? maxScale : minScale;
-	        	DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, e.getX(), e.getY(), false);
-	        	compatPostOnAnimation(doubleTap);
+	        	startDoubleTapZoom(targetZoom, e.getX(), e.getY(), false);
 	        	consumed = true;
         	}
         	return consumed;
@@ -825,12 +920,13 @@ public class TouchImageView extends ImageView {
         public boolean onTouch(View v, MotionEvent event) {
             mScaleDetector.onTouchEvent(event);
             mGestureDetector.onTouchEvent(event);
-            PointF curr = new PointF(event.getX(), event.getY());
+            float currX = event.getX();
+            float currY = event.getY();
             
             if (state == State.NONE || state == State.DRAG || state == State.FLING) {
 	            switch (event.getAction()) {
 	                case MotionEvent.ACTION_DOWN:
-	                	last.set(curr);
+	                	last.set(currX, currY);
 	                    if (fling != null)
 	                    	fling.cancelFling();
 	                    setState(State.DRAG);
@@ -838,13 +934,13 @@ public class TouchImageView extends ImageView {
 	                    
 	                case MotionEvent.ACTION_MOVE:
 	                    if (state == State.DRAG) {
-	                        float deltaX = curr.x - last.x;
-	                        float deltaY = curr.y - last.y;
+	                        float deltaX = currX - last.x;
+	                        float deltaY = currY - last.y;
 	                        float fixTransX = getFixDragTrans(deltaX, viewWidth, getImageWidth());
 	                        float fixTransY = getFixDragTrans(deltaY, viewHeight, getImageHeight());
 	                        matrix.postTranslate(fixTransX, fixTransY);
 	                        fixTrans();
-	                        last.set(curr.x, curr.y);
+	                        last.set(currX, currY);
 	                    }
 	                    break;
 	
@@ -919,8 +1015,7 @@ public class TouchImageView extends ImageView {
         	}
         	
         	if (animateToZoomBoundary) {
-	        	DoubleTapZoom doubleTap = new DoubleTapZoom(targetZoom, viewWidth / 2, viewHeight / 2, true);
-	        	compatPostOnAnimation(doubleTap);
+	        	startDoubleTapZoom(targetZoom, viewWidth / 2, viewHeight / 2, true);
         	}
         }
     }
@@ -951,6 +1046,23 @@ public class TouchImageView extends ImageView {
         fixScaleTrans();
     }
     
+    /**
+     * Start an animated zoom, reusing the same DoubleTapZoom runnable for every zoom.
+     * A zoom that is still running is replaced.
+     * @param targetZoom
+     * @param focusX
+     * @param focusY
+     * @param stretchImageToSuper
+     */
+    private void startDoubleTapZoom(float targetZoom, float focusX, float focusY, boolean stretchImageToSuper) {
+        if (doubleTapZoom == null) {
+            doubleTapZoom = new DoubleTapZoom();
+        }
+        removeCallbacks(doubleTapZoom);
+        doubleTapZoom.start(targetZoom, focusX, focusY, stretchImageToSuper);
+        compatPostOnAnimation(doubleTapZoom);
+    }
+
     /**
      * DoubleTapZoom calls a series of runnables which apply
      * an animated zoom in/out graphic to the image.
@@ -965,24 +1077,24 @@ public class TouchImageView extends ImageView {
     	private float bitmapX, bitmapY;
     	private boolean stretchImageToSuper;
     	private AccelerateDecelerateInterpolator interpolator = new AccelerateDecelerateInterpolator();
-    	private PointF startTouch;
-    	private PointF endTouch;
+    	private final PointF startTouch = new PointF();
+    	private final PointF endTouch = new PointF();
 
-    	DoubleTapZoom(float targetZoom, float focusX, float focusY, boolean stretchImageToSuper) {
+    	void start(float targetZoom, float focusX, float focusY, boolean stretchImageToSuper) {
     		setState(State.ANIMATE_ZOOM);
     		startTime = System.currentTimeMillis();
     		this.startZoom = normalizedScale;
     		this.targetZoom = targetZoom;
     		this.stretchImageToSuper = stretchImageToSuper;
-    		PointF bitmapPoint = transformCoordTouchToBitmap(focusX, focusY, false);
+    		transformCoordTouchToBitmap(focusX, focusY, false, bitmapPoint);
     		this.bitmapX = bitmapPoint.x;
     		this.bitmapY = bitmapPoint.y;
     		
     		//
     		// Used for translating image during scaling
     		//
-    		startTouch = transformCoordBitmapToTouch(bitmapX, bitmapY);
-    		endTouch = new PointF(viewWidth / 2, viewHeight / 2);
+    		transformCoordBitmapToTouch(bitmapX, bitmapY, startTouch);
+    		endTouch.set(viewWidth / 2, viewHeight / 2);
     	}
 
 		@Override
@@ -1025,7 +1137,7 @@ public class TouchImageView extends ImageView {
 		private void translateImageToCenterTouchPosition(float t) {
 			float targetX = startTouch.x + t * (endTouch.x - startTouch.x);
 			float targetY = startTouch.y + t * (endTouch.y - startTouch.y);
-			PointF curr = transformCoordBitmapToTouch(bitmapX, bitmapY);
+			PointF curr = transformCoordBitmapToTouch(bitmapX, bitmapY, touchPoint);
 			matrix.postTranslate(targetX - curr.x, targetY - curr.y);
 		}
 		
@@ -1059,9 +1171,10 @@ public class TouchImageView extends ImageView {
      * @param y y-coordinate of touch event
      * @param clipToBitmap Touch event may occur within view, but outside image content. True, to clip return value
      * 			to the bounds of the bitmap size.
+     * @param out Point the result is written to.
      * @return Coordinates of the point touched, in the coordinate system of the original drawable.
      */
-    private PointF transformCoordTouchToBitmap(float x, float y, boolean clipToBitmap) {
+    private PointF transformCoordTouchToBitmap(float x, float y, boolean clipToBitmap, PointF out) {
          matrix.getValues(m);
          float origW = getDrawable().getIntrinsicWidth();
          float origH = getDrawable().getIntrinsicHeight();
@@ -1075,7 +1188,8 @@ public class TouchImageView extends ImageView {
         	 finalY = Math.min(Math.max(finalY, 0), origH);
          }
          
-         return new PointF(finalX , finalY);
+         out.set(finalX, finalY);
+         return out;
     }
     
     /**
@@ -1083,9 +1197,10 @@ public class TouchImageView extends ImageView {
      * drawable's coordinate system to the view's coordinate system.
      * @param bx x-coordinate in original bitmap coordinate system
      * @param by y-coordinate in original bitmap coordinate system
+     * @param out Point the result is written to.
      * @return Coordinates of the point in the view's coordinate system.
      */
-    private PointF transformCoordBitmapToTouch(float bx, float by) {
+    private PointF transformCoordBitmapToTouch(float bx, float by, PointF out) {
         matrix.getValues(m);        
         float origW = getDrawable().getIntrinsicWidth();
         float origH = getDrawable().getIntrinsicHeight();
@@ -1093,7 +1208,8 @@ public class TouchImageView extends ImageView {
         float py = by / origH;
         float finalX = m[Matrix.MTRANS_X] + getImageWidth() * px;
         float finalY = m[Matrix.MTRANS_Y] + getImageHeight() * py;
-        return new PointF(finalX , finalY);
+        out.set(finalX, finalY);
+        return out;
     }
     
     /**
@@ -1108,9 +1224,15 @@ public class TouchImageView extends ImageView {
         CompatScroller scroller;
     	int currX, currY;
     	
-    	Fling(int velocityX, int velocityY) {
-    		setState(State.FLING);
+    	boolean isActive;
+    	
+    	Fling() {
     		scroller = new CompatScroller(context);
+    	}
+    	
+    	void start(int velocityX, int velocityY) {
+    		setState(State.FLING);
+    		isActive = true;
     		matrix.getValues(m);
     		
     		int startX = (int) m[Matrix.MTRANS_X];
@@ -1140,7 +1262,7 @@ public class TouchImageView extends ImageView {
     	}
     	
     	public void cancelFling() {
-    		if (scroller != null) {
+    		if (isActive) {
     			setState(State.NONE);
     			scroller.forceFinished(true);
     		}
@@ -1158,7 +1280,7 @@ public class TouchImageView extends ImageView {
 			}
 			
 			if (scroller.isFinished()) {
-        		scroller = null;
+        		isActive = false;
         		return;
         	}
 			